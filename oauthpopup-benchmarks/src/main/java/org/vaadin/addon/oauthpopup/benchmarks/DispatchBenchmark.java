@@ -0,0 +1,88 @@
+package org.vaadin.addon.oauthpopup.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scribe.builder.api.TwitterApi;
+import org.vaadin.addon.oauthpopup.OAuthCallbackDispatcher;
+import org.vaadin.addon.oauthpopup.OAuthCallbackInjecter;
+import org.vaadin.addon.oauthpopup.OAuthCallbackRequestHandler;
+import org.vaadin.addon.oauthpopup.OAuthData;
+
+import com.vaadin.server.VaadinRequest;
+
+/**
+ * Finding the flow of a request with N pending flows in the session.
+ * <p>
+ * <code>linearScan</code> is what Vaadin did when each flow had a request handler of its own:
+ * every request asked every handler {@link OAuthData#isCallbackForMe(VaadinRequest)}.
+ * The <code>dispatcher</code> benchmarks go through {@link OAuthCallbackDispatcher}.
+ * None of the requests completes a flow, so the state stays the same.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	
+	@Param({"1", "10", "100", "1000"})
+	public int flows;
+	
+	private final List<OAuthData> datas = new ArrayList<OAuthData>();
+	private OAuthCallbackDispatcher dispatcher;
+	private VaadinRequest lastFlowCallback;
+	private VaadinRequest unknownCallback;
+	private VaadinRequest uidl;
+	
+	@Setup
+	public void setUp() {
+		dispatcher = new OAuthCallbackDispatcher();
+		for (int i=0; i<flows; ++i) {
+			OAuthData data = new OAuthData(TwitterApi.class, "key", "secret");
+			data.setCallback("https://example.com/myapp/");
+			// No timeouts, no sweeper thread.
+			data.setFlowTimeoutMillis(0);
+			datas.add(data);
+			dispatcher.addPendingFlow(new OAuthCallbackRequestHandler(null, data));
+		}
+		String lastId = datas.get(flows - 1).getId();
+		lastFlowCallback = Requests.parameter("/", OAuthCallbackInjecter.CALLBACK_ID_NAME, lastId);
+		unknownCallback = Requests.parameter("/", OAuthCallbackInjecter.CALLBACK_ID_NAME, "no-such-flow");
+		uidl = Requests.path("/UIDL/");
+	}
+	
+	@Benchmark
+	public OAuthData linearScan() {
+		for (OAuthData data : datas) {
+			if (data.isCallbackForMe(lastFlowCallback)) {
+				return data;
+			}
+		}
+		return null;
+	}
+	
+	@Benchmark
+	public boolean dispatcherUnknownCallback() throws IOException {
+		return dispatcher.handleRequest(null, unknownCallback, null);
+	}
+	
+	@Benchmark
+	public boolean dispatcherUidl() throws IOException {
+		return dispatcher.handleRequest(null, uidl, null);
+	}
+}
@@ -0,0 +1,68 @@
+package org.vaadin.addon.oauthpopup.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.addon.oauthpopup.OAuthCallbackInjecter;
+
+import com.vaadin.server.VaadinRequest;
+
+/**
+ * Injecting the id to the callback URI, and extracting it from a callback request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InjecterBenchmark {
+	
+	private static final String CALLBACK = "https://example.com/myapp/?lang=en";
+	private static final String ID = "0-1a2b-3c4d5e6f7g8h9i";
+	
+	@Param({"path", "query"})
+	public String injecter;
+	
+	private OAuthCallbackInjecter inj;
+	private VaadinRequest callback;
+	private VaadinRequest other;
+	
+	@Setup
+	public void setUp() {
+		if (injecter.equals("path")) {
+			inj = OAuthCallbackInjecter.PATH_INJECTER;
+			callback = Requests.path("/" + OAuthCallbackInjecter.CALLBACK_ID_NAME + "/" + ID);
+		}
+		else {
+			inj = OAuthCallbackInjecter.QUERY_INJECTER;
+			callback = Requests.parameter("/", OAuthCallbackInjecter.CALLBACK_ID_NAME, ID);
+		}
+		other = Requests.path("/VAADIN/themes/demo/styles.css");
+	}
+	
+	@Benchmark
+	public String inject() {
+		return inj.injectIdToCallback(CALLBACK, ID);
+	}
+	
+	@Benchmark
+	public String extractCallback() {
+		return inj.extractIdFromCallback(callback);
+	}
+	
+	@Benchmark
+	public String extractOther() {
+		return inj.extractIdFromCallback(other);
+	}
+}
@@ -0,0 +1,85 @@
+package org.vaadin.addon.oauthpopup.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scribe.builder.api.TwitterApi;
+import org.vaadin.addon.oauthpopup.OAuthData;
+import org.vaadin.addon.oauthpopup.OAuthListener;
+
+/**
+ * Notifying the listeners of an {@link OAuthData} from several threads
+ * while another thread keeps adding and removing a listener,
+ * as happens when buttons are attached and detached during logins.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerFanOutBenchmark {
+	
+	@Param({"1", "10"})
+	public int listeners;
+	
+	private OAuthData data;
+	private final OAuthListener churning = new CountingListener();
+	
+	@Setup
+	public void setUp() {
+		data = new OAuthData(TwitterApi.class, "key", "secret");
+		for (int i=0; i<listeners; ++i) {
+			data.addListener(new CountingListener());
+		}
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public void fire() {
+		data.setDenied("denied");
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void churn() {
+		data.addListener(churning);
+		data.removeListener(churning);
+	}
+	
+	@Benchmark
+	@Group("uncontended")
+	@GroupThreads(1)
+	public void fireAlone() {
+		data.setDenied("denied");
+	}
+	
+	private static final class CountingListener implements OAuthListener {
+		// Racy on purpose, only there so that the call isn't optimized away.
+		private long calls;
+		
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			++calls;
+		}
+		
+		@Override
+		public void authDenied(String reason) {
+			++calls;
+		}
+	}
+}
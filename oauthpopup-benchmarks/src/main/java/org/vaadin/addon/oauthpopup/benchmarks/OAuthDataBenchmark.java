@@ -0,0 +1,83 @@
+package org.vaadin.addon.oauthpopup.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scribe.builder.api.TwitterApi;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.Token;
+import org.vaadin.addon.oauthpopup.OAuthCallbackInjecter;
+import org.vaadin.addon.oauthpopup.OAuthData;
+import org.vaadin.addon.oauthpopup.buttons.GitHubApi;
+
+/**
+ * Creating {@link OAuthData}s (one per button), generating ids, building the Scribe config
+ * and the authorization url of a flow.
+ * <p>
+ * The config and the authorization url are built once per settings,
+ * so with the GC profiler the latter benchmarks should allocate only the returned url, if anything.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OAuthDataBenchmark {
+	
+	private OAuthData data;
+	private OAuthData data20;
+	private final Token requestToken = new Token("0a1b2c3d4e5f6g7h8i9j", "secret");
+	
+	@Setup
+	public void setUp() {
+		data = new OAuthData(TwitterApi.class, "key", "secret");
+		data.setCallback("https://example.com/myapp/");
+		data.setScope("email");
+		data20 = new OAuthData(GitHubApi.class, "key", "secret");
+		data20.setCallback("https://example.com/myapp/");
+		data20.setCallbackInjecter(OAuthCallbackInjecter.PATH_INJECTER);
+		data20.setScope("user");
+	}
+	
+	@Benchmark
+	public OAuthData construct() {
+		return new OAuthData(TwitterApi.class, "key", "secret");
+	}
+	
+	@Benchmark
+	public String nextId() {
+		return data.nextId();
+	}
+	
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String nextIdContended() {
+		return data.nextId();
+	}
+	
+	@Benchmark
+	public OAuthConfig asConfig() {
+		return data.asConfig();
+	}
+	
+	@Benchmark
+	public String authorizationUrl10a() {
+		return data.getAuthorizationUrl(requestToken);
+	}
+	
+	@Benchmark
+	public String authorizationUrl20() {
+		return data20.getAuthorizationUrl(null);
+	}
+}
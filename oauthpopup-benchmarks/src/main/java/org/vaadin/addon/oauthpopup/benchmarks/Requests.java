@@ -0,0 +1,46 @@
+package org.vaadin.addon.oauthpopup.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import com.vaadin.server.VaadinRequest;
+
+/**
+ * Minimal fake {@link VaadinRequest}s, only the path info and the parameters.
+ */
+final class Requests {
+	
+	private Requests() {
+	}
+	
+	static VaadinRequest create(final String pathInfo, final Map<String, String> parameters) {
+		return (VaadinRequest) Proxy.newProxyInstance(VaadinRequest.class.getClassLoader(),
+				new Class<?>[] {VaadinRequest.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("getPathInfo")) {
+					return pathInfo;
+				}
+				if (name.equals("getParameter")) {
+					return parameters.get(args[0]);
+				}
+				if (name.equals("getContextPath")) {
+					return "";
+				}
+				return null;
+			}
+		});
+	}
+	
+	static VaadinRequest path(String pathInfo) {
+		return create(pathInfo, Collections.<String, String>emptyMap());
+	}
+	
+	static VaadinRequest parameter(String pathInfo, String name, String value) {
+		return create(pathInfo, Collections.singletonMap(name, value));
+	}
+}
@@ -1,11 +1,11 @@
 package org.vaadin.addon.oauthpopup.demo;
 
-import org.scribe.builder.ServiceBuilder;
 import org.scribe.model.OAuthRequest;
-import org.scribe.model.Response;
 import org.scribe.model.Token;
 import org.scribe.model.Verb;
-import org.scribe.oauth.OAuthService;
+import org.vaadin.addon.oauthpopup.OAuthApiClient;
+import org.vaadin.addon.oauthpopup.OAuthApiClient.ResponseCallback;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
 
 import com.vaadin.ui.Button;
 import com.vaadin.ui.Button.ClickEvent;
@@ -19,8 +19,7 @@ import com.vaadin.ui.VerticalLayout;
 class GetTestComponent extends Panel {
 	
 	private final VerticalLayout layout = new VerticalLayout();
-	private final Token accessToken;
-	private final ApiInfo service;
+	private final OAuthApiClient client;
 	private TextArea responseArea;
 	
 	GetTestComponent(ApiInfo service, String accessToken, String accessTokenSecret) {
@@ -29,8 +28,8 @@ class GetTestComponent extends Panel {
 		setContent(layout);
 		layout.setSizeFull();
 		
-		this.service = service;
-		this.accessToken = new Token(accessToken, accessTokenSecret);
+		this.client = new OAuthApiClient(service.scribeApi, service.apiKey, service.apiSecret,
+				new Token(accessToken, accessTokenSecret));
 		
 		layout.setMargin(true);
 		final TextField field = new TextField("Request:", service.exampleGetRequest);
@@ -53,19 +52,18 @@ class GetTestComponent extends Panel {
 	}
 	
 	private void sendGet(String get) {
-		OAuthRequest request = new OAuthRequest(Verb.GET, get);
-		createOAuthService().signRequest(accessToken, request);
-		Response resp = request.send();
-		responseArea.setValue(resp.getBody());
-		
-	}
-	
-	private OAuthService createOAuthService() {
-		ServiceBuilder sb = new ServiceBuilder();
-		sb.provider(service.scribeApi);
-		sb.apiKey(service.apiKey);
-		sb.apiSecret(service.apiSecret);
-		sb.callback("http://www.google.fi");
-		return sb.build();
+		responseArea.setValue("Sending...");
+		// The response comes back with the UI locked, the UI isn't locked while waiting for it.
+		client.sendAsync(new OAuthRequest(Verb.GET, get), getUI(), new ResponseCallback() {
+			@Override
+			public void onResponse(TransportResponse response) {
+				responseArea.setValue(response.getBody());
+			}
+			
+			@Override
+			public void onFailure(Throwable error) {
+				responseArea.setValue("Request failed: " + error.getMessage());
+			}
+		});
 	}
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.scribe.builder.api.Api;
+import org.vaadin.addon.oauthpopup.OAuthCallbackDispatcher;
+import org.vaadin.addon.oauthpopup.OAuthData;
+import org.vaadin.addon.oauthpopup.OAuthListener;
+import org.vaadin.addon.oauthpopup.OAuthPopupUI;
+import org.vaadin.addon.oauthpopup.metrics.LatencyHistogram;
+
+import com.vaadin.server.VaadinRequest;
+
+/**
+ * Drives simulated login flows against a {@link StubOAuthProvider}.
+ * <p>
+ * Each flow is one user with a session of their own:
+ * <ol>
+ * <li>the button is attached: an {@link OAuthData} is registered to the session</li>
+ * <li>the popup opens: {@link OAuthPopupUI} fetches the request token and
+ * starts waiting for the callback</li>
+ * <li>the browser goes to the authorization url, the provider redirects to the callback</li>
+ * <li>the callback request is handled by the {@link OAuthCallbackDispatcher}
+ * and the OAuthCallbackRequestHandler, which fetches the access token</li>
+ * </ol>
+ * The flow latency is measured from opening the popup to the listener being called.
+ * Everything runs in this JVM against localhost, no network needed.
+ */
+public class LoadHarness {
+	
+	private static final String CALLBACK = "http://app.invalid/";
+	
+	private final Class<? extends Api> apiClass;
+	private int flows = 1000;
+	private int concurrency = 50;
+	
+	public LoadHarness(Class<? extends Api> apiClass) {
+		this.apiClass = apiClass;
+	}
+	
+	public LoadHarness setFlows(int flows) {
+		this.flows = flows;
+		return this;
+	}
+	
+	public LoadHarness setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+		return this;
+	}
+	
+	public Result run() throws InterruptedException {
+		final Result result = new Result(flows);
+		ExecutorService users = Executors.newFixedThreadPool(concurrency);
+		final CountDownLatch done = new CountDownLatch(flows);
+		long start = System.nanoTime();
+		for (int i=0; i<flows; ++i) {
+			users.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runFlow(result);
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		result.elapsedNanos = System.nanoTime() - start;
+		users.shutdown();
+		return result;
+	}
+	
+	private void runFlow(Result result) {
+		SimulatedSession session = new SimulatedSession();
+		OAuthData data = new OAuthData(apiClass, "key", "secret");
+		data.setCallback(CALLBACK);
+		final boolean[] succeeded = new boolean[1];
+		data.addListener(new OAuthListener() {
+			@Override
+			public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+				succeeded[0] = true;
+			}
+			
+			@Override
+			public void authDenied(String reason) {
+			}
+		});
+		
+		long start = System.nanoTime();
+		try {
+			OAuthCallbackDispatcher dispatcher;
+			String authorizationUrl;
+			session.getLockInstance().lock();
+			try {
+				// What OAuthPopupOpener.attach does.
+				dispatcher = OAuthCallbackDispatcher.get(session);
+				dispatcher.register(data);
+				
+				SimulatedPopupUI ui = new SimulatedPopupUI();
+				ui.setSession(session);
+				authorizationUrl = ui.open(SimulatedRequests.request("/",
+						Collections.singletonMap(OAuthPopupUI.DATA_PARAM_NAME, data.getId())));
+			}
+			finally {
+				session.getLockInstance().unlock();
+			}
+			
+			String callbackUrl = authorize(authorizationUrl);
+			VaadinRequest callback = SimulatedRequests.fromUrl(callbackUrl);
+			if (!dispatcher.handleRequest(session, callback, SimulatedRequests.response())) {
+				throw new IllegalStateException("Callback not handled: " + callbackUrl);
+			}
+			if (!succeeded[0]) {
+				throw new IllegalStateException("Listener not called");
+			}
+			result.latency.record(System.nanoTime() - start);
+			result.successes.incrementAndGet();
+		}
+		catch (Exception e) {
+			result.failures.incrementAndGet();
+			getLogger().log(Level.FINE, "Flow failed", e);
+		}
+	}
+	
+	/**
+	 * The browser part: opens the authorization url and returns where it redirects.
+	 */
+	private static String authorize(String authorizationUrl) throws IOException {
+		HttpURLConnection c = (HttpURLConnection) new URL(authorizationUrl).openConnection();
+		c.setInstanceFollowRedirects(false);
+		try {
+			if (c.getResponseCode()!=302) {
+				throw new IOException("Authorization failed: HTTP " + c.getResponseCode());
+			}
+			return c.getHeaderField("Location");
+		}
+		finally {
+			c.disconnect();
+		}
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(LoadHarness.class.getName());
+	}
+	
+	public static class Result {
+		private final int flows;
+		private final AtomicLong successes = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private long elapsedNanos;
+		
+		private Result(int flows) {
+			this.flows = flows;
+		}
+		
+		public long getSuccessCount() {
+			return successes.get();
+		}
+		
+		public long getFailureCount() {
+			return failures.get();
+		}
+		
+		/**
+		 * The latency of the successful flows.
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+		
+		/**
+		 * Completed flows (successful or not) per second.
+		 */
+		public double getThroughput() {
+			return flows / (elapsedNanos / 1e9);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d flows in %.1f s: %.0f flows/s, %d ok, %d failed%n"
+					+ "latency p50 %.0f ms, p99 %.0f ms, mean %.1f ms, max %.1f ms",
+					flows, elapsedNanos / 1e9, getThroughput(), getSuccessCount(), getFailureCount(),
+					latency.getPercentileMillis(0.5), latency.getPercentileMillis(0.99),
+					latency.getMeanMillis(), latency.getMaxMillis());
+		}
+	}
+}
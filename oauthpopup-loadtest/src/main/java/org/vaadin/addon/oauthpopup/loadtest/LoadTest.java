@@ -0,0 +1,50 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import org.scribe.builder.api.Api;
+import org.vaadin.addon.oauthpopup.OAuthData;
+
+/**
+ * Runs a {@link LoadHarness} against a {@link StubOAuthProvider} and prints the results.
+ * <p>
+ * Usage: java ... LoadTest [oauth1|oauth2] [flows] [concurrency] [minLatencyMillis] [maxLatencyMillis] [errorRate]
+ * <p>
+ * For example <code>LoadTest oauth1 10000 200 20 80 0.01</code>:
+ * 10000 OAuth 1.0a logins, 200 at a time, the provider taking 20-80 ms per request
+ * and failing 1% of the token requests.
+ */
+public class LoadTest {
+	
+	public static void main(String[] args) throws Exception {
+		Class<? extends Api> api = arg(args, 0, "oauth1").equals("oauth2") ? StubOAuth20Api.class : StubOAuth10aApi.class;
+		int flows = Integer.parseInt(arg(args, 1, "5000"));
+		int concurrency = Integer.parseInt(arg(args, 2, "100"));
+		int minLatency = Integer.parseInt(arg(args, 3, "10"));
+		int maxLatency = Integer.parseInt(arg(args, 4, "50"));
+		double errorRate = Double.parseDouble(arg(args, 5, "0"));
+		
+		StubOAuthProvider provider = new StubOAuthProvider(concurrency * 2);
+		provider.setLatencyMillis(minLatency, maxLatency);
+		provider.start();
+		try {
+			// Warm-up
+			new LoadHarness(api).setFlows(Math.min(flows, 1000)).setConcurrency(concurrency).run();
+			provider.setErrorRate(errorRate);
+			LoadHarness.Result result = new LoadHarness(api).setFlows(flows).setConcurrency(concurrency).run();
+			
+			System.out.printf("%s, %d concurrent users, provider latency %d-%d ms, error rate %.3f%n",
+					api.getSimpleName(), concurrency, minLatency, maxLatency, errorRate);
+			System.out.println(result);
+			System.out.println("Provider requests: " + provider.getRequestCount()
+					+ ", injected errors: " + provider.getInjectedErrorCount());
+			System.out.println("Add-on metrics (including warm-up):");
+			System.out.print(OAuthData.getMetrics());
+		}
+		finally {
+			provider.stop();
+		}
+	}
+	
+	private static String arg(String[] args, int i, String defaultValue) {
+		return args.length > i ? args[i] : defaultValue;
+	}
+}
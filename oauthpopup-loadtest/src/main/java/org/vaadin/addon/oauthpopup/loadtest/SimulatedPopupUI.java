@@ -0,0 +1,32 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import org.scribe.model.Token;
+import org.vaadin.addon.oauthpopup.OAuthData;
+import org.vaadin.addon.oauthpopup.OAuthPopupUI;
+
+import com.vaadin.server.VaadinRequest;
+
+/**
+ * {@link OAuthPopupUI} that records the authorization url
+ * instead of sending it to a browser.
+ */
+@SuppressWarnings("serial")
+class SimulatedPopupUI extends OAuthPopupUI {
+	
+	private String authorizationUrl;
+	
+	/**
+	 * Runs the popup UI init for the request, the session must be set and locked.
+	 * 
+	 * @return the authorization url the popup would go to
+	 */
+	String open(VaadinRequest request) {
+		init(request);
+		return authorizationUrl;
+	}
+	
+	@Override
+	protected void goToAuthorizationUrl(Token requestToken, OAuthData data) {
+		authorizationUrl = data.getAuthorizationUrl(requestToken);
+	}
+}
@@ -0,0 +1,77 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.scribe.utils.OAuthEncoder;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+
+/**
+ * Fake {@link VaadinRequest}s and {@link VaadinResponse}s, with only
+ * what the add-on reads and writes.
+ */
+final class SimulatedRequests {
+	
+	private SimulatedRequests() {
+	}
+	
+	static VaadinRequest request(final String pathInfo, final Map<String, String> parameters) {
+		return (VaadinRequest) Proxy.newProxyInstance(VaadinRequest.class.getClassLoader(),
+				new Class<?>[] {VaadinRequest.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("getPathInfo")) {
+					return pathInfo;
+				}
+				if (name.equals("getParameter")) {
+					return parameters.get(args[0]);
+				}
+				if (name.equals("getContextPath")) {
+					return "";
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * The request the browser makes when redirected to the url.
+	 */
+	static VaadinRequest fromUrl(String url) {
+		URI uri = URI.create(url);
+		Map<String, String> parameters = new HashMap<String, String>();
+		String query = uri.getRawQuery();
+		if (query!=null) {
+			for (String pair : query.split("&")) {
+				int eq = pair.indexOf('=');
+				if (eq > 0) {
+					parameters.put(pair.substring(0, eq), OAuthEncoder.decode(pair.substring(eq + 1)));
+				}
+			}
+		}
+		return request(uri.getPath(), parameters);
+	}
+	
+	static VaadinResponse response() {
+		final PrintWriter writer = new PrintWriter(new StringWriter());
+		return (VaadinResponse) Proxy.newProxyInstance(VaadinResponse.class.getClassLoader(),
+				new Class<?>[] {VaadinResponse.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getWriter")) {
+					return writer;
+				}
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,28 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.vaadin.server.VaadinSession;
+
+/**
+ * A {@link VaadinSession} without a servlet container: just the session
+ * attributes, the request handlers and a lock of its own.
+ * <p>
+ * Lock and unlock with {@link #getLockInstance()}, the regular
+ * {@link #unlock()} would need a VaadinService.
+ */
+@SuppressWarnings("serial")
+class SimulatedSession extends VaadinSession {
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	SimulatedSession() {
+		super(null);
+	}
+	
+	@Override
+	public Lock getLockInstance() {
+		return lock;
+	}
+}
@@ -0,0 +1,25 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import org.scribe.builder.api.DefaultApi10a;
+import org.scribe.model.Token;
+
+/**
+ * OAuth 1.0a Api of the {@link StubOAuthProvider} last started.
+ */
+public class StubOAuth10aApi extends DefaultApi10a {
+	
+	@Override
+	public String getRequestTokenEndpoint() {
+		return StubOAuthProvider.getCurrentBaseUrl() + "/oauth1/request_token";
+	}
+	
+	@Override
+	public String getAccessTokenEndpoint() {
+		return StubOAuthProvider.getCurrentBaseUrl() + "/oauth1/access_token";
+	}
+	
+	@Override
+	public String getAuthorizationUrl(Token requestToken) {
+		return StubOAuthProvider.getCurrentBaseUrl() + "/oauth1/authorize?oauth_token=" + requestToken.getToken();
+	}
+}
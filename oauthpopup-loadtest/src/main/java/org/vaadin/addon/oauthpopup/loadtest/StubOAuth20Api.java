@@ -0,0 +1,24 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import org.scribe.builder.api.DefaultApi20;
+import org.scribe.model.OAuthConfig;
+import org.scribe.utils.OAuthEncoder;
+
+/**
+ * OAuth 2.0 Api of the {@link StubOAuthProvider} last started,
+ * in the style of {@link org.vaadin.addon.oauthpopup.buttons.GitHubApi}.
+ */
+public class StubOAuth20Api extends DefaultApi20 {
+	
+	@Override
+	public String getAccessTokenEndpoint() {
+		return StubOAuthProvider.getCurrentBaseUrl() + "/oauth2/access_token";
+	}
+	
+	@Override
+	public String getAuthorizationUrl(OAuthConfig config) {
+		return StubOAuthProvider.getCurrentBaseUrl() + "/oauth2/authorize?client_id="
+				+ OAuthEncoder.encode(config.getApiKey())
+				+ "&redirect_uri=" + OAuthEncoder.encode(config.getCallback());
+	}
+}
@@ -0,0 +1,274 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.scribe.utils.OAuthEncoder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A fake OAuth 1.0a and OAuth 2.0 service on the JDK's embedded HTTP server,
+ * listening on localhost only.
+ * <p>
+ * The authorization pages approve right away by redirecting to the callback,
+ * as if the user had clicked "Allow". Signatures are not checked.
+ * <p>
+ * Every response can be delayed by a random latency, and a share of
+ * the token requests can be made to fail with HTTP 500.
+ * <p>
+ * {@link StubOAuth10aApi} and {@link StubOAuth20Api} point at the provider
+ * last started.
+ */
+@SuppressWarnings("restriction")
+public class StubOAuthProvider {
+	
+	private static volatile String currentBaseUrl;
+	
+	/**
+	 * Returns the base url of the provider last started.
+	 */
+	static String getCurrentBaseUrl() {
+		String url = currentBaseUrl;
+		if (url==null) {
+			throw new IllegalStateException("No StubOAuthProvider started.");
+		}
+		return url;
+	}
+	
+	private static final Pattern OAUTH_PARAM = Pattern.compile("(oauth_[a-z_]+)=\"([^\"]*)\"");
+	
+	private final int threads;
+	private volatile int minLatencyMillis;
+	private volatile int maxLatencyMillis;
+	private volatile double errorRate;
+	
+	private final Random random = new Random();
+	private final AtomicLong tokenCounter = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	
+	// Request token -> callback, until authorized.
+	private final ConcurrentMap<String, String> callbacks = new ConcurrentHashMap<String, String>();
+	
+	private HttpServer server;
+	private ExecutorService executor;
+	
+	/**
+	 * @param threads the number of server threads, i.e. max concurrent requests
+	 */
+	public StubOAuthProvider(int threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * Delays every response by a random time between min and max.
+	 */
+	public void setLatencyMillis(int min, int max) {
+		this.minLatencyMillis = min;
+		this.maxLatencyMillis = Math.max(min, max);
+	}
+	
+	/**
+	 * Makes this share (0..1) of the token requests fail with HTTP 500.
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+	
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/oauth1/request_token", new Endpoint() {
+			@Override
+			void respond(HttpExchange exchange) throws IOException {
+				Map<String, String> oauth = parseOAuthHeader(exchange);
+				String token = "rt" + tokenCounter.incrementAndGet();
+				callbacks.put(token, oauth.get("oauth_callback"));
+				send(exchange, 200, "oauth_token=" + token
+						+ "&oauth_token_secret=rts&oauth_callback_confirmed=true");
+			}
+		});
+		server.createContext("/oauth1/authorize", new Endpoint() {
+			@Override
+			void respond(HttpExchange exchange) throws IOException {
+				String token = parseQuery(exchange).get("oauth_token");
+				String callback = token==null ? null : callbacks.remove(token);
+				if (callback==null) {
+					send(exchange, 400, "unknown oauth_token");
+					return;
+				}
+				redirect(exchange, callback, "oauth_token=" + token + "&oauth_verifier=v" + token);
+			}
+		});
+		server.createContext("/oauth1/access_token", new Endpoint() {
+			@Override
+			void respond(HttpExchange exchange) throws IOException {
+				Map<String, String> oauth = parseOAuthHeader(exchange);
+				if (oauth.get("oauth_verifier")==null || oauth.get("oauth_token")==null) {
+					send(exchange, 400, "missing oauth_verifier or oauth_token");
+					return;
+				}
+				send(exchange, 200, "oauth_token=at" + tokenCounter.incrementAndGet()
+						+ "&oauth_token_secret=ats");
+			}
+		});
+		server.createContext("/oauth2/authorize", new Endpoint() {
+			@Override
+			void respond(HttpExchange exchange) throws IOException {
+				String callback = parseQuery(exchange).get("redirect_uri");
+				if (callback==null) {
+					send(exchange, 400, "missing redirect_uri");
+					return;
+				}
+				redirect(exchange, callback, "code=c" + tokenCounter.incrementAndGet());
+			}
+		});
+		server.createContext("/oauth2/access_token", new Endpoint() {
+			@Override
+			void respond(HttpExchange exchange) throws IOException {
+				Map<String, String> query = parseQuery(exchange);
+				if (query.get("code")==null && query.get("refresh_token")==null) {
+					send(exchange, 400, "missing code");
+					return;
+				}
+				long n = tokenCounter.incrementAndGet();
+				send(exchange, 200, "access_token=at" + n + "&expires_in=3600&refresh_token=rf" + n);
+			}
+		});
+		server.start();
+		currentBaseUrl = getBaseUrl();
+	}
+	
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+	
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+	
+	public long getRequestCount() {
+		return requests.get();
+	}
+	
+	public long getInjectedErrorCount() {
+		return injectedErrors.get();
+	}
+	
+	private abstract class Endpoint implements HttpHandler {
+		
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				requests.incrementAndGet();
+				drain(exchange.getRequestBody());
+				sleep();
+				boolean tokenRequest = !exchange.getRequestURI().getPath().endsWith("/authorize");
+				if (tokenRequest && shouldFail()) {
+					injectedErrors.incrementAndGet();
+					send(exchange, 500, "injected error");
+					return;
+				}
+				respond(exchange);
+			}
+			finally {
+				exchange.close();
+			}
+		}
+		
+		abstract void respond(HttpExchange exchange) throws IOException;
+	}
+	
+	private void sleep() {
+		int min = minLatencyMillis;
+		int max = maxLatencyMillis;
+		if (max <= 0) {
+			return;
+		}
+		int latency;
+		synchronized (random) {
+			latency = min + random.nextInt(max - min + 1);
+		}
+		try {
+			Thread.sleep(latency);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private boolean shouldFail() {
+		double rate = errorRate;
+		if (rate <= 0) {
+			return false;
+		}
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+	
+	private static void send(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+	
+	private static void redirect(HttpExchange exchange, String callback, String params) throws IOException {
+		String location = callback + (callback.indexOf('?') < 0 ? "?" : "&") + params;
+		exchange.getResponseHeaders().set("Location", location);
+		exchange.sendResponseHeaders(302, -1);
+	}
+	
+	private static Map<String, String> parseOAuthHeader(HttpExchange exchange) {
+		Map<String, String> params = new HashMap<String, String>();
+		String header = exchange.getRequestHeaders().getFirst("Authorization");
+		if (header!=null) {
+			Matcher m = OAUTH_PARAM.matcher(header);
+			while (m.find()) {
+				params.put(m.group(1), OAuthEncoder.decode(m.group(2)));
+			}
+		}
+		return params;
+	}
+	
+	private static Map<String, String> parseQuery(HttpExchange exchange) {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query!=null) {
+			for (String pair : query.split("&")) {
+				int eq = pair.indexOf('=');
+				if (eq > 0) {
+					params.put(pair.substring(0, eq), OAuthEncoder.decode(pair.substring(eq + 1)));
+				}
+			}
+		}
+		return params;
+	}
+	
+	private static void drain(InputStream in) throws IOException {
+		byte[] buf = new byte[1024];
+		while (in.read(buf) != -1) {
+			// Nothing
+		}
+		in.close();
+	}
+}
@@ -0,0 +1,54 @@
+package org.vaadin.addon.oauthpopup.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A small load run, to keep the harness itself working.
+ */
+public class LoadHarnessTest {
+	
+	private StubOAuthProvider provider;
+	
+	@Before
+	public void setUp() throws Exception {
+		provider = new StubOAuthProvider(20);
+		provider.setLatencyMillis(1, 5);
+		provider.start();
+	}
+	
+	@After
+	public void tearDown() {
+		provider.stop();
+	}
+	
+	@Test
+	public void oauth10aFlows() throws Exception {
+		LoadHarness.Result result = new LoadHarness(StubOAuth10aApi.class).setFlows(200).setConcurrency(10).run();
+		assertEquals(200, result.getSuccessCount());
+		assertEquals(0, result.getFailureCount());
+		// request token, authorize, access token
+		assertEquals(600, provider.getRequestCount());
+	}
+	
+	@Test
+	public void oauth20Flows() throws Exception {
+		LoadHarness.Result result = new LoadHarness(StubOAuth20Api.class).setFlows(200).setConcurrency(10).run();
+		assertEquals(200, result.getSuccessCount());
+		assertEquals(0, result.getFailureCount());
+		assertEquals(400, provider.getRequestCount());
+		assertTrue(result.getLatency().getPercentileMillis(0.99) > 0);
+	}
+	
+	@Test
+	public void injectedErrorsFailFlows() throws Exception {
+		provider.setErrorRate(0.3);
+		LoadHarness.Result result = new LoadHarness(StubOAuth10aApi.class).setFlows(200).setConcurrency(10).run();
+		assertEquals(200, result.getSuccessCount() + result.getFailureCount());
+		assertEquals(provider.getInjectedErrorCount(), result.getFailureCount());
+	}
+}
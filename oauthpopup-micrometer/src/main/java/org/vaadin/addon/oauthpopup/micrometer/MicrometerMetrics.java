@@ -0,0 +1,71 @@
+package org.vaadin.addon.oauthpopup.micrometer;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.scribe.builder.api.Api;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * {@link OAuthMetrics} that records to a Micrometer {@link MeterRegistry}.
+ * <p>
+ * The phases are timers named <code>oauthpopup.phase</code>, the failed requests
+ * of the phases counters named <code>oauthpopup.phase.errors</code> and the outcomes
+ * counters named <code>oauthpopup.flows</code>, all tagged with
+ * <code>api</code> (the simple name of the Api class) and
+ * <code>phase</code> or <code>outcome</code>.
+ * <p>
+ * Usage: <code>OAuthData.setMetrics(new MicrometerMetrics(registry))</code>
+ */
+public class MicrometerMetrics implements OAuthMetrics {
+
+	private final MeterRegistry registry;
+
+	// Looking the meters up from the registry on every call would be slower.
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+	public MicrometerMetrics(MeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public void recordPhase(Class<? extends Api> apiClass, Phase phase, long nanos) {
+		String api = apiClass.getSimpleName();
+		timers.computeIfAbsent(api + "." + phase, k -> Timer.builder("oauthpopup.phase")
+				.description("Duration of a phase of the OAuth flow")
+				.tag("api", api)
+				.tag("phase", phase.name().toLowerCase(Locale.ROOT))
+				.publishPercentileHistogram()
+				.register(registry))
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void recordOutcome(Class<? extends Api> apiClass, Outcome outcome) {
+		String api = apiClass.getSimpleName();
+		counters.computeIfAbsent(api + "." + outcome, k -> Counter.builder("oauthpopup.flows")
+				.description("OAuth flows by outcome")
+				.tag("api", api)
+				.tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+				.register(registry))
+				.increment();
+	}
+
+	@Override
+	public void recordPhaseError(Class<? extends Api> apiClass, Phase phase) {
+		String api = apiClass.getSimpleName();
+		counters.computeIfAbsent(api + ".error." + phase, k -> Counter.builder("oauthpopup.phase.errors")
+				.description("Failed requests of a phase of the OAuth flow, also in the background")
+				.tag("api", api)
+				.tag("phase", phase.name().toLowerCase(Locale.ROOT))
+				.register(registry))
+				.increment();
+	}
+}
@@ -0,0 +1,261 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
+
+/**
+ * Cache of the responses to the signed GET requests of {@link OAuthApiClient}s,
+ * per access token and url.
+ * <p>
+ * Follows the validators and the <code>Cache-Control</code> of the responses:
+ * <ul>
+ * <li>a response still within its <code>max-age</code> is returned as is,
+ * without signing or sending the request</li>
+ * <li>an older response with an <code>ETag</code> or <code>Last-Modified</code> is revalidated with
+ * <code>If-None-Match</code> and <code>If-Modified-Since</code>; on a <code>304 Not Modified</code>
+ * the cached response is returned, without transferring the body again</li>
+ * <li>responses with <code>no-store</code>, or with neither validators nor <code>max-age</code>, are not cached;
+ * <code>no-cache</code> is revalidated every time</li>
+ * </ul>
+ * The responses are per token, so <code>private</code> responses are cached too.
+ * <p>
+ * The cache is bounded by the number of responses and by their approximate size in memory,
+ * evicting the least recently used first. Thread-safe, the lock is never held during a request.
+ */
+public class ApiResponseCache {
+	
+	private final LinkedHashMap<String, Cached> responses = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+	
+	private final int maxEntries;
+	private final long maxBytes;
+	// Guarded by the responses lock.
+	private long bytes;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	
+	/**
+	 * @param maxEntries max number of cached responses
+	 * @param maxBytes max approximate memory taken by the cached responses
+	 */
+	public ApiResponseCache(int maxEntries, long maxBytes) {
+		if (maxEntries <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("maxEntries and maxBytes must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+	
+	static String key(String accessToken, String url) {
+		return accessToken + ' ' + url;
+	}
+	
+	Cached get(String key) {
+		synchronized (responses) {
+			return responses.get(key);
+		}
+	}
+	
+	void put(String key, Cached cached) {
+		if (cached.weight > maxBytes) {
+			return;
+		}
+		synchronized (responses) {
+			Cached old = responses.put(key, cached);
+			if (old!=null) {
+				bytes -= old.weight;
+			}
+			bytes += cached.weight;
+			evict();
+		}
+	}
+	
+	void remove(String key) {
+		synchronized (responses) {
+			Cached old = responses.remove(key);
+			if (old!=null) {
+				bytes -= old.weight;
+			}
+		}
+	}
+	
+	void recordHit() {
+		hits.incrementAndGet();
+	}
+	
+	void recordRevalidation() {
+		revalidations.incrementAndGet();
+	}
+	
+	void recordMiss() {
+		misses.incrementAndGet();
+	}
+	
+	/**
+	 * The number of responses returned without a request.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	/**
+	 * The number of responses returned after a <code>304 Not Modified</code>.
+	 */
+	public long getRevalidationCount() {
+		return revalidations.get();
+	}
+	
+	/**
+	 * The number of GET requests answered with a full response, or an error.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+	
+	public int size() {
+		synchronized (responses) {
+			return responses.size();
+		}
+	}
+	
+	/**
+	 * The approximate memory taken by the cached responses.
+	 */
+	public long getBytes() {
+		synchronized (responses) {
+			return bytes;
+		}
+	}
+	
+	/**
+	 * Removes all the cached responses, for example on logout, and resets the statistics.
+	 */
+	public void clear() {
+		synchronized (responses) {
+			responses.clear();
+			bytes = 0;
+		}
+		hits.set(0);
+		revalidations.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+	
+	@Override
+	public String toString() {
+		return "ApiResponseCache[size=" + size() + ", bytes=" + getBytes() + ", hits=" + getHitCount()
+				+ ", revalidations=" + getRevalidationCount() + ", misses=" + getMissCount()
+				+ ", evictions=" + getEvictionCount() + "]";
+	}
+	
+	// Must hold the responses lock.
+	private void evict() {
+		// In access order, the least recently used first.
+		Iterator<Cached> it = responses.values().iterator();
+		while (it.hasNext() && (responses.size() > maxEntries || bytes > maxBytes)) {
+			bytes -= it.next().weight;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * A cached response with its validators.
+	 */
+	static final class Cached {
+		final TransportResponse response;
+		final String etag;
+		final String lastModified;
+		final long maxAgeMillis;
+		final long expiresAt;
+		final long weight;
+		
+		private Cached(TransportResponse response, String etag, String lastModified, long maxAgeMillis, long now) {
+			this.response = response;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.maxAgeMillis = maxAgeMillis;
+			this.expiresAt = now + maxAgeMillis;
+			// Chars of the body and the header values, and some for the objects.
+			long w = 256 + 2L * response.getBody().length();
+			for (String v : response.getHeaders().values()) {
+				w += 64 + 2L * v.length();
+			}
+			this.weight = w;
+		}
+		
+		/**
+		 * Returns the response to cache, or null if it shouldn't be cached.
+		 */
+		static Cached of(TransportResponse response, long now) {
+			if (response.getCode()!=200) {
+				return null;
+			}
+			long maxAge = maxAgeMillis(response.getHeader("Cache-Control"));
+			if (maxAge < 0 && maxAge!=NOT_GIVEN) {
+				// no-store
+				return null;
+			}
+			String etag = response.getHeader("ETag");
+			String lastModified = response.getHeader("Last-Modified");
+			if (maxAge <= 0 && etag==null && lastModified==null) {
+				return null;
+			}
+			return new Cached(response, etag, lastModified, Math.max(maxAge, 0), now);
+		}
+		
+		/**
+		 * Returns this response, fresh again after a <code>304 Not Modified</code>.
+		 */
+		Cached revalidated(TransportResponse notModified, long now) {
+			String e = notModified.getHeader("ETag");
+			String lm = notModified.getHeader("Last-Modified");
+			long maxAge = maxAgeMillis(notModified.getHeader("Cache-Control"));
+			return new Cached(response, e!=null ? e : etag, lm!=null ? lm : lastModified,
+					maxAge==NOT_GIVEN ? maxAgeMillis : Math.max(maxAge, 0), now);
+		}
+		
+		boolean isFresh(long now) {
+			return now < expiresAt;
+		}
+		
+		private static final long NOT_GIVEN = Long.MIN_VALUE;
+		
+		/**
+		 * Returns the max-age in milliseconds, 0 for no-cache, -1 for no-store,
+		 * or {@link #NOT_GIVEN}.
+		 */
+		static long maxAgeMillis(String cacheControl) {
+			if (cacheControl==null) {
+				return NOT_GIVEN;
+			}
+			long maxAge = NOT_GIVEN;
+			for (String directive : cacheControl.split(",")) {
+				String d = directive.trim().toLowerCase();
+				if (d.equals("no-store")) {
+					return -1;
+				}
+				if (d.equals("no-cache")) {
+					maxAge = 0;
+				}
+				else if (d.startsWith("max-age=") && maxAge!=0) {
+					try {
+						maxAge = Long.parseLong(d.substring(8).replace("\"", "")) * 1000;
+					} catch (NumberFormatException e) {
+						maxAge = 0;
+					}
+				}
+			}
+			return maxAge;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.vaadin.addon.oauthpopup;
+
+import org.scribe.builder.api.Api;
+import org.scribe.builder.api.DefaultApi10a;
+import org.scribe.builder.api.DefaultApi20;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.Token;
+
+/**
+ * The authorization url of an Api and config, built once instead of on every flow.
+ * <p>
+ * For OAuth 2 the url depends only on the config, so it's a constant.
+ * For OAuth 1.0a the request token is usually just formatted into the url.
+ * That's checked by asking the Api for the url of a couple of probe tokens:
+ * if the token shows up as is, exactly once, the url is split around it.
+ * <p>
+ * Anything else is {@link #isSupported() unsupported}, and the url must be
+ * asked from the service every time, as before.
+ */
+final class AuthorizationUrlTemplate {
+	
+	private static final AuthorizationUrlTemplate UNSUPPORTED = new AuthorizationUrlTemplate(null, null);
+	
+	private static final String MARKER = "oauthpopuprequesttoken";
+	// A token that would come out differently if the Api encoded it.
+	private static final String PROBE = "probe%2F+/ &=?#";
+	
+	private final String prefix;
+	// Null when the token is not part of the url.
+	private final String suffix;
+	
+	private AuthorizationUrlTemplate(String prefix, String suffix) {
+		this.prefix = prefix;
+		this.suffix = suffix;
+	}
+	
+	static AuthorizationUrlTemplate compile(Api api, OAuthConfig config) {
+		if (api instanceof DefaultApi20) {
+			return new AuthorizationUrlTemplate(((DefaultApi20) api).getAuthorizationUrl(config), null);
+		}
+		if (api instanceof DefaultApi10a) {
+			DefaultApi10a api10a = (DefaultApi10a) api;
+			String url = api10a.getAuthorizationUrl(new Token(MARKER, ""));
+			int i = url==null ? -1 : url.indexOf(MARKER);
+			if (i < 0 || url.indexOf(MARKER, i+1) >= 0) {
+				return UNSUPPORTED;
+			}
+			AuthorizationUrlTemplate t = new AuthorizationUrlTemplate(
+					url.substring(0, i), url.substring(i + MARKER.length()));
+			Token probe = new Token(PROBE, "");
+			if (!t.expand(probe).equals(api10a.getAuthorizationUrl(probe))) {
+				return UNSUPPORTED;
+			}
+			return t;
+		}
+		return UNSUPPORTED;
+	}
+	
+	boolean isSupported() {
+		return prefix!=null;
+	}
+	
+	/**
+	 * Returns the authorization url for the request token,
+	 * or null if this template can't build it.
+	 */
+	String expand(Token requestToken) {
+		if (prefix==null) {
+			return null;
+		}
+		if (suffix==null) {
+			return prefix;
+		}
+		if (requestToken==null || requestToken.getToken()==null) {
+			return null;
+		}
+		String token = requestToken.getToken();
+		return new StringBuilder(prefix.length() + token.length() + suffix.length())
+				.append(prefix).append(token).append(suffix).toString();
+	}
+}
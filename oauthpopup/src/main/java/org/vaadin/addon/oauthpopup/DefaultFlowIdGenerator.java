@@ -0,0 +1,92 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default {@link FlowIdGenerator}.
+ * <p>
+ * The ids are of form NODE-COUNTER-RANDOM where
+ * <ul>
+ * <li>NODE identifies this JVM: the value of system property
+ * {@value #NODE_PROPERTY} if set, otherwise random</li>
+ * <li>COUNTER is a lock-free per JVM counter that makes the ids unique within the node</li>
+ * <li>RANDOM is 63 random bits that makes the ids unguessable</li>
+ * </ul>
+ * Each thread has its own {@link SecureRandom}, so the threads don't contend for it.
+ */
+public class DefaultFlowIdGenerator implements FlowIdGenerator {
+
+	/**
+	 * System property for setting the node part of the ids, for example the cluster node name.
+	 * Only letters and digits are used.
+	 */
+	public static final String NODE_PROPERTY = "oauthpopup.node";
+
+	private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			return new SecureRandom();
+		}
+	};
+
+	private final String node;
+	private final AtomicLong counter = new AtomicLong();
+
+	public DefaultFlowIdGenerator() {
+		this(defaultNode());
+	}
+
+	/**
+	 * @param node identifies this JVM among the cluster nodes; only letters and digits are used
+	 */
+	public DefaultFlowIdGenerator(String node) {
+		this.node = sanitize(node);
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	@Override
+	public String nextId() {
+		long count = counter.incrementAndGet();
+		long rand = random.get().nextLong() & Long.MAX_VALUE;
+		return new StringBuilder(40).append(node)
+				.append('-').append(Long.toString(count, Character.MAX_RADIX))
+				.append('-').append(Long.toString(rand, Character.MAX_RADIX))
+				.toString();
+	}
+
+	/**
+	 * The node of this JVM for telling where a flow started,
+	 * the same as in the ids when {@value #NODE_PROPERTY} is set.
+	 */
+	static String localNode() {
+		return LocalNode.NODE;
+	}
+
+	private static final class LocalNode {
+		private static final String NODE = sanitize(defaultNode());
+	}
+
+	private static String defaultNode() {
+		String node = System.getProperty(NODE_PROPERTY);
+		if (node==null || sanitize(node).isEmpty()) {
+			// Unique enough to tell apart the nodes and restarts of the JVM.
+			node = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, Character.MAX_RADIX);
+		}
+		return node;
+	}
+
+	private static String sanitize(String node) {
+		StringBuilder sb = new StringBuilder(node.length());
+		for (int i=0; i<node.length(); ++i) {
+			char c = node.charAt(i);
+			if ((c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9')) {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
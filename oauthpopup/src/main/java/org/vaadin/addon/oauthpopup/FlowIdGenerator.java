@@ -0,0 +1,21 @@
+package org.vaadin.addon.oauthpopup;
+
+/**
+ * Generates the ids that tell which callback request belongs to which {@link OAuthData}.
+ * <p>
+ * The ids end up in the callback URI as is, both {@link OAuthCallbackInjecter.PathInjecter}
+ * and {@link OAuthCallbackInjecter.QueryInjecter} put them there without encoding,
+ * so the ids must consist of URI-safe characters only (letters, digits, '-', '_').
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @see OAuthData#setFlowIdGenerator(FlowIdGenerator)
+ */
+public interface FlowIdGenerator {
+
+	/**
+	 * Returns a new id, never returned before.
+	 */
+	public String nextId();
+
+}
@@ -0,0 +1,113 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Expires the pending flows that the user never finished.
+ * <p>
+ * One daemon thread per JVM waits on a {@link DelayQueue} of the flow deadlines.
+ * The thread is started when needed and stops after a minute without flows,
+ * so it doesn't keep running after all the flows of an undeployed application are gone.
+ * <p>
+ * Finished flows are not removed from the queue, that would be a linear scan.
+ * Instead {@link Expiry#cancel()} drops the reference to the flow
+ * and the empty expiry is discarded when its time comes.
+ */
+final class FlowSweeper implements Runnable {
+	
+	private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	
+	private static final DelayQueue<Expiry> queue = new DelayQueue<Expiry>();
+	
+	// Guarded by FlowSweeper.class
+	private static Thread thread;
+	
+	private FlowSweeper() {
+	}
+	
+	/**
+	 * Expires the flow of the handler after the timeout, unless cancelled before that.
+	 */
+	static Expiry schedule(OAuthCallbackRequestHandler handler, long timeoutMillis) {
+		Expiry expiry = new Expiry(handler, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+		queue.add(expiry);
+		ensureRunning();
+		return expiry;
+	}
+	
+	private static synchronized void ensureRunning() {
+		if (thread==null) {
+			thread = new Thread(new FlowSweeper(), "OAuthPopup flow sweeper");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			Expiry expiry;
+			try {
+				expiry = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				expiry = null;
+			}
+			if (expiry==null) {
+				synchronized (FlowSweeper.class) {
+					if (queue.isEmpty()) {
+						thread = null;
+						return;
+					}
+				}
+				continue;
+			}
+			try {
+				expiry.expire();
+			}
+			catch (RuntimeException e) {
+				Logger.getLogger(FlowSweeper.class.getName()).log(Level.WARNING, "Expiring OAuth flow failed", e);
+			}
+		}
+	}
+	
+	static final class Expiry implements Delayed {
+		
+		private volatile OAuthCallbackRequestHandler handler;
+		private final long deadline;
+		
+		private Expiry(OAuthCallbackRequestHandler handler, long deadline) {
+			this.handler = handler;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * The flow finished, no need to expire it.
+		 */
+		void cancel() {
+			handler = null;
+		}
+		
+		private void expire() {
+			OAuthCallbackRequestHandler h = handler;
+			handler = null;
+			if (h!=null) {
+				h.timeOut();
+			}
+		}
+		
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		
+		@Override
+		public int compareTo(Delayed o) {
+			long d = deadline - ((Expiry) o).deadline;
+			return d < 0 ? -1 : (d > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.scribe.builder.api.Api;
+import org.scribe.model.OAuthConstants;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verb;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
+
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+/**
+ * Sends signed requests to the API of an OAuth provider after the login,
+ * without blocking the UI.
+ * <p>
+ * The requests are signed with the access token of an {@link OAuthData},
+ * using the one Scribe service the data keeps for its settings instead of building
+ * a new one per request, and sent with the transport of the data.
+ * The asynchronous requests run on a bounded executor shared by all the clients,
+ * or on virtual threads on Java 21 and later (see {@link OAuthData#BACKGROUND_EXECUTOR}).
+ * <p>
+ * A {@link ResponseCallback} given together with a UI is called with the UI locked,
+ * after the request has completed; the lock is never held while waiting for the response:
+ *
+ * <pre>
+ * client.sendAsync(new OAuthRequest(Verb.GET, url), getUI(), new ResponseCallback() {
+ *     public void onResponse(TransportResponse response) {
+ *         label.setValue(response.getBody());
+ *     }
+ *     public void onFailure(Throwable error) {
+ *         Notification.show("Request failed");
+ *     }
+ * });
+ * </pre>
+ * The GET responses can be cached and revalidated, see {@link #setResponseCache(ApiResponseCache)}.
+ * <p>
+ * A client is serializable with its data, for example as a field of a component.
+ * An executor set with {@link #setExecutor(Executor)} and a response cache are not serialized.
+ */
+@SuppressWarnings("serial")
+public class OAuthApiClient implements Serializable {
+	
+	/**
+	 * Gets the outcome of an asynchronous request.
+	 */
+	public interface ResponseCallback {
+		public void onResponse(TransportResponse response);
+		
+		/**
+		 * @param error usually an {@link org.scribe.exceptions.OAuthException},
+		 * a {@link RejectedExecutionException} if the executor was full
+		 */
+		public void onFailure(Throwable error);
+	}
+	
+	private final OAuthData data;
+	
+	// Null for the default.
+	private transient volatile Executor executor;
+	
+	private transient volatile ApiResponseCache responseCache;
+	
+	/**
+	 * A client for the access token of the data, as it is at the time of each request:
+	 * a refreshed token is used as soon as the data has it.
+	 */
+	public OAuthApiClient(OAuthData data) {
+		this.data = data;
+	}
+	
+	/**
+	 * A client for an access token got earlier, such as from a
+	 * {@link OAuthListener#authSuccessful(String, String, String)}.
+	 */
+	public OAuthApiClient(Class<? extends Api> apiClass, String apiKey, String apiSecret, Token accessToken) {
+		this(new OAuthData(apiClass, apiKey, apiSecret));
+		// Not used for signing, but the service needs one.
+		data.setCallback(OAuthConstants.OUT_OF_BAND);
+		data.setAccessToken(accessToken);
+	}
+	
+	public OAuthData getData() {
+		return data;
+	}
+	
+	/**
+	 * Sets the executor for the asynchronous requests.
+	 * <p>
+	 * Default: a bounded pool shared by all the clients, or virtual threads on Java 21 and later.
+	 */
+	public void setExecutor(Executor executor) {
+		if (executor==null) {
+			throw new IllegalArgumentException("executor must not be null");
+		}
+		this.executor = executor;
+	}
+	
+	/**
+	 * Sets the cache for the responses to the GET requests, which may be shared by many clients.
+	 * A fresh cached response is returned without signing or sending the request,
+	 * and a stale one is revalidated with a conditional request.
+	 * <p>
+	 * Default: none.
+	 *
+	 * @param cache the cache, or null for none
+	 */
+	public void setResponseCache(ApiResponseCache cache) {
+		this.responseCache = cache;
+	}
+	
+	public ApiResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	/**
+	 * Signs and sends the request in the calling thread, or returns the cached response.
+	 *
+	 * @throws IllegalStateException if there's no access token
+	 */
+	public TransportResponse send(OAuthRequest request) {
+		ApiResponseCache cache = responseCache;
+		Token at = data.getAccessToken();
+		if (cache==null || at==null || request.getVerb()!=Verb.GET) {
+			return data.sendSignedRequest(request);
+		}
+		// Before signing, which may add parameters to the url.
+		String key = ApiResponseCache.key(at.getToken(), request.getCompleteUrl());
+		ApiResponseCache.Cached cached = cache.get(key);
+		if (cached!=null && cached.isFresh(System.currentTimeMillis())) {
+			cache.recordHit();
+			return cached.response;
+		}
+		if (cached!=null) {
+			if (cached.etag!=null) {
+				request.addHeader("If-None-Match", cached.etag);
+			}
+			if (cached.lastModified!=null) {
+				request.addHeader("If-Modified-Since", cached.lastModified);
+			}
+		}
+		TransportResponse response = data.sendSignedRequest(request);
+		long now = System.currentTimeMillis();
+		if (response.getCode()==304 && cached!=null) {
+			cache.recordRevalidation();
+			cache.put(key, cached.revalidated(response, now));
+			return cached.response;
+		}
+		cache.recordMiss();
+		ApiResponseCache.Cached fresh = ApiResponseCache.Cached.of(response, now);
+		if (fresh!=null) {
+			cache.put(key, fresh);
+		}
+		else if (cached!=null) {
+			cache.remove(key);
+		}
+		return response;
+	}
+	
+	/**
+	 * Signs and sends the request with the executor.
+	 */
+	public Future<TransportResponse> sendAsync(OAuthRequest request) {
+		return sendAsync(request, null, null);
+	}
+	
+	/**
+	 * Signs and sends the request with the executor, and gives the outcome to the callback
+	 * in the executor thread.
+	 */
+	public Future<TransportResponse> sendAsync(OAuthRequest request, ResponseCallback callback) {
+		return sendAsync(request, null, callback);
+	}
+	
+	/**
+	 * Signs and sends the request with the executor, and gives the outcome to the callback
+	 * with the UI locked, see {@link UI#access(Runnable)}. If the UI has been detached
+	 * by then, the callback is not called.
+	 *
+	 * @param ui the UI to lock for the callback, or null to call it in the executor thread
+	 * @param callback may be null
+	 */
+	public Future<TransportResponse> sendAsync(final OAuthRequest request, UI ui, ResponseCallback callback) {
+		ResponseFuture future = new ResponseFuture(new Callable<TransportResponse>() {
+			@Override
+			public TransportResponse call() {
+				return send(request);
+			}
+		}, ui, callback);
+		Executor e = executor;
+		try {
+			(e!=null ? e : OAuthExecutors.api()).execute(future);
+		}
+		catch (RejectedExecutionException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(OAuthApiClient.class.getName());
+	}
+	
+	/**
+	 * Gives the outcome to the callback when done.
+	 */
+	private static class ResponseFuture extends FutureTask<TransportResponse> {
+		private final UI ui;
+		private final ResponseCallback callback;
+		
+		ResponseFuture(Callable<TransportResponse> call, UI ui, ResponseCallback callback) {
+			super(call);
+			this.ui = ui;
+			this.callback = callback;
+		}
+		
+		void fail(Throwable t) {
+			setException(t);
+		}
+		
+		@Override
+		protected void done() {
+			if (callback==null || isCancelled()) {
+				return;
+			}
+			if (ui==null) {
+				deliver();
+				return;
+			}
+			if (ui.getSession()==null) {
+				getLogger().fine("UI detached, API response dropped");
+				return;
+			}
+			try {
+				ui.access(new Runnable() {
+					@Override
+					public void run() {
+						deliver();
+					}
+				});
+			}
+			catch (UIDetachedException e) {
+				getLogger().fine("UI detached, API response dropped");
+			}
+		}
+		
+		private void deliver() {
+			try {
+				TransportResponse response;
+				try {
+					response = get();
+				}
+				catch (ExecutionException e) {
+					callback.onFailure(e.getCause());
+					return;
+				}
+				callback.onResponse(response);
+			}
+			catch (InterruptedException e) {
+				// Done already, get() doesn't wait.
+				Thread.currentThread().interrupt();
+			}
+			catch (RuntimeException e) {
+				getLogger().log(Level.WARNING, "API response callback " + callback + " failed", e);
+			}
+		}
+	}
+}
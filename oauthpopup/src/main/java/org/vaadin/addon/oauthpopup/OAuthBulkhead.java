@@ -0,0 +1,161 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Limits the number of concurrent requests to the token endpoints of an OAuth provider.
+ * <p>
+ * A login storm would otherwise send hundreds of simultaneous token requests,
+ * get rate-limited by the provider and fail every flow. With a bulkhead,
+ * at most {@code maxConcurrent} requests are in flight; the next {@code maxQueued}
+ * wait at most {@code maxWaitMillis} for their turn, and the rest are rejected at once.
+ * A rejected or timed out request fails with a {@link RejectedException}
+ * like any other failed token request.
+ * <p>
+ * The queue is not used by requests made while holding the lock of a Vaadin session,
+ * such as the request token fetch of the popup's {@code UI.init}: waiting there would block
+ * every request of the session, the main window's too. They get a turn only if one is free
+ * at once, see {@link #acquireWithoutWaiting()}.
+ * <p>
+ * Set one per Api class with {@link OAuthData#setBulkhead(Class, OAuthBulkhead)}.
+ */
+public class OAuthBulkhead {
+	
+	/**
+	 * Thrown when a request is not let through the bulkhead.
+	 */
+	@SuppressWarnings("serial")
+	public static class RejectedException extends OAuthException {
+		public RejectedException(String message) {
+			super(message);
+		}
+	}
+	
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final long maxWaitMillis;
+	
+	// Fair, so that the queue is served in order.
+	private final Semaphore permits;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	
+	/**
+	 * @param maxConcurrent max number of requests in flight
+	 * @param maxQueued max number of requests waiting for their turn, 0 for rejecting at once;
+	 * requests under the Vaadin session lock never wait
+	 * @param maxWaitMillis max time a request waits for its turn
+	 */
+	public OAuthBulkhead(int maxConcurrent, int maxQueued, long maxWaitMillis) {
+		if (maxConcurrent <= 0) {
+			throw new IllegalArgumentException("maxConcurrent must be positive");
+		}
+		if (maxQueued < 0 || maxWaitMillis < 0) {
+			throw new IllegalArgumentException("maxQueued and maxWaitMillis must not be negative");
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.maxWaitMillis = maxWaitMillis;
+		this.permits = new Semaphore(maxConcurrent, true);
+	}
+	
+	/**
+	 * Waits for a turn, which must be given back with {@link #release()}.
+	 *
+	 * @throws RejectedException if the queue is full, the wait times out or the thread is interrupted
+	 */
+	public void acquire() {
+		// Nobody waiting, no need to queue.
+		if (queued.get()==0 && permits.tryAcquire()) {
+			return;
+		}
+		if (queued.incrementAndGet() > maxQueued) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			throw new RejectedException("Too many concurrent token requests, rejected");
+		}
+		try {
+			if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				timedOut.incrementAndGet();
+				throw new RejectedException("Waited " + maxWaitMillis + " ms for a turn to request a token, rejected");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedException("Interrupted while waiting for a turn to request a token");
+		}
+		finally {
+			queued.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Takes a turn only if one is free now and nobody is waiting for it,
+	 * which must be given back with {@link #release()}.
+	 *
+	 * @throws RejectedException otherwise
+	 */
+	public void acquireWithoutWaiting() {
+		if (queued.get()==0 && permits.tryAcquire()) {
+			return;
+		}
+		rejected.incrementAndGet();
+		throw new RejectedException("Too many concurrent token requests, rejected without waiting");
+	}
+	
+	public void release() {
+		permits.release();
+	}
+	
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+	
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+	
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+	
+	/**
+	 * The number of requests in flight now.
+	 */
+	public int getActive() {
+		return maxConcurrent - permits.availablePermits();
+	}
+	
+	/**
+	 * The number of requests waiting for their turn now.
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+	
+	/**
+	 * The number of requests rejected because the queue was full, since the start.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * The number of requests that waited in the queue for too long, since the start.
+	 */
+	public long getTimedOutCount() {
+		return timedOut.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "OAuthBulkhead[active=" + getActive() + "/" + maxConcurrent
+				+ ", queued=" + getQueued() + "/" + maxQueued
+				+ ", rejected=" + getRejectedCount() + ", timedOut=" + getTimedOutCount() + "]";
+	}
+}
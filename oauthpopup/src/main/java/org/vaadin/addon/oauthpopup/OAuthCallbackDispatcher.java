@@ -0,0 +1,382 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.scribe.model.Token;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Phase;
+import org.vaadin.addon.oauthpopup.store.PendingFlowStore;
+
+import com.vaadin.server.RequestHandler;
+import com.vaadin.server.SessionInitEvent;
+import com.vaadin.server.SessionInitListener;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.ApplicationConstants;
+
+/**
+ * The single request handler of a session that routes OAuth callbacks
+ * to the pending flows.
+ * <p>
+ * There's one dispatcher per {@link VaadinSession}, stored as a session attribute
+ * and registered as a request handler by {@link #get(VaadinSession)}.
+ * It keeps
+ * <ul>
+ * <li>the {@link OAuthData} of the attached {@link OAuthPopupOpener}s, by id,
+ * for the popup windows to find</li>
+ * <li>the {@link OAuthCallbackRequestHandler}s of the flows waiting for a callback, by id</li>
+ * </ul>
+ * Vaadin runs every request of the session through every request handler,
+ * so the non-callback requests are rejected as cheaply as possible:
+ * without pending flows, or by the path prefix of UIDL, push and heartbeat requests.
+ * Others are looked up from the pending flows with the id extracted
+ * by each {@link OAuthCallbackInjecter} in use.
+ * <p>
+ * The dispatcher also serves the lightweight popup redirect endpoint at {@link #REDIRECT_PATH},
+ * see {@link OAuthPopupOpener#setRedirectEndpointEnabled(boolean)}.
+ * <p>
+ * When the session is serialized, the pending flows are written as {@link PendingFlow} records.
+ * After deserialization, the handlers are rebuilt from them on the first request,
+ * for the flows whose {@link OAuthData} is still registered.
+ * <p>
+ * In a cluster without sticky sessions, the callback may come to a node
+ * that doesn't have the session that started the flow,
+ * see {@link #setPendingFlowStore(PendingFlowStore)}.
+ */
+@SuppressWarnings("serial")
+public class OAuthCallbackDispatcher implements RequestHandler {
+	
+	/**
+	 * The path of the redirect endpoint, relative to the application root.
+	 */
+	public static final String REDIRECT_PATH = "APP/oauthpopup/redirect";
+	
+	/**
+	 * The redirect endpoint URL in the form understood by the Vaadin client.
+	 */
+	public static final String REDIRECT_URL = "app://" + REDIRECT_PATH;
+	
+	private static final String REDIRECT_PATH_INFO = "/" + REDIRECT_PATH;
+	
+	// The path info prefixes of the UIDL, push and heartbeat requests, never callbacks.
+	private static final String[] FRAMEWORK_PATH_PREFIXES = {
+		"/" + ApplicationConstants.UIDL_PATH + "/",
+		"/" + ApplicationConstants.PUSH_PATH + "/",
+		"/" + ApplicationConstants.HEARTBEAT_PATH + "/"
+	};
+	
+	// The injecters a callback of another node may have been injected with.
+	private static final OAuthCallbackInjecter[] BUILTIN_INJECTERS = {
+		OAuthCallbackInjecter.QUERY_INJECTER, OAuthCallbackInjecter.PATH_INJECTER
+	};
+	
+	private static volatile PendingFlowStore pendingFlowStore;
+	
+	// The fields are written by writeObject, and not final so that readObject can set them up again.
+	
+	private transient ConcurrentMap<String, OAuthData> datas = new ConcurrentHashMap<String, OAuthData>();
+	
+	private transient ConcurrentMap<String, OAuthCallbackRequestHandler> pendingFlows =
+			new ConcurrentHashMap<String, OAuthCallbackRequestHandler>();
+	
+	// The distinct injecters of the pending flows, usually just one.
+	private transient Set<OAuthCallbackInjecter> injecters = new CopyOnWriteArraySet<OAuthCallbackInjecter>();
+	
+	// Read from the stream, not yet turned back into handlers.
+	private transient volatile List<PendingFlow> restoredFlows;
+	
+	/**
+	 * Returns the dispatcher of the session, creating and registering it if needed.
+	 * <p>
+	 * The session must be locked.
+	 */
+	public static OAuthCallbackDispatcher get(VaadinSession session) {
+		OAuthCallbackDispatcher dispatcher = session.getAttribute(OAuthCallbackDispatcher.class);
+		if (dispatcher==null) {
+			dispatcher = new OAuthCallbackDispatcher();
+			session.setAttribute(OAuthCallbackDispatcher.class, dispatcher);
+			session.addRequestHandler(dispatcher);
+		}
+		return dispatcher;
+	}
+	
+	/**
+	 * Sets the store where the pending flows are shared with the other nodes of the cluster.
+	 * <p>
+	 * With a store, a callback can come to any node:
+	 * <ol>
+	 * <li>every flow is also put to the store, with this node as its origin</li>
+	 * <li>a node that gets a callback of a flow that's not its own records the callback
+	 * parameters to the store and closes the popup</li>
+	 * <li>the origin node picks up the parameters from the store within a fraction of a second,
+	 * exchanges them for the access token and notifies the listeners as usual</li>
+	 * </ol>
+	 * For the other nodes to see the callbacks, each new session needs a dispatcher,
+	 * see {@link #registerForAllSessions(VaadinService)}. Only flows using
+	 * the built-in {@link OAuthCallbackInjecter}s can be completed by another node.
+	 * <p>
+	 * Default: null, the callback must come to the session that started the flow.
+	 */
+	public static void setPendingFlowStore(PendingFlowStore store) {
+		pendingFlowStore = store;
+	}
+	
+	public static PendingFlowStore getPendingFlowStore() {
+		return pendingFlowStore;
+	}
+	
+	/**
+	 * Registers a dispatcher to every new session of the service,
+	 * so that also the nodes without the session that started a flow see its callback.
+	 * Call once, for example from {@code VaadinServlet.servletInitialized()}.
+	 */
+	@SuppressWarnings("serial")
+	public static void registerForAllSessions(VaadinService service) {
+		service.addSessionInitListener(new SessionInitListener() {
+			@Override
+			public void sessionInit(SessionInitEvent event) {
+				get(event.getSession());
+			}
+		});
+	}
+	
+	public void register(OAuthData data) {
+		datas.put(data.getId(), data);
+	}
+	
+	public void unregister(OAuthData data) {
+		datas.remove(data.getId(), data);
+	}
+	
+	/**
+	 * Returns the registered {@link OAuthData} with the given id, or null.
+	 */
+	public OAuthData getData(String id) {
+		return id==null ? null : datas.get(id);
+	}
+	
+	/**
+	 * Starts waiting for the callback of the flow of the handler,
+	 * until the flow timeout of its {@link OAuthData}.
+	 * <p>
+	 * Replaces the previous pending flow of the same {@link OAuthData}, if any.
+	 */
+	public synchronized void addPendingFlow(OAuthCallbackRequestHandler handler) {
+		handler.setDispatcher(this);
+		injecters.add(handler.getInjecter());
+		OAuthCallbackRequestHandler previous = pendingFlows.put(handler.getData().getId(), handler);
+		if (previous!=null && previous!=handler) {
+			previous.cancelTimeout();
+			RemoteCallbackPoller.remove(previous);
+		}
+		handler.startTimeout();
+		PendingFlowStore store = pendingFlowStore;
+		if (store!=null) {
+			store.put(handler.toPendingFlow());
+			RemoteCallbackPoller.add(handler);
+		}
+	}
+	
+	/**
+	 * Stops waiting for the callback of the flow of the handler.
+	 */
+	public synchronized void removePendingFlow(OAuthCallbackRequestHandler handler) {
+		if (!pendingFlows.remove(handler.getData().getId(), handler)) {
+			return;
+		}
+		RemoteCallbackPoller.remove(handler);
+		PendingFlowStore store = pendingFlowStore;
+		if (store!=null) {
+			store.remove(handler.getData().getId());
+		}
+		OAuthCallbackInjecter injecter = handler.getInjecter();
+		for (OAuthCallbackRequestHandler other : pendingFlows.values()) {
+			if (other.getInjecter()==injecter) {
+				return;
+			}
+		}
+		injecters.remove(injecter);
+	}
+	
+	public int getPendingFlowCount() {
+		restorePendingFlows();
+		return pendingFlows.size();
+	}
+	
+	@Override
+	public boolean handleRequest(VaadinSession session, VaadinRequest request,
+			VaadinResponse response) throws IOException {
+		restorePendingFlows();
+		if (isRedirectRequest(request)) {
+			return handleRedirect(request, response);
+		}
+		PendingFlowStore store = pendingFlowStore;
+		if ((pendingFlows.isEmpty() && store==null) || isFrameworkRequest(request)) {
+			return false;
+		}
+		for (OAuthCallbackInjecter injecter : injecters) {
+			String id = injecter.extractIdFromCallback(request);
+			if (id==null) {
+				continue;
+			}
+			OAuthCallbackRequestHandler handler = pendingFlows.get(id);
+			if (handler!=null) {
+				return handler.handleCallback(session, request, response);
+			}
+		}
+		return store!=null && handleRemoteCallback(store, request, response);
+	}
+	
+	/**
+	 * Records the callback of a flow started by another node or session
+	 * for the origin to pick up, and closes the popup.
+	 */
+	private boolean handleRemoteCallback(PendingFlowStore store, VaadinRequest request,
+			VaadinResponse response) throws IOException {
+		for (OAuthCallbackInjecter injecter : BUILTIN_INJECTERS) {
+			String id = injecter.extractIdFromCallback(request);
+			if (id==null || pendingFlows.containsKey(id)) {
+				continue;
+			}
+			PendingFlow flow = store.get(id);
+			if (flow==null) {
+				continue;
+			}
+			Map<String, String> params = new HashMap<String, String>();
+			for (Map.Entry<String, String[]> e : request.getParameterMap().entrySet()) {
+				String[] values = e.getValue();
+				if (values!=null && values.length > 0) {
+					params.put(e.getKey(), values[0]);
+				}
+			}
+			// False for a repeated callback, the popup is closed anyway.
+			store.complete(id, params);
+			OAuthCallbackRequestHandler.writeCloseWindow(response);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Starts a new flow and redirects the popup window straight to the
+	 * authorization url, instead of bootstrapping a {@link OAuthPopupUI} to do that.
+	 */
+	private boolean handleRedirect(VaadinRequest request, VaadinResponse response) throws IOException {
+		long start = System.nanoTime();
+		OAuthData data = getData(request.getParameter(OAuthPopupUI.DATA_PARAM_NAME));
+		if (data==null) {
+			response.sendError(404, "No OAuth data found. "
+					+ "Please use OAuthPopupButton or some of its subclass to open OAuthPopup.");
+			return true;
+		}
+		if (data.useStoredToken()) {
+			OAuthCallbackRequestHandler.writeCloseWindow(response);
+			return true;
+		}
+		Token requestToken;
+		try {
+			requestToken = data.takeRequestToken();
+		}
+		catch (OAuthCircuitBreaker.OpenException e) {
+			// Fail fast instead of sending the user to a provider that's down.
+			data.setFailed(e.getMessage());
+			OAuthCallbackRequestHandler.writeCloseWindow(response);
+			return true;
+		}
+		addPendingFlow(new OAuthCallbackRequestHandler(requestToken, data));
+		response.setCacheTime(0);
+		response.setStatus(302);
+		response.setHeader("Location", data.getAuthorizationUrl(requestToken));
+		data.recordPhase(Phase.AUTHORIZATION_REDIRECT, start);
+		return true;
+	}
+	
+	private void restorePendingFlows() {
+		if (restoredFlows==null) {
+			return;
+		}
+		synchronized (this) {
+			List<PendingFlow> flows = restoredFlows;
+			if (flows==null) {
+				return;
+			}
+			restoredFlows = null;
+			for (PendingFlow flow : flows) {
+				OAuthData data = getData(flow.getId());
+				// The opener may have been detached, or the class renamed in between.
+				if (data!=null && data.getApiClass().getName().equals(flow.getApiClassName())
+						&& !pendingFlows.containsKey(flow.getId())) {
+					addPendingFlow(OAuthCallbackRequestHandler.restore(flow, data));
+				}
+			}
+		}
+	}
+	
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		List<OAuthData> registered = new ArrayList<OAuthData>(datas.values());
+		out.writeInt(registered.size());
+		for (OAuthData data : registered) {
+			out.writeObject(data);
+		}
+		List<PendingFlow> flows = new ArrayList<PendingFlow>();
+		for (OAuthCallbackRequestHandler handler : pendingFlows.values()) {
+			flows.add(handler.toPendingFlow());
+		}
+		List<PendingFlow> restored = restoredFlows;
+		if (restored!=null) {
+			flows.addAll(restored);
+		}
+		out.writeInt(flows.size());
+		for (PendingFlow flow : flows) {
+			out.writeObject(flow);
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		datas = new ConcurrentHashMap<String, OAuthData>();
+		pendingFlows = new ConcurrentHashMap<String, OAuthCallbackRequestHandler>();
+		injecters = new CopyOnWriteArraySet<OAuthCallbackInjecter>();
+		for (int i=in.readInt(); i>0; --i) {
+			OAuthData data = (OAuthData) in.readObject();
+			datas.put(data.getId(), data);
+		}
+		int count = in.readInt();
+		if (count > 0) {
+			List<PendingFlow> flows = new ArrayList<PendingFlow>(count);
+			for (int i=0; i<count; ++i) {
+				flows.add((PendingFlow) in.readObject());
+			}
+			restoredFlows = flows;
+		}
+	}
+	
+	private static boolean isRedirectRequest(VaadinRequest request) {
+		return REDIRECT_PATH_INFO.equals(request.getPathInfo());
+	}
+	
+	static boolean isFrameworkRequest(VaadinRequest request) {
+		String pathInfo = request.getPathInfo();
+		if (pathInfo==null) {
+			return false;
+		}
+		for (String prefix : FRAMEWORK_PATH_PREFIXES) {
+			if (pathInfo.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
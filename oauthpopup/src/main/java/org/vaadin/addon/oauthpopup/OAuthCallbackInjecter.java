@@ -1,5 +1,6 @@
 package org.vaadin.addon.oauthpopup;
 
+import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -45,7 +46,8 @@ public interface OAuthCallbackInjecter {
 	 * CALLBACK_URI/oauthcallback/ID
 	 *
 	 */
-	public class PathInjecter implements OAuthCallbackInjecter {
+	@SuppressWarnings("serial")
+	public class PathInjecter implements OAuthCallbackInjecter, Serializable {
 
 		@Override
 		public String injectIdToCallback(String callback, String id) {
@@ -68,15 +70,25 @@ public interface OAuthCallbackInjecter {
 			if (path==null) {
 				return null;
 			}
-			String[] pathParts = path.split("/");
-			int len = pathParts.length;
-			if (len < 2) {
+			// Scanning from the end instead of splitting: this is run for
+			// every non-framework request of the session, mostly not callbacks.
+			// The trailing slashes are ignored, the id is the last segment
+			// and the one right before it must be the callback id name.
+			int end = path.length();
+			while (end > 0 && path.charAt(end-1)=='/') {
+				--end;
+			}
+			int idStart = path.lastIndexOf('/', end-1) + 1;
+			if (idStart==0) {
 				return null;
 			}
-			if (!CALLBACK_ID_NAME.equals(pathParts[len-2])) {
+			int nameEnd = idStart - 1;
+			int nameStart = nameEnd - CALLBACK_ID_NAME.length();
+			if (nameStart < 0 || (nameStart > 0 && path.charAt(nameStart-1)!='/')
+					|| !path.regionMatches(nameStart, CALLBACK_ID_NAME, 0, CALLBACK_ID_NAME.length())) {
 				return null;
 			}
-			return pathParts[len-1];
+			return path.substring(idStart, end);
 		}
 		
 	}
@@ -86,7 +98,8 @@ public interface OAuthCallbackInjecter {
 	 * CALLBACK_URI?oauthcallback=ID
 	 *
 	 */
-	public class QueryInjecter implements OAuthCallbackInjecter {
+	@SuppressWarnings("serial")
+	public class QueryInjecter implements OAuthCallbackInjecter, Serializable {
 
 		@Override
 		public String injectIdToCallback(String callback, String id) {
@@ -1,9 +1,18 @@
 package org.vaadin.addon.oauthpopup;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.scribe.exceptions.OAuthException;
 import org.scribe.model.Token;
 import org.scribe.model.Verifier;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Phase;
+import org.vaadin.addon.oauthpopup.store.PendingFlowStore;
 
 import com.vaadin.server.RequestHandler;
 import com.vaadin.server.VaadinRequest;
@@ -13,7 +22,16 @@ import com.vaadin.server.VaadinSession;
 /**
  * Handles the callback from the OAuth authorization url.
  * <p>
+ * Normally not added to the session directly but as a pending flow
+ * of the {@link OAuthCallbackDispatcher} of the session.
+ * <p>
  * When done, closes the window and removes this handler.
+ * <p>
+ * If the user doesn't come back in {@link OAuthData#getFlowTimeoutMillis()},
+ * the flow times out: the handler is removed and the {@link OAuthTimeoutListener}s are notified.
+ * <p>
+ * When the session is serialized, the dispatcher stores a pending flow
+ * as a {@link PendingFlow} record and rebuilds the handler from it.
  *
  */
 @SuppressWarnings("serial")
@@ -21,6 +39,18 @@ public class OAuthCallbackRequestHandler implements RequestHandler {
 
 	private final Token requestToken;
 	private final OAuthData data;
+	private final OAuthCallbackInjecter injecter;
+	
+	// When the user was sent to the authorization url, roughly.
+	// The nanos are for the metrics, the millis survive serialization.
+	private final long createdNanos;
+	private final long createdMillis;
+	
+	private volatile OAuthCallbackDispatcher dispatcher;
+	private volatile FlowSweeper.Expiry expiry;
+	
+	// Set when the callback has been handled or the flow has timed out.
+	private final AtomicBoolean finished = new AtomicBoolean();
 
 	private static final String CLOSE_WINDOW_HTML =
 			"<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"utf-8\"/>" +
@@ -35,8 +65,62 @@ public class OAuthCallbackRequestHandler implements RequestHandler {
 	 * @param data
 	 */
 	public OAuthCallbackRequestHandler(Token requestToken, OAuthData data) {
+		this(requestToken, data, System.currentTimeMillis());
+	}
+	
+	private OAuthCallbackRequestHandler(Token requestToken, OAuthData data, long createdMillis) {
 		this.requestToken = requestToken;
 		this.data = data;
+		this.injecter = data.getSettings().getInjecter();
+		this.createdMillis = createdMillis;
+		long age = Math.max(0, System.currentTimeMillis() - createdMillis);
+		this.createdNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(age);
+	}
+	
+	/**
+	 * Continues a flow of a deserialized session.
+	 */
+	static OAuthCallbackRequestHandler restore(PendingFlow flow, OAuthData data) {
+		return new OAuthCallbackRequestHandler(flow.getRequestToken(), data, flow.getCreatedMillis());
+	}
+	
+	PendingFlow toPendingFlow() {
+		return new PendingFlow(data.getId(), data.getApiClass().getName(), requestToken, createdMillis,
+				DefaultFlowIdGenerator.localNode());
+	}
+	
+	public OAuthData getData() {
+		return data;
+	}
+	
+	OAuthCallbackInjecter getInjecter() {
+		return injecter;
+	}
+	
+	void setDispatcher(OAuthCallbackDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+	
+	/**
+	 * Starts the timeout of the flow, if any, counting from when the flow started.
+	 */
+	void startTimeout() {
+		long timeout = data.getFlowTimeoutMillis();
+		if (timeout > 0) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos);
+			expiry = FlowSweeper.schedule(this, Math.max(1, timeout - elapsed));
+		}
+	}
+	
+	/**
+	 * Called by the {@link FlowSweeper} when the flow has waited for too long.
+	 */
+	void timeOut() {
+		if (!finished.compareAndSet(false, true)) {
+			return;
+		}
+		removeFromDispatcher();
+		data.setTimedOut();
 	}
 
 	@Override
@@ -46,13 +130,72 @@ public class OAuthCallbackRequestHandler implements RequestHandler {
 		if (!data.isCallbackForMe(request)) {
 			return false;
 		}
+		return handleCallback(session, request, response);
+	}
+	
+	/**
+	 * Handles a request already known to be the callback of this flow.
+	 */
+	boolean handleCallback(VaadinSession session,
+			VaadinRequest request, VaadinResponse response) throws IOException {
+		
+		if (!finished.compareAndSet(false, true)) {
+			// Timed out just now.
+			finish(session, response);
+			return true;
+		}
+		complete(getCallbackParameters(request));
+		finish(session, response);
+		return true;
+	}
+	
+	/**
+	 * The parameters of the callback this flow cares about.
+	 */
+	private Map<String, String> getCallbackParameters(VaadinRequest request) {
+		Map<String, String> params = new HashMap<String, String>(4);
+		String name = data.getVerifierParameterName();
+		params.put(name, request.getParameter(name));
+		for (String errorName : data.getErrorParameterNames()) {
+			params.put(errorName, request.getParameter(errorName));
+		}
+		return params;
+	}
+	
+	/**
+	 * Handles the callback that came to another node, recorded in the {@link PendingFlowStore}.
+	 * The popup has already been closed there.
+	 */
+	void handleRemoteCallback(Map<String, String> callbackParameters) {
+		if (!finished.compareAndSet(false, true)) {
+			return;
+		}
+		removeFromDispatcher();
+		complete(callbackParameters);
+	}
+	
+	private void complete(Map<String, String> callbackParameters) {
+		data.recordPhase(Phase.USER_AUTHORIZATION, createdNanos);
 
-		String verifier = request.getParameter(data.getVerifierParameterName());
+		String verifier = callbackParameters.get(data.getVerifierParameterName());
 		if (verifier != null) {
 			// Got verifier!
-			data.setVerifier(requestToken, new Verifier(verifier));
-			finish(session, response);
-			return true;
+			if (data.isAsyncExchange()) {
+				// No need to keep the popup (and this thread) waiting,
+				// the listeners get called when the exchange is done.
+				data.setVerifierAsync(requestToken, new Verifier(verifier));
+			}
+			else {
+				try {
+					data.setVerifier(requestToken, new Verifier(verifier));
+				}
+				catch (OAuthException e) {
+					// Still one notification per flow, as with the async exchange.
+					getLogger().log(Level.WARNING, "Access token exchange failed", e);
+					data.setFailed(e.getMessage());
+				}
+			}
+			return;
 		}
 		
 		// No verifier in the parameters. That's most likely because the user
@@ -62,7 +205,7 @@ public class OAuthCallbackRequestHandler implements RequestHandler {
 		
 		String error = null;
 		for (String errorName : data.getErrorParameterNames()) {
-			error = request.getParameter(errorName);
+			error = callbackParameters.get(errorName);
 			if (error != null) {
 				break;
 			}
@@ -77,20 +220,25 @@ public class OAuthCallbackRequestHandler implements RequestHandler {
 		}
 		
 		data.setDenied(errorMessage);
-		finish(session, response);
-		return true;
 	}
 
 	private void finish(VaadinSession session, VaadinResponse response) throws IOException {
+		writeCloseWindow(response);
+		cleanUpSession(session);
+	}
+	
+	static void writeCloseWindow(VaadinResponse response) throws IOException {
 		response.setContentType("text/html");
 		response.getWriter().append(CLOSE_WINDOW_HTML);
-		cleanUpSession(session);
 	}
 	
 	// NOTE: the finish() method above is not called if the user
 	// doesn't browse back from the OAuth authentication page.
 	// That's why we make cleanUpSession public so that others can clean up also.
 	public void cleanUpSession(final VaadinSession session) {
+		if (removeFromDispatcher()) {
+			return;
+		}
 		session.access(new Runnable() {
 			@Override
 			public void run() {
@@ -98,5 +246,26 @@ public class OAuthCallbackRequestHandler implements RequestHandler {
 			}
 		});
 	}
+	
+	void cancelTimeout() {
+		FlowSweeper.Expiry e = expiry;
+		if (e!=null) {
+			e.cancel();
+		}
+	}
+	
+	private boolean removeFromDispatcher() {
+		cancelTimeout();
+		OAuthCallbackDispatcher d = dispatcher;
+		if (d!=null) {
+			d.removePendingFlow(this);
+			return true;
+		}
+		return false;
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(OAuthCallbackRequestHandler.class.getName());
+	}
 
 }
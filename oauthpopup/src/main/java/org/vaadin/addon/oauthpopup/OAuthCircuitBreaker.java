@@ -0,0 +1,203 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Stops sending requests to the token endpoints of an OAuth provider that is down.
+ * <p>
+ * Without a breaker, every flow started during an outage waits for the socket
+ * to time out before failing. After {@code failureThreshold} consecutive failed
+ * token requests the breaker opens, and for the next {@code openMillis} the requests
+ * fail at once with an {@link OpenException}: the popup closes and the listeners get
+ * {@link OAuthListener#authDenied(String)} with {@value #PROVIDER_UNAVAILABLE} as the reason.
+ * Then a single probe request is let through (half-open): if it succeeds the breaker
+ * closes, otherwise it stays open for another period.
+ * <p>
+ * Fetching a request token is idempotent, so a failed fetch is retried up to
+ * {@code retries} times, after {@code retryBackoffMillis} doubled on each retry,
+ * with a random jitter of &plusmn;50% so that the flows don't retry in lockstep.
+ * The retries wait on the calling thread, so they are only done off the Vaadin session lock,
+ * for example when prefetching; a fetch from {@code UI.init} fails at the first error.
+ * The access token exchange and the token refresh are not retried:
+ * the verifier and the refresh token may be good for one use only.
+ * <p>
+ * Set one per Api class with {@link OAuthData#setCircuitBreaker(Class, OAuthCircuitBreaker)}.
+ */
+public class OAuthCircuitBreaker {
+	
+	/**
+	 * The reason given to {@link OAuthListener#authDenied(String)} while the breaker is open.
+	 */
+	public static final String PROVIDER_UNAVAILABLE = "provider unavailable";
+	
+	public enum State {
+		CLOSED,
+		OPEN,
+		/**
+		 * A probe request is being let through.
+		 */
+		HALF_OPEN
+	}
+	
+	/**
+	 * Thrown instead of sending a request while the breaker is open.
+	 */
+	@SuppressWarnings("serial")
+	public static class OpenException extends OAuthException {
+		public OpenException() {
+			super(PROVIDER_UNAVAILABLE);
+		}
+	}
+	
+	private static final Random jitter = new Random();
+	
+	private final int failureThreshold;
+	private final long openMillis;
+	private final int retries;
+	private final long retryBackoffMillis;
+	
+	// Written only when holding the lock of this, read without it on the fast path.
+	private volatile State state = State.CLOSED;
+	private volatile int failures;
+	// While open: when to let a probe through. While half-open: when to give up waiting for the probe.
+	private long openUntil;
+	
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong opened = new AtomicLong();
+	
+	/**
+	 * A breaker that doesn't retry.
+	 */
+	public OAuthCircuitBreaker(int failureThreshold, long openMillis) {
+		this(failureThreshold, openMillis, 0, 0);
+	}
+	
+	/**
+	 * @param failureThreshold the number of consecutive failures that opens the breaker
+	 * @param openMillis how long the breaker stays open before a probe
+	 * @param retries max number of retries of a failed request token fetch
+	 * @param retryBackoffMillis the delay before the first retry
+	 */
+	public OAuthCircuitBreaker(int failureThreshold, long openMillis, int retries, long retryBackoffMillis) {
+		if (failureThreshold <= 0 || openMillis <= 0) {
+			throw new IllegalArgumentException("failureThreshold and openMillis must be positive");
+		}
+		if (retries < 0 || retryBackoffMillis < 0) {
+			throw new IllegalArgumentException("retries and retryBackoffMillis must not be negative");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+		this.retries = retries;
+		this.retryBackoffMillis = retryBackoffMillis;
+	}
+	
+	/**
+	 * Checks that a request may be sent, call {@link #onSuccess()} or {@link #onFailure()} after it.
+	 *
+	 * @throws OpenException if the breaker is open
+	 */
+	public void acquire() {
+		if (state==State.CLOSED) {
+			return;
+		}
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (state==State.CLOSED) {
+				return;
+			}
+			if (now >= openUntil) {
+				// This one is the probe. If it never reports back, another one is let through later.
+				state = State.HALF_OPEN;
+				openUntil = now + openMillis;
+				return;
+			}
+		}
+		rejected.incrementAndGet();
+		throw new OpenException();
+	}
+	
+	public void onSuccess() {
+		if (state==State.CLOSED && failures==0) {
+			return;
+		}
+		synchronized (this) {
+			state = State.CLOSED;
+			failures = 0;
+		}
+	}
+	
+	public synchronized void onFailure() {
+		if (state==State.HALF_OPEN || (state==State.CLOSED && ++failures >= failureThreshold)) {
+			state = State.OPEN;
+			openUntil = System.currentTimeMillis() + openMillis;
+			opened.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Waits before a retry of a failed request.
+	 *
+	 * @param attempt the number of the failed attempt, from 0
+	 * @return false if there are no retries left, or the thread was interrupted
+	 */
+	boolean backOff(int attempt) {
+		if (attempt >= retries) {
+			return false;
+		}
+		long delay = (long) ((retryBackoffMillis << Math.min(attempt, 16)) * (0.5 + nextJitter()));
+		try {
+			Thread.sleep(delay);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	private static synchronized double nextJitter() {
+		return jitter.nextDouble();
+	}
+	
+	public State getState() {
+		return state;
+	}
+	
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+	
+	public long getOpenMillis() {
+		return openMillis;
+	}
+	
+	public int getRetries() {
+		return retries;
+	}
+	
+	public long getRetryBackoffMillis() {
+		return retryBackoffMillis;
+	}
+	
+	/**
+	 * The number of requests failed fast because the breaker was open, since the start.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * How many times the breaker has opened, since the start.
+	 */
+	public long getOpenedCount() {
+		return opened.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "OAuthCircuitBreaker[" + state + ", opened=" + getOpenedCount()
+				+ ", rejected=" + getRejectedCount() + "]";
+	}
+}
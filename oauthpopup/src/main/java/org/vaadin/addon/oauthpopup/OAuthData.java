@@ -1,65 +1,241 @@
 package org.vaadin.addon.oauthpopup;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.scribe.builder.api.Api;
+import org.scribe.builder.api.DefaultApi10a;
 import org.scribe.builder.api.DefaultApi20;
 import org.scribe.exceptions.OAuthException;
 import org.scribe.model.OAuthConfig;
+import org.scribe.model.OAuthRequest;
 import org.scribe.model.SignatureType;
 import org.scribe.model.Token;
 import org.scribe.model.Verifier;
 import org.scribe.oauth.OAuthService;
+import org.vaadin.addon.oauthpopup.metrics.InMemoryMetrics;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Outcome;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Phase;
+import org.vaadin.addon.oauthpopup.store.TokenStore;
+import org.vaadin.addon.oauthpopup.transport.OAuthTransport;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
 
 import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinSession;
 
 /**
  * Thread-safe class for storing OAuth data.
  * <p>
  * Works as an intermediary between two browser windows:
  * the OAuthPopup window and the Vaadin window containing the OAuthPopupButton.
+ * <p>
+ * The settings are kept in an immutable {@link Settings} snapshot that is
+ * replaced as a whole by the setters. The OAuth service is built from
+ * a snapshot and the access token is published with a volatile write,
+ * so no lock is held while Scribe talks to the OAuth service,
+ * and the getters never wait for a network round trip.
+ * <p>
+ * The requests to the OAuth service are sent with an {@link OAuthTransport},
+ * see {@link #setTransport(OAuthTransport)}.
+ * <p>
+ * When serialized with the session, only the id, the Api, the key and secret,
+ * the settings, the access token (without its raw response) and the serializable
+ * listeners are written. The service, the prefetched request tokens and
+ * the rest are built again when needed. An exchange executor, token store
+ * or transport that is not serializable is left out, which means the
+ * defaults after deserialization. The token refresh is not carried over.
  */
-public class OAuthData {
+@SuppressWarnings("serial")
+public class OAuthData implements Serializable {
+	
+	/**
+	 * The default of {@link #setFlowTimeoutMillis(long)}, 15 minutes.
+	 */
+	public static final long DEFAULT_FLOW_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(15);
+	
+	/**
+	 * Max number of prefetched request tokens per OAuthData,
+	 * see {@link #setRequestTokenPrefetchEnabled(boolean)}.
+	 */
+	public static final int REQUEST_TOKEN_POOL_SIZE = 1;
+	
+	/**
+	 * Prefetched request tokens older than this are not used, 5 minutes.
+	 */
+	public static final long REQUEST_TOKEN_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	
+	/**
+	 * An exchange executor running the exchanges on the background threads of the add-on,
+	 * see {@link #setExchangeExecutor(Executor)}. Those are virtual threads on Java 21 and later,
+	 * a small bounded pool before that.
+	 * <p>
+	 * Unlike other executors, this one stays set when the session is serialized.
+	 */
+	public static final Executor BACKGROUND_EXECUTOR = new BackgroundExecutor();
+	
+	private static volatile FlowIdGenerator idGenerator = new DefaultFlowIdGenerator();
+	
+	/**
+	 * Sets the generator for the ids of new OAuthData instances.
+	 * <p>
+	 * Default: {@link DefaultFlowIdGenerator}
+	 */
+	public static void setFlowIdGenerator(FlowIdGenerator generator) {
+		if (generator==null) {
+			throw new IllegalArgumentException("generator must not be null");
+		}
+		idGenerator = generator;
+	}
+	
+	public static FlowIdGenerator getFlowIdGenerator() {
+		return idGenerator;
+	}
+	
+	private static volatile OAuthMetrics metrics = new InMemoryMetrics();
+	
+	/**
+	 * Sets where the timings and outcomes of all the flows are recorded.
+	 * <p>
+	 * Default: an {@link InMemoryMetrics}. Use {@link OAuthMetrics#NONE} to turn the metrics off.
+	 */
+	public static void setMetrics(OAuthMetrics m) {
+		if (m==null) {
+			throw new IllegalArgumentException("metrics must not be null");
+		}
+		metrics = m;
+	}
 	
-	static long latestId = 0;
-	synchronized public String nextId() {
-		return ""+(++latestId);
+	public static OAuthMetrics getMetrics() {
+		return metrics;
 	}
 	
-	private List<OAuthListener> listeners = new CopyOnWriteArrayList<OAuthListener>();
+	private static final ConcurrentHashMap<Class<? extends Api>, OAuthBulkhead> bulkheads =
+			new ConcurrentHashMap<Class<? extends Api>, OAuthBulkhead>();
+	
+	/**
+	 * Sets the bulkhead limiting the concurrent requests to the token endpoints
+	 * of the Api: request tokens, access tokens and token refreshes.
+	 * Shared by all the OAuthData instances using the Api class.
+	 * <p>
+	 * Requests made while holding the Vaadin session lock don't wait in its queue.
+	 * <p>
+	 * Default: none, no limit.
+	 * 
+	 * @param bulkhead the bulkhead, or null to remove the limit
+	 */
+	public static void setBulkhead(Class<? extends Api> apiClass, OAuthBulkhead bulkhead) {
+		if (bulkhead==null) {
+			bulkheads.remove(apiClass);
+		}
+		else {
+			bulkheads.put(apiClass, bulkhead);
+		}
+	}
+	
+	/**
+	 * Returns the bulkhead of the Api class, or null.
+	 */
+	public static OAuthBulkhead getBulkhead(Class<? extends Api> apiClass) {
+		return bulkheads.get(apiClass);
+	}
+	
+	private static final ConcurrentHashMap<Class<? extends Api>, OAuthCircuitBreaker> circuitBreakers =
+			new ConcurrentHashMap<Class<? extends Api>, OAuthCircuitBreaker>();
+	
+	/**
+	 * Sets the circuit breaker for the requests to the token endpoints of the Api,
+	 * also deciding how failed request token fetches are retried.
+	 * Shared by all the OAuthData instances using the Api class.
+	 * <p>
+	 * Default: none, every request is sent and nothing is retried.
+	 * 
+	 * @param breaker the circuit breaker, or null to remove it
+	 */
+	public static void setCircuitBreaker(Class<? extends Api> apiClass, OAuthCircuitBreaker breaker) {
+		if (breaker==null) {
+			circuitBreakers.remove(apiClass);
+		}
+		else {
+			circuitBreakers.put(apiClass, breaker);
+		}
+	}
+	
+	/**
+	 * Returns the circuit breaker of the Api class, or null.
+	 */
+	public static OAuthCircuitBreaker getCircuitBreaker(Class<? extends Api> apiClass) {
+		return circuitBreakers.get(apiClass);
+	}
+	
+	public String nextId() {
+		return idGenerator.nextId();
+	}
 	
 	private final String id;
 	private final Class<? extends Api> apiClass;
 	private final String apiKey;
 	private final String apiSecret;
 	
-	private String callback;
-	private String scope;
+	private volatile Settings settings = new Settings();
 	
-	private String verifierParameterName;
-	private List<String> errorParameterNames;
+	// The rest is written by writeObject, or not at all,
+	// and not final so that readObject can set it up again.
 	
-	private Token accessToken;
-
-	private OAuthService service;
-
-	private OAuthCallbackInjecter injecter = OAuthCallbackInjecter.QUERY_INJECTER;
+	private transient List<OAuthListener> listeners;
+	
+	// Guards only the read-modify-write of the settings snapshot, never held during I/O.
+	private transient Object settingsLock;
+	
+	private transient AtomicReference<BoundService> bound;
+	
+	private transient volatile Token accessToken;
+	
+	private transient AtomicReference<TokenRefresher> refresher;
+	
+	private transient RequestTokenPool requestTokenPool;
 	
 	public OAuthData(Class<? extends Api> apiClass, String apiKey, String apiSecret) {
 		this.id = nextId();
 		this.apiClass = apiClass;
 		this.apiKey = apiKey;
 		this.apiSecret = apiSecret;
+		initTransients();
 		setVerifierParameterNameToDefault();
 		setDefaultErrorParameterNames();
 	}
-
+	
+	private void initTransients() {
+		listeners = new CopyOnWriteArrayList<OAuthListener>();
+		settingsLock = new Object();
+		bound = new AtomicReference<BoundService>();
+		refresher = new AtomicReference<TokenRefresher>();
+		requestTokenPool = new RequestTokenPool(REQUEST_TOKEN_POOL_SIZE, REQUEST_TOKEN_MAX_AGE_MILLIS);
+	}
+	
 	public String getId() {
 		return id;
 	}
 	
+	/**
+	 * @deprecated The data is no longer stored as a session attribute of its own
+	 * but registered to the {@link OAuthCallbackDispatcher} of the session.
+	 */
+	@Deprecated
 	public String getSessionAttributeName() {
 		return OAuthData.class.getCanonicalName()+".DATA."+getId();
 	}
@@ -88,24 +264,43 @@ public class OAuthData {
 		return DefaultApi20.class.isAssignableFrom(getApiClass());
 	}
 	
-	synchronized public void setCallback(String callback) {
-		this.callback = callback;
+	/**
+	 * Returns the current settings snapshot.
+	 */
+	public Settings getSettings() {
+		return settings;
 	}
 	
-	synchronized public String getScope() {
-		return scope;
+	public void setCallback(String callback) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.callback = callback;
+			settings = s;
+		}
+	}
+	
+	public String getScope() {
+		return settings.getScope();
 	}
 	
-	synchronized public void setScope(String scope) {
-		this.scope = scope;
+	public void setScope(String scope) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.scope = scope;
+			settings = s;
+		}
 	}
 	
-	synchronized public String getVerifierParameterName() {
-		return verifierParameterName;
+	public String getVerifierParameterName() {
+		return settings.getVerifierParameterName();
 	}
 	
-	synchronized public void setVerifierParameterName(String verifierParameterName) {
-		this.verifierParameterName = verifierParameterName;
+	public void setVerifierParameterName(String verifierParameterName) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.verifierParameterName = verifierParameterName;
+			settings = s;
+		}
 	}
 	
 	public void setVerifierParameterNameToDefault() {
@@ -113,12 +308,17 @@ public class OAuthData {
 		setVerifierParameterName(isOauth2() ? "code" : "oauth_verifier");
 	}
 	
-	synchronized public List<String> getErrorParameterNames() {
-		return errorParameterNames;
+	public List<String> getErrorParameterNames() {
+		return settings.getErrorParameterNames();
 	}
 	
-	synchronized public void setErrorParameterNames(List<String> errorParameterNames) {
-		this.errorParameterNames = errorParameterNames;
+	public void setErrorParameterNames(List<String> errorParameterNames) {
+		List<String> names = Collections.unmodifiableList(new ArrayList<String>(errorParameterNames));
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.errorParameterNames = names;
+			settings = s;
+		}
 	}
 	
 	public void setDefaultErrorParameterNames() {
@@ -132,28 +332,579 @@ public class OAuthData {
 		if (isOauth2()) {
 			return null;
 		}
+		return fetchFlowRequestToken(settings);
+	}
+	
+	/**
+	 * Fetches a request token for a flow that's waiting for it,
+	 * recording the {@link Outcome#ERROR} of the flow if that fails.
+	 */
+	private Token fetchFlowRequestToken(Settings s) {
 		try {
-			synchronized (this) {
-				return getService().getRequestToken();
-			}
+			return fetchRequestToken(s);
 		}
 		catch (OAuthException e) {
-			throw createException("Getting request token failed.", e);
+			recordOutcome(Outcome.ERROR);
+			throw e;
 		}
 	}
 	
+	/**
+	 * Fetches a request token, retrying as the circuit breaker of the Api says.
+	 * Also used for prefetching, so only the phase error is recorded here.
+	 * 
+	 * @throws OAuthCircuitBreaker.OpenException as is, not wrapped, if the breaker is open
+	 */
+	private Token fetchRequestToken(Settings s) {
+		OAuthCircuitBreaker breaker = circuitBreakers.get(apiClass);
+		for (int attempt=0; ; ++attempt) {
+			long start = System.nanoTime();
+			OAuthBulkhead bulkhead = null;
+			try {
+				bulkhead = enterBulkhead();
+				enterCircuitBreaker(breaker);
+				Token token;
+				Api api = getApi();
+				if (api instanceof DefaultApi10a) {
+					token = TokenRequests.getRequestToken((DefaultApi10a) api, getService(s), asConfig(s), s.getTransport());
+				}
+				else {
+					token = getService(s).getRequestToken();
+				}
+				recordPhase(Phase.REQUEST_TOKEN, start);
+				circuitSucceeded(breaker);
+				return token;
+			}
+			catch (OAuthCircuitBreaker.OpenException e) {
+				recordPhaseError(Phase.REQUEST_TOKEN);
+				throw e;
+			}
+			catch (OAuthException e) {
+				if (!(e instanceof OAuthBulkhead.RejectedException)) {
+					circuitFailed(breaker);
+					if (breaker!=null && !isSessionLocked() && breaker.backOff(attempt)) {
+						getLogger().log(Level.FINE, "Getting request token failed, retrying", e);
+						continue;
+					}
+				}
+				recordPhaseError(Phase.REQUEST_TOKEN);
+				throw createException("Getting request token failed.", e);
+			}
+			finally {
+				exitBulkhead(bulkhead);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a prefetched request token if there is one,
+	 * otherwise works like {@link #createNewRequestToken()}.
+	 * <p>
+	 * The token taken is not replaced, most users log in only once.
+	 * 
+	 * @see #setRequestTokenPrefetchEnabled(boolean)
+	 */
+	public Token takeRequestToken() {
+		if (isOauth2()) {
+			return null;
+		}
+		Settings s = settings;
+		Token token = s.isRequestTokenPrefetch() ? requestTokenPool.take(s) : null;
+		if (token==null) {
+			token = fetchFlowRequestToken(s);
+		}
+		return token;
+	}
+	
+	int getPrefetchedRequestTokenCount() {
+		return requestTokenPool.size();
+	}
+	
+	/**
+	 * Fetches a request token in the background for the next flow,
+	 * if prefetching is enabled and there isn't one already.
+	 * 
+	 * @see #setRequestTokenPrefetchEnabled(boolean)
+	 */
+	public void prefetchRequestTokens() {
+		final Settings s = settings;
+		if (isOauth2() || !s.isRequestTokenPrefetch()) {
+			return;
+		}
+		// A single fetch per call: looping until the pool is full would fetch again
+		// as soon as a fast failing fetch releases its place.
+		if (!requestTokenPool.reserve(s)) {
+			return;
+		}
+		try {
+			OAuthExecutors.background().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						requestTokenPool.add(fetchRequestToken(s), s);
+					}
+					catch (RuntimeException e) {
+						requestTokenPool.release();
+						getLogger().log(Level.FINE, "Prefetching request token failed", e);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			requestTokenPool.release();
+		}
+	}
+	
+	/**
+	 * Enables fetching OAuth 1.0a request tokens in the background
+	 * before the user opens the popup, so that the popup can be redirected
+	 * to the authorization url right away.
+	 * <p>
+	 * One token ({@link #REQUEST_TOKEN_POOL_SIZE}) is kept ready per OAuthData,
+	 * for at most {@link #REQUEST_TOKEN_MAX_AGE_MILLIS}, and not replaced when taken.
+	 * If none is available when needed, one is fetched on demand as usual.
+	 * The tokens can't be pooled per provider: the callback, with the id of this data
+	 * injected, is bound to the request token when it's fetched, so the token of one
+	 * data would bring the user back to another one.
+	 * <p>
+	 * Each attached opener costs one request token fetch, even if it's never clicked.
+	 * <p>
+	 * Has no effect with OAuth2, which doesn't use request tokens.
+	 * <p>
+	 * Default: false.
+	 */
+	public void setRequestTokenPrefetchEnabled(boolean enabled) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.requestTokenPrefetch = enabled;
+			settings = s;
+		}
+	}
+	
+	public boolean isRequestTokenPrefetchEnabled() {
+		return settings.isRequestTokenPrefetch();
+	}
+	
 	public void setVerifier(Token requestToken, Verifier verifier) {
+		long start = System.nanoTime();
+		Token at;
+		try {
+			at = fetchAccessToken(settings, requestToken, verifier);
+		}
+		catch (OAuthCircuitBreaker.OpenException e) {
+			// As is, for the listeners to get a clear reason.
+			recordPhaseError(Phase.ACCESS_TOKEN);
+			recordOutcome(Outcome.ERROR);
+			throw e;
+		}
+		catch (OAuthException e) {
+			recordPhaseError(Phase.ACCESS_TOKEN);
+			recordOutcome(Outcome.ERROR);
+			throw createException("Getting access token failed.", e);
+		}
+		recordPhase(Phase.ACCESS_TOKEN, start);
+		recordOutcome(Outcome.SUCCESS);
+		setAccessToken(at);
+		TokenResponse response = TokenResponse.of(at);
+		storeToken(at, response);
+		scheduleTokenRefresh(response, null, true);
+		fireSuccess(response);
+	}
+	
+	private Token fetchAccessToken(Settings s, Token requestToken, Verifier verifier) {
+		OAuthCircuitBreaker breaker = circuitBreakers.get(apiClass);
+		OAuthBulkhead bulkhead = null;
 		try {
+			bulkhead = enterBulkhead();
+			enterCircuitBreaker(breaker);
 			Token at;
-			synchronized (this) {
-				at = getService().getAccessToken(requestToken, verifier);
-				setAccessToken(at);
+			Api api = getApi();
+			if (api instanceof DefaultApi20) {
+				at = TokenRequests.getAccessToken((DefaultApi20) api, asConfig(s), verifier, s.getTransport());
+			}
+			else if (api instanceof DefaultApi10a) {
+				at = TokenRequests.getAccessToken((DefaultApi10a) api, getService(s), requestToken, verifier, s.getTransport());
 			}
-			fireSuccess(at);
+			else {
+				// Some other kind of Api, let its own service do the request.
+				at = getService(s).getAccessToken(requestToken, verifier);
+			}
+			circuitSucceeded(breaker);
+			return at;
+		}
+		catch (OAuthCircuitBreaker.OpenException e) {
+			throw e;
 		}
 		catch (OAuthException e) {
-			throw createException("Getting access token failed.", e);
+			if (!(e instanceof OAuthBulkhead.RejectedException)) {
+				circuitFailed(breaker);
+			}
+			throw e;
+		}
+		finally {
+			exitBulkhead(bulkhead);
+		}
+	}
+	
+	/**
+	 * Called after {@link #enterBulkhead()}: a probe let through by a half-open breaker
+	 * must get to the provider, or the breaker would never hear back from it.
+	 */
+	private static void enterCircuitBreaker(OAuthCircuitBreaker breaker) {
+		if (breaker!=null) {
+			breaker.acquire();
+		}
+	}
+	
+	private static void circuitSucceeded(OAuthCircuitBreaker breaker) {
+		if (breaker!=null) {
+			breaker.onSuccess();
+		}
+	}
+	
+	private static void circuitFailed(OAuthCircuitBreaker breaker) {
+		if (breaker!=null) {
+			breaker.onFailure();
+		}
+	}
+	
+	/**
+	 * Takes a turn from the bulkhead of the Api, if any.
+	 * 
+	 * @return the bulkhead to give the turn back to, or null
+	 */
+	private OAuthBulkhead enterBulkhead() {
+		OAuthBulkhead bulkhead = bulkheads.get(apiClass);
+		if (bulkhead==null) {
+			return null;
+		}
+		// Like the retry back-off, no waiting in the queue under the session lock.
+		if (isSessionLocked()) {
+			bulkhead.acquireWithoutWaiting();
+		}
+		else {
+			bulkhead.acquire();
+		}
+		return bulkhead;
+	}
+	
+	private static void exitBulkhead(OAuthBulkhead bulkhead) {
+		if (bulkhead!=null) {
+			bulkhead.release();
+		}
+	}
+	
+	/**
+	 * Like {@link #setVerifier(Token, Verifier)} but the access token is fetched
+	 * with the exchange executor, see {@link #setExchangeExecutor(Executor)}.
+	 * <p>
+	 * Returns immediately. Failures are reported to the listeners
+	 * via {@link OAuthListener#authDenied(String)} since there's no
+	 * request thread to throw them to anymore.
+	 */
+	public void setVerifierAsync(final Token requestToken, final Verifier verifier) {
+		Executor executor = getExchangeExecutor();
+		if (executor==null) {
+			throw new IllegalStateException("No exchange executor set.");
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						setVerifier(requestToken, verifier);
+					}
+					catch (OAuthException e) {
+						getLogger().log(Level.WARNING, "Access token exchange failed", e);
+						setFailed(e.getMessage());
+					}
+					catch (RuntimeException e) {
+						// Not to leave the listeners waiting for a flow that's over.
+						getLogger().log(Level.WARNING, "Access token exchange failed", e);
+						setFailed("OAuth failed: access token exchange failed.");
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			getLogger().log(Level.WARNING, "Access token exchange rejected by the executor", e);
+			recordOutcome(Outcome.ERROR);
+			fireFailure("OAuth failed: access token exchange rejected.");
+		}
+	}
+	
+	/**
+	 * Sets the executor used for exchanging the verifier for the access token.
+	 * <p>
+	 * If set, the callback request handler closes the popup window immediately
+	 * and the possibly slow access token request is made with this executor
+	 * instead of the servlet request thread.
+	 * <p>
+	 * Default: null, the exchange is done in the callback request thread.
+	 * 
+	 * @see #BACKGROUND_EXECUTOR
+	 */
+	public void setExchangeExecutor(Executor executor) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.exchangeExecutor = executor;
+			settings = s;
+		}
+	}
+	
+	public Executor getExchangeExecutor() {
+		return settings.getExchangeExecutor();
+	}
+	
+	/**
+	 * Sets how long a flow waits for the user to come back from the authorization url.
+	 * <p>
+	 * After that the flow is forgotten and the {@link OAuthTimeoutListener}s
+	 * are notified. The request token and the callback handler of the flow
+	 * are retained only until then.
+	 * <p>
+	 * Default: {@link #DEFAULT_FLOW_TIMEOUT_MILLIS}. Zero or less means no timeout.
+	 */
+	public void setFlowTimeoutMillis(long millis) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.flowTimeoutMillis = millis;
+			settings = s;
+		}
+	}
+	
+	public long getFlowTimeoutMillis() {
+		return settings.getFlowTimeoutMillis();
+	}
+	
+	/**
+	 * Sets the store where the access tokens are saved, and read from
+	 * to skip the OAuth flow for returning users.
+	 * 
+	 * @param store the store, or null for none
+	 * @param userKey identifies the user, for example a user id or the value
+	 * of a long-lived cookie. The store key also includes the Api class, API key and scope.
+	 */
+	public void setTokenStore(TokenStore store, String userKey) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.tokenStore = store;
+			s.tokenStoreUser = userKey;
+			settings = s;
+		}
+	}
+	
+	/**
+	 * If there's a valid token in the token store, uses it as the access token
+	 * and notifies the listeners as if the OAuth had just succeeded.
+	 * <p>
+	 * The tokens are stored with the time they expire, from the "expires_in"
+	 * of the token response, and the store drops them after that.
+	 * 
+	 * @return true if a stored token was used
+	 * @see #setTokenStore(TokenStore, String)
+	 */
+	public boolean useStoredToken() {
+		Settings s = settings;
+		String key = tokenStoreKey(s);
+		if (key==null) {
+			return false;
+		}
+		Token at = s.tokenStore.get(key);
+		if (at==null) {
+			return false;
+		}
+		setAccessToken(at);
+		TokenResponse response = TokenResponse.of(at);
+		scheduleTokenRefresh(response, null, false);
+		fireSuccess(response);
+		return true;
+	}
+	
+	/**
+	 * Removes the token of the user from the token store,
+	 * for example when the token has turned out to be revoked.
+	 */
+	public void removeStoredToken() {
+		Settings s = settings;
+		String key = tokenStoreKey(s);
+		if (key!=null) {
+			s.tokenStore.remove(key);
+		}
+	}
+	
+	/**
+	 * Enables refreshing OAuth2 access tokens in the background before they expire.
+	 * <p>
+	 * The lifetime and the refresh token are read from the "expires_in" and
+	 * "refresh_token" fields of the token response. Tokens without them
+	 * are not refreshed. The refreshed token replaces the access token,
+	 * is saved to the token store, and is passed to the {@link OAuthRefreshListener}s.
+	 * <p>
+	 * Has no effect with OAuth 1.0a.
+	 * <p>
+	 * Default: false.
+	 */
+	public void setTokenRefreshEnabled(boolean enabled) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.tokenRefresh = enabled;
+			settings = s;
+		}
+		if (!enabled) {
+			cancelTokenRefresh();
+		}
+	}
+	
+	public boolean isTokenRefreshEnabled() {
+		return settings.isTokenRefresh();
+	}
+	
+	/**
+	 * Cancels the scheduled refresh of the access token, if any.
+	 */
+	public void cancelTokenRefresh() {
+		TokenRefresher old = refresher.getAndSet(null);
+		if (old!=null) {
+			old.cancel();
+		}
+	}
+	
+	TokenRefresher getTokenRefresher() {
+		return refresher.get();
+	}
+	
+	private void scheduleTokenRefresh(TokenResponse response, String previousRefreshToken, boolean fresh) {
+		if (!isOauth2() || !settings.isTokenRefresh()) {
+			return;
+		}
+		String refreshToken = response.getRefreshToken();
+		if (refreshToken==null) {
+			refreshToken = previousRefreshToken;
+		}
+		long expiresIn = response.getExpiresIn();
+		TokenRefresher next = null;
+		if (refreshToken!=null && expiresIn > 0) {
+			next = TokenRefresher.schedule(this, refreshToken, expiresIn, fresh);
+		}
+		TokenRefresher old = refresher.getAndSet(next);
+		if (old!=null) {
+			old.cancel();
+		}
+	}
+	
+	/**
+	 * Called by the refresher when it's time.
+	 */
+	void refreshAccessToken(TokenRefresher current) {
+		if (refresher.get()!=current) {
+			return;
+		}
+		Settings s = settings;
+		long start = System.nanoTime();
+		Token at;
+		OAuthCircuitBreaker breaker = circuitBreakers.get(apiClass);
+		OAuthBulkhead bulkhead = null;
+		try {
+			bulkhead = enterBulkhead();
+			enterCircuitBreaker(breaker);
+			at = TokenRequests.refreshAccessToken((DefaultApi20) getApi(), asConfig(s),
+					current.getRefreshToken(), s.getTransport());
+			circuitSucceeded(breaker);
+		}
+		catch (OAuthCircuitBreaker.OpenException e) {
+			// Not a flow, so no outcome.
+			recordPhaseError(Phase.TOKEN_REFRESH);
+			throw e;
+		}
+		catch (OAuthException e) {
+			if (!(e instanceof OAuthBulkhead.RejectedException)) {
+				circuitFailed(breaker);
+			}
+			recordPhaseError(Phase.TOKEN_REFRESH);
+			throw e;
+		}
+		finally {
+			exitBulkhead(bulkhead);
+		}
+		recordPhase(Phase.TOKEN_REFRESH, start);
+		if (refresher.get()!=current) {
+			// Cancelled or replaced by a new flow meanwhile.
+			return;
+		}
+		setAccessToken(at);
+		TokenResponse response = TokenResponse.of(at);
+		storeToken(at, response);
+		scheduleTokenRefresh(response, current.getRefreshToken(), true);
+		fireRefreshed(response);
+	}
+	
+	private void storeToken(Token at, TokenResponse response) {
+		Settings s = settings;
+		String key = tokenStoreKey(s);
+		if (key!=null) {
+			// Expires when the provider says, counted from now when it was just issued.
+			long expiresIn = response.getExpiresIn();
+			long expiresAt = expiresIn > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiresIn) : 0;
+			s.tokenStore.put(key, at, expiresAt);
+		}
+	}
+	
+	private String tokenStoreKey(Settings s) {
+		if (s.tokenStore==null || s.tokenStoreUser==null) {
+			return null;
 		}
+		return apiClass.getName() + "|" + apiKey + "|" + s.scope + "|" + s.tokenStoreUser;
+	}
+	
+	/**
+	 * Sets the transport for the requests to the OAuth service.
+	 * <p>
+	 * Default: {@link OAuthTransport#DEFAULT}
+	 */
+	public void setTransport(OAuthTransport transport) {
+		if (transport==null) {
+			throw new IllegalArgumentException("transport must not be null");
+		}
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.transport = transport;
+			settings = s;
+		}
+	}
+	
+	public OAuthTransport getTransport() {
+		return settings.getTransport();
+	}
+	
+	/**
+	 * Signs the API request with the access token and sends it with the transport.
+	 * 
+	 * @throws IllegalStateException if there's no access token yet
+	 * @throws OAuthException if sending fails
+	 */
+	public TransportResponse sendSignedRequest(OAuthRequest request) {
+		Token at = getAccessToken();
+		if (at==null) {
+			throw new IllegalStateException("No access token.");
+		}
+		Settings s = settings;
+		getService(s).signRequest(at, request);
+		return s.getTransport().send(request);
+	}
+	
+	/**
+	 * False while the circuit breaker of the Api is open and the token requests fail fast,
+	 * see {@link #setCircuitBreaker(Class, OAuthCircuitBreaker)}. For example for disabling
+	 * the login button instead of opening a popup that would close at once.
+	 */
+	public boolean isProviderAvailable() {
+		OAuthCircuitBreaker breaker = circuitBreakers.get(apiClass);
+		return breaker==null || breaker.getState()!=OAuthCircuitBreaker.State.OPEN;
+	}
+	
+	public boolean isAsyncExchange() {
+		return getExchangeExecutor()!=null;
 	}
 	
 	public OAuthException createException(String msg, OAuthException e) {
@@ -163,69 +914,371 @@ public class OAuthData {
 	}
 	
 	public void setDenied(String reason) {
+		recordOutcome(Outcome.DENIED);
+		fireFailure(reason);
+	}
+	
+	/**
+	 * Reports a flow that failed on our side, such as a failed access token exchange.
+	 * The {@link Outcome#ERROR} has already been recorded.
+	 */
+	void setFailed(String reason) {
 		fireFailure(reason);
 	}
 	
-	synchronized public Token getAccessToken() {
+	/**
+	 * Called when the user didn't come back from the authorization url in time.
+	 * 
+	 * @see #setFlowTimeoutMillis(long)
+	 */
+	public void setTimedOut() {
+		recordOutcome(Outcome.ABANDONED);
+		fireTimeout();
+	}
+	
+	public Token getAccessToken() {
 		return accessToken;
 	}
 	
-	synchronized public void setAccessToken(Token accessToken) {
+	public void setAccessToken(Token accessToken) {
 		this.accessToken = accessToken;
 	}
-
-	synchronized public OAuthConfig asConfig() {
-		String injected = getInjecter().injectIdToCallback(callback, getId());
-		return new OAuthConfig(apiKey, apiSecret, injected, SignatureType.Header, scope, null);
+	
+	public OAuthConfig asConfig() {
+		return asConfig(settings);
+	}
+	
+	private OAuthConfig asConfig(Settings s) {
+		return bind(s).config;
+	}
+	
+	private OAuthConfig createConfig(Settings s) {
+		String injected = s.getInjecter().injectIdToCallback(s.getCallback(), getId());
+		return new OAuthConfig(apiKey, apiSecret, injected, SignatureType.Header, s.getScope(), null);
+	}
+	
+	/**
+	 * The config with the callback as set, without the id of this data,
+	 * for a service shared with the other data of the same settings.
+	 */
+	private OAuthConfig createSharedConfig(Settings s) {
+		return new OAuthConfig(apiKey, apiSecret, s.getCallback(), SignatureType.Header, s.getScope(), null);
 	}
 	
 	public boolean isCallbackForMe(VaadinRequest request) {
 		return getId().equals(getInjecter().extractIdFromCallback(request));
 	}
 	
-	public synchronized void setCallbackInjecter(OAuthCallbackInjecter injecter) {
-		this.injecter = injecter;
+	public void setCallbackInjecter(OAuthCallbackInjecter injecter) {
+		synchronized (settingsLock) {
+			Settings s = settings.copy();
+			s.injecter = injecter;
+			settings = s;
+		}
+	}
+	
+	private OAuthCallbackInjecter getInjecter() {
+		return settings.getInjecter();
 	}
 	
-	private synchronized OAuthCallbackInjecter getInjecter() {
-		return injecter;
+	private Api getApi() {
+		return OAuthServiceCache.getInstance().getApi(apiClass);
 	}
-
-	private OAuthService getService() {
-		if (service==null) {
-			service = createApiInstance().createService(asConfig());
+	
+	private OAuthService getService(Settings s) {
+		return bind(s).service;
+	}
+	
+	/**
+	 * Returns the config and service for the settings snapshot, built the first time:
+	 * the callback with the id injected, and the service.
+	 * <p>
+	 * With the Scribe OAuth 1.0a and 2.0 Apis, the token requests are built by {@link TokenRequests}
+	 * with the callback of the config, and the service only signs them. The service doesn't
+	 * depend on the id then, and is shared through {@link OAuthServiceCache} by all the data
+	 * of the same settings. The service of any other kind of Api makes the requests itself
+	 * with the callback it was created with, so it's created for this data only.
+	 * <p>
+	 * None of that does I/O, so in the rare case
+	 * of two threads racing here both just build one and one of them wins.
+	 */
+	private BoundService bind(Settings s) {
+		BoundService b = bound.get();
+		if (b!=null && b.settings==s) {
+			return b;
+		}
+		OAuthConfig config = createConfig(s);
+		Api api = getApi();
+		OAuthService service;
+		if (api instanceof DefaultApi10a || api instanceof DefaultApi20) {
+			service = OAuthServiceCache.getInstance().getService(apiClass, createSharedConfig(s));
 		}
-		return service;
+		else {
+			service = api.createService(config);
+		}
+		BoundService created = new BoundService(s, config, service);
+		bound.compareAndSet(b, created);
+		return created;
 	}
 	
-	private Api createApiInstance() {
-		try {
-			return apiClass.newInstance();
-		} catch (InstantiationException e) {
-			throw new OAuthException("Error while creating the Api object", e);
-		} catch (IllegalAccessException e) {
-			throw new OAuthException("Error while creating the Api object", e);
+	/*
+	 * A listener throwing must not keep the others from being notified,
+	 * nor turn a successful flow into a failed one on the way out.
+	 */
+	
+	private void fireSuccess(TokenResponse response) {
+		for (OAuthListener li : listeners) {
+			try {
+				response.deliverTo(li);
+			}
+			catch (RuntimeException e) {
+				logListenerFailure(li, e);
+			}
 		}
 	}
-
-	private void fireSuccess(Token at) {
+	
+	private void fireRefreshed(TokenResponse response) {
 		for (OAuthListener li : listeners) {
-			li.authSuccessful(at.getToken(), at.getSecret(), at.getRawResponse());
+			if (li instanceof OAuthRefreshListener) {
+				try {
+					((OAuthRefreshListener) li).tokenRefreshed(response.getAccessToken(),
+							response.getAccessTokenSecret(), response.getRawResponse());
+				}
+				catch (RuntimeException e) {
+					logListenerFailure(li, e);
+				}
+			}
 		}
 	}
 	
 	private void fireFailure(String reason) {
 		for (OAuthListener li : listeners) {
-			li.authDenied(reason);
+			try {
+				li.authDenied(reason);
+			}
+			catch (RuntimeException e) {
+				logListenerFailure(li, e);
+			}
 		}
 	}
-
-	public synchronized String getAuthorizationUrl(Token requestToken) {
-		return getService().getAuthorizationUrl(requestToken);
+	
+	private void fireTimeout() {
+		for (OAuthListener li : listeners) {
+			if (li instanceof OAuthTimeoutListener) {
+				try {
+					((OAuthTimeoutListener) li).authTimedOut();
+				}
+				catch (RuntimeException e) {
+					logListenerFailure(li, e);
+				}
+			}
+		}
 	}
-
 	
-
+	private static void logListenerFailure(OAuthListener li, RuntimeException e) {
+		getLogger().log(Level.WARNING, "OAuth listener " + li + " failed", e);
+	}
 	
+	public String getAuthorizationUrl(Token requestToken) {
+		BoundService b = bind(settings);
+		AuthorizationUrlTemplate template = b.authorizationUrl;
+		if (template==null) {
+			// Built on first use only, some Apis validate the config here.
+			template = AuthorizationUrlTemplate.compile(getApi(), b.config);
+			b.authorizationUrl = template;
+		}
+		String url = template.expand(requestToken);
+		return url!=null ? url : b.service.getAuthorizationUrl(requestToken);
+	}
+	
+	/**
+	 * Records the time since the start (from {@link System#nanoTime()}) to the metrics.
+	 */
+	void recordPhase(Phase phase, long startNanos) {
+		metrics.recordPhase(apiClass, phase, System.nanoTime() - startNanos);
+	}
+	
+	void recordOutcome(Outcome outcome) {
+		metrics.recordOutcome(apiClass, outcome);
+	}
+	
+	void recordPhaseError(Phase phase) {
+		metrics.recordPhaseError(apiClass, phase);
+	}
+	
+	/**
+	 * True if the current thread holds the lock of a Vaadin session, as in {@code UI.init}.
+	 * A retry back-off or a wait in the bulkhead queue there would block every request
+	 * of the session, so the request fails fast instead.
+	 */
+	static boolean isSessionLocked() {
+		VaadinSession session = VaadinSession.getCurrent();
+		return session!=null && session.getLockInstance()!=null && session.hasLock();
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(OAuthData.class.getName());
+	}
 	
+	/**
+	 * Immutable snapshot of the settings of an {@link OAuthData}.
+	 * <p>
+	 * The setters of OAuthData modify a {@link #copy()} before publishing it,
+	 * never a published snapshot.
+	 */
+	public static final class Settings implements Serializable {
+		
+		private String callback;
+		private String scope;
+		private String verifierParameterName;
+		private List<String> errorParameterNames = Collections.emptyList();
+		private OAuthCallbackInjecter injecter = OAuthCallbackInjecter.QUERY_INJECTER;
+		private transient Executor exchangeExecutor;
+		private long flowTimeoutMillis = DEFAULT_FLOW_TIMEOUT_MILLIS;
+		private boolean requestTokenPrefetch;
+		private transient TokenStore tokenStore;
+		private String tokenStoreUser;
+		private boolean tokenRefresh;
+		private transient OAuthTransport transport = OAuthTransport.DEFAULT;
+		
+		private Settings() {
+		}
+		
+		private Settings copy() {
+			Settings s = new Settings();
+			s.callback = callback;
+			s.scope = scope;
+			s.verifierParameterName = verifierParameterName;
+			s.errorParameterNames = errorParameterNames;
+			s.injecter = injecter;
+			s.exchangeExecutor = exchangeExecutor;
+			s.flowTimeoutMillis = flowTimeoutMillis;
+			s.requestTokenPrefetch = requestTokenPrefetch;
+			s.tokenStore = tokenStore;
+			s.tokenStoreUser = tokenStoreUser;
+			s.tokenRefresh = tokenRefresh;
+			s.transport = transport;
+			return s;
+		}
+		
+		public String getCallback() {
+			return callback;
+		}
+		
+		public String getScope() {
+			return scope;
+		}
+		
+		public String getVerifierParameterName() {
+			return verifierParameterName;
+		}
+		
+		public List<String> getErrorParameterNames() {
+			return errorParameterNames;
+		}
+		
+		public OAuthCallbackInjecter getInjecter() {
+			return injecter;
+		}
+		
+		public Executor getExchangeExecutor() {
+			return exchangeExecutor;
+		}
+		
+		public long getFlowTimeoutMillis() {
+			return flowTimeoutMillis;
+		}
+		
+		public boolean isRequestTokenPrefetch() {
+			return requestTokenPrefetch;
+		}
+		
+		public TokenStore getTokenStore() {
+			return tokenStore;
+		}
+		
+		public boolean isTokenRefresh() {
+			return tokenRefresh;
+		}
+		
+		public OAuthTransport getTransport() {
+			return transport;
+		}
+		
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.defaultWriteObject();
+			out.writeObject(serializableOrNull(exchangeExecutor));
+			out.writeObject(serializableOrNull(tokenStore));
+			out.writeObject(transport==OAuthTransport.DEFAULT ? null : serializableOrNull(transport));
+		}
+		
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			exchangeExecutor = (Executor) in.readObject();
+			tokenStore = (TokenStore) in.readObject();
+			OAuthTransport t = (OAuthTransport) in.readObject();
+			transport = t==null ? OAuthTransport.DEFAULT : t;
+		}
+		
+		private static Object serializableOrNull(Object o) {
+			return o instanceof Serializable ? o : null;
+		}
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		Token at = accessToken;
+		out.writeObject(at==null ? null : at.getToken());
+		out.writeObject(at==null ? null : at.getSecret());
+		ArrayList<OAuthListener> serializable = new ArrayList<OAuthListener>();
+		for (OAuthListener li : listeners) {
+			if (li instanceof Serializable) {
+				serializable.add(li);
+			}
+		}
+		out.writeObject(serializable);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		initTransients();
+		String token = (String) in.readObject();
+		String secret = (String) in.readObject();
+		if (token!=null) {
+			accessToken = new Token(token, secret);
+		}
+		listeners.addAll((List<OAuthListener>) in.readObject());
+	}
+	
+	/**
+	 * Hands the tasks over to {@link OAuthExecutors#background()}.
+	 */
+	private static final class BackgroundExecutor implements Executor, Serializable {
+		@Override
+		public void execute(Runnable command) {
+			OAuthExecutors.background().execute(command);
+		}
+		
+		private Object readResolve() {
+			return BACKGROUND_EXECUTOR;
+		}
+	}
+	
+	/**
+	 * A service together with the settings snapshot it was built from.
+	 */
+	private static final class BoundService {
+		private final Settings settings;
+		private final OAuthConfig config;
+		private final OAuthService service;
+		private volatile AuthorizationUrlTemplate authorizationUrl;
+		
+		private BoundService(Settings settings, OAuthConfig config, OAuthService service) {
+			this.settings = settings;
+			this.config = config;
+			this.service = service;
+		}
+	}
+
 }
@@ -0,0 +1,290 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+/**
+ * Delivers the results of the flows of a session to the listeners of all its UIs.
+ * <p>
+ * The results come from a background thread, so a listener of a UI must be called
+ * with the UI locked. The bus groups the listeners of an event by UI and calls
+ * {@link UI#access(Runnable)} once per UI, however many openers and listeners the UI has.
+ * Listeners without a UI are called right away, without taking any lock.
+ * A UI that has been detached is skipped, and its listeners are dropped.
+ * <p>
+ * A listener gets either the events of one {@link OAuthData}, or of all the data
+ * {@link #register(OAuthData) registered} to the bus, such as a login status shown
+ * in every browser tab of the session.
+ * <p>
+ * The timeout and refresh events go only to the listeners implementing
+ * {@link OAuthTimeoutListener} and {@link OAuthRefreshListener}, and the listeners
+ * implementing {@link OAuthTokenListener} get the successes as a {@link TokenResponse}.
+ */
+@SuppressWarnings("serial")
+public class OAuthEventBus implements Serializable {
+	
+	private static final class Subscription implements Serializable {
+		// Null for the events of all the data.
+		private final String dataId;
+		// Null for delivering without a UI.
+		private final UI ui;
+		private final OAuthListener listener;
+		
+		private Subscription(String dataId, UI ui, OAuthListener listener) {
+			this.dataId = dataId;
+			this.ui = ui;
+			this.listener = listener;
+		}
+	}
+	
+	/**
+	 * One event, delivered to each listener in turn.
+	 */
+	private static abstract class Event {
+		abstract void deliver(OAuthListener li);
+	}
+	
+	// Written by writeObject, and not final so that readObject can set them up again.
+	
+	private transient List<Subscription> subscriptions;
+	
+	// Data id -> the listener publishing the events of the data to this bus.
+	private transient ConcurrentHashMap<String, Publisher> publishers;
+	
+	public OAuthEventBus() {
+		initTransients();
+	}
+	
+	private void initTransients() {
+		// Copy-on-write: listeners may be added and removed during a delivery.
+		subscriptions = new CopyOnWriteArrayList<Subscription>();
+		publishers = new ConcurrentHashMap<String, Publisher>();
+	}
+	
+	/**
+	 * Returns the event bus of the session, creating it if needed.
+	 * <p>
+	 * The session must be locked.
+	 */
+	public static OAuthEventBus get(VaadinSession session) {
+		OAuthEventBus bus = session.getAttribute(OAuthEventBus.class);
+		if (bus==null) {
+			bus = new OAuthEventBus();
+			session.setAttribute(OAuthEventBus.class, bus);
+		}
+		return bus;
+	}
+	
+	/**
+	 * Publishes the events of the data to this bus, until {@link #unregister(OAuthData) unregistered}.
+	 */
+	public void register(OAuthData data) {
+		Publisher p = new Publisher(data.getId());
+		if (publishers.putIfAbsent(data.getId(), p)==null) {
+			data.addListener(p);
+		}
+	}
+	
+	public void unregister(OAuthData data) {
+		Publisher p = publishers.remove(data.getId());
+		if (p!=null) {
+			data.removeListener(p);
+		}
+	}
+	
+	/**
+	 * Adds a listener for the events of all the registered data, called in the UI.
+	 *
+	 * @param ui the UI to lock for the listener, or null to call it without a lock
+	 */
+	public void addListener(UI ui, OAuthListener listener) {
+		addListener(null, ui, listener);
+	}
+	
+	/**
+	 * Adds a listener for the events of the data with the id, called in the UI.
+	 *
+	 * @param dataId the id of the data, or null for all the registered data
+	 * @param ui the UI to lock for the listener, or null to call it without a lock
+	 */
+	public void addListener(String dataId, UI ui, OAuthListener listener) {
+		subscriptions.add(new Subscription(dataId, ui, listener));
+	}
+	
+	/**
+	 * Removes the listener from all the data and UIs it was added for.
+	 */
+	public void removeListener(OAuthListener listener) {
+		for (Subscription s : subscriptions) {
+			if (s.listener==listener) {
+				subscriptions.remove(s);
+			}
+		}
+	}
+	
+	private void publish(String dataId, final Event event) {
+		Map<UI, List<OAuthListener>> byUI = null;
+		for (Subscription s : subscriptions) {
+			if (s.dataId!=null && !s.dataId.equals(dataId)) {
+				continue;
+			}
+			if (s.ui==null) {
+				deliver(event, s.listener);
+				continue;
+			}
+			if (byUI==null) {
+				byUI = new LinkedHashMap<UI, List<OAuthListener>>();
+			}
+			List<OAuthListener> listeners = byUI.get(s.ui);
+			if (listeners==null) {
+				listeners = new ArrayList<OAuthListener>(2);
+				byUI.put(s.ui, listeners);
+			}
+			listeners.add(s.listener);
+		}
+		if (byUI==null) {
+			return;
+		}
+		for (Map.Entry<UI, List<OAuthListener>> e : byUI.entrySet()) {
+			final List<OAuthListener> listeners = e.getValue();
+			UI ui = e.getKey();
+			if (ui.getSession()==null) {
+				removeUI(ui);
+				continue;
+			}
+			try {
+				ui.access(new Runnable() {
+					@Override
+					public void run() {
+						for (OAuthListener li : listeners) {
+							deliver(event, li);
+						}
+					}
+				});
+			}
+			catch (UIDetachedException ex) {
+				// Detached after the check.
+				removeUI(ui);
+			}
+		}
+	}
+	
+	private void removeUI(UI ui) {
+		for (Subscription s : subscriptions) {
+			if (s.ui==ui) {
+				subscriptions.remove(s);
+			}
+		}
+	}
+	
+	private static void deliver(Event event, OAuthListener li) {
+		try {
+			event.deliver(li);
+		}
+		catch (RuntimeException e) {
+			getLogger().log(Level.WARNING, "OAuth listener " + li + " failed", e);
+		}
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		ArrayList<Subscription> serializable = new ArrayList<Subscription>();
+		for (Subscription s : subscriptions) {
+			if (s.listener instanceof Serializable) {
+				serializable.add(s);
+			}
+		}
+		out.writeObject(serializable);
+		// The same instances as in the listeners of the data, written in the same session.
+		out.writeObject(new ArrayList<Publisher>(publishers.values()));
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		initTransients();
+		subscriptions.addAll((List<Subscription>) in.readObject());
+		for (Publisher p : (List<Publisher>) in.readObject()) {
+			publishers.put(p.dataId, p);
+		}
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(OAuthEventBus.class.getName());
+	}
+	
+	/**
+	 * Publishes the events of one data to the bus.
+	 */
+	private class Publisher implements OAuthTokenListener, OAuthTimeoutListener, OAuthRefreshListener, Serializable {
+		private final String dataId;
+		
+		private Publisher(String dataId) {
+			this.dataId = dataId;
+		}
+		
+		@Override
+		public void authSuccessful(final TokenResponse response) {
+			// One response for all the listeners, parsed at most once.
+			publish(dataId, new Event() {
+				@Override
+				void deliver(OAuthListener li) {
+					response.deliverTo(li);
+				}
+			});
+		}
+		
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			authSuccessful(new TokenResponse(accessToken, accessTokenSecret, oauthRawResponse));
+		}
+		
+		@Override
+		public void authDenied(final String reason) {
+			publish(dataId, new Event() {
+				@Override
+				void deliver(OAuthListener li) {
+					li.authDenied(reason);
+				}
+			});
+		}
+		
+		@Override
+		public void authTimedOut() {
+			publish(dataId, new Event() {
+				@Override
+				void deliver(OAuthListener li) {
+					if (li instanceof OAuthTimeoutListener) {
+						((OAuthTimeoutListener) li).authTimedOut();
+					}
+				}
+			});
+		}
+		
+		@Override
+		public void tokenRefreshed(final String accessToken, final String accessTokenSecret, final String oauthRawResponse) {
+			publish(dataId, new Event() {
+				@Override
+				void deliver(OAuthListener li) {
+					if (li instanceof OAuthRefreshListener) {
+						((OAuthRefreshListener) li).tokenRefreshed(accessToken, accessTokenSecret, oauthRawResponse);
+					}
+				}
+			});
+		}
+	}
+}
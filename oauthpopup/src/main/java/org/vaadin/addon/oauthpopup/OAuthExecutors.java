@@ -0,0 +1,77 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors the add-on uses for its own background work,
+ * such as prefetching request tokens.
+ * <p>
+ * The background executor runs the blocking calls to the OAuth providers.
+ * Before Java 21 it's a small bounded pool of daemon threads that die when idle.
+ * When its queue is full, it rejects new tasks
+ * with {@link java.util.concurrent.RejectedExecutionException}.
+ * On Java 21 and later each task runs on its own virtual thread,
+ * see {@link ProviderCallExecutor}.
+ * <p>
+ * The API executor does the same for the signed API requests of {@link OAuthApiClient}.
+ * <p>
+ * The scheduler is a single daemon thread for timed tasks such as token refreshes.
+ * The tasks must be short, anything doing I/O is handed over to the background executor.
+ */
+final class OAuthExecutors {
+	
+	private static final class Holder {
+		private static final ExecutorService BACKGROUND =
+				ProviderCallExecutor.create("OAuthPopup background", 4, 256);
+	}
+	
+	private static final class ApiHolder {
+		private static final ExecutorService API =
+				ProviderCallExecutor.create("OAuthPopup api", 16, 1024);
+	}
+	
+	private static final class SchedulerHolder {
+		private static final ScheduledThreadPoolExecutor SCHEDULER =
+				new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("OAuthPopup scheduler"));
+	}
+	
+	private OAuthExecutors() {
+	}
+	
+	static Executor background() {
+		return Holder.BACKGROUND;
+	}
+	
+	/**
+	 * The default executor of {@link OAuthApiClient}, separate from the background executor
+	 * so that the API calls of the application never hold up the token requests of the flows.
+	 */
+	static Executor api() {
+		return ApiHolder.API;
+	}
+	
+	static ScheduledExecutorService scheduler() {
+		return SchedulerHolder.SCHEDULER;
+	}
+	
+	static final class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + " " + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
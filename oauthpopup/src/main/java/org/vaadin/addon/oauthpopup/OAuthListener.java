@@ -5,6 +5,8 @@ package org.vaadin.addon.oauthpopup;
  * <p>
  * In the case that the user doesn't browse back to our application from
  * the authorization url, neither of the methods is called.
+ * Implement {@link OAuthTimeoutListener} to be notified when such a flow times out.
+ * Implement {@link OAuthTokenListener} to get the token response parsed.
  *
  */
 public interface OAuthListener {
@@ -1,6 +1,12 @@
 package org.vaadin.addon.oauthpopup;
 
+import java.util.concurrent.Executor;
+
 import org.scribe.builder.api.Api;
+import org.scribe.model.OAuthRequest;
+import org.vaadin.addon.oauthpopup.store.TokenStore;
+import org.vaadin.addon.oauthpopup.transport.OAuthTransport;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
 
 import com.vaadin.server.Resource;
 import com.vaadin.ui.Button;
@@ -125,4 +131,95 @@ public class OAuthPopupButton extends CustomComponent {
 	public void setCallbackInjecter(OAuthCallbackInjecter injecter) {
 		opener.setCallbackInjecter(injecter);
 	}
+	
+	/**
+	 * Sets how long to wait for the user to come back from the authorization url.
+	 * After that {@link OAuthTimeoutListener}s are notified.
+	 * <p>
+	 * Default: {@link OAuthData#DEFAULT_FLOW_TIMEOUT_MILLIS}. Zero or less means no timeout.
+	 */
+	public void setFlowTimeoutMillis(long millis) {
+		opener.setFlowTimeoutMillis(millis);
+	}
+	
+	/**
+	 * Sets the store where the access tokens are kept, so that returning users
+	 * get {@link OAuthListener#authSuccessful(String, String, String)}
+	 * without going through the popup.
+	 * 
+	 * @param userKey identifies the user, for example the value of a long-lived cookie
+	 * @see OAuthPopupOpener#setTokenStore(TokenStore, String)
+	 */
+	public void setTokenStore(TokenStore store, String userKey) {
+		opener.setTokenStore(store, userKey);
+	}
+	
+	/**
+	 * Removes the token of the user from the token store, if any.
+	 */
+	public void removeStoredToken() {
+		opener.removeStoredToken();
+	}
+	
+	/**
+	 * Fetches OAuth 1.0a request tokens in the background when the button is attached,
+	 * so the popup doesn't have to wait for one before redirecting
+	 * to the authorization url.
+	 * <p>
+	 * Default: false.
+	 * 
+	 * @see OAuthData#setRequestTokenPrefetchEnabled(boolean)
+	 */
+	public void setRequestTokenPrefetchEnabled(boolean enabled) {
+		opener.setRequestTokenPrefetchEnabled(enabled);
+	}
+	
+	/**
+	 * Enables refreshing OAuth2 access tokens before they expire.
+	 * The {@link OAuthRefreshListener}s get the refreshed tokens.
+	 * 
+	 * @see OAuthData#setTokenRefreshEnabled(boolean)
+	 */
+	public void setTokenRefreshEnabled(boolean enabled) {
+		opener.setTokenRefreshEnabled(enabled);
+	}
+	
+	/**
+	 * See {@link OAuthPopupOpener#setRedirectEndpointEnabled(boolean)}.
+	 */
+	public void setRedirectEndpointEnabled(boolean enabled) {
+		opener.setRedirectEndpointEnabled(enabled);
+	}
+	
+	/**
+	 * Sets the executor that fetches the access token after the user
+	 * returns from the authorization url.
+	 * <p>
+	 * With an executor the popup window is closed right away and
+	 * the servlet thread is released without waiting for the OAuth service.
+	 * The listeners are called when the access token has been fetched.
+	 * <p>
+	 * Default: null, the access token is fetched in the servlet thread.
+	 */
+	public void setExchangeExecutor(Executor executor) {
+		opener.setExchangeExecutor(executor);
+	}
+	
+	/**
+	 * Sets the transport for the requests to the OAuth service.
+	 * 
+	 * @see OAuthData#setTransport(OAuthTransport)
+	 */
+	public void setTransport(OAuthTransport transport) {
+		opener.setTransport(transport);
+	}
+	
+	/**
+	 * Signs the API request with the access token and sends it with the transport.
+	 * 
+	 * @see OAuthData#sendSignedRequest(OAuthRequest)
+	 */
+	public TransportResponse sendSignedRequest(OAuthRequest request) {
+		return opener.sendSignedRequest(request);
+	}
 }
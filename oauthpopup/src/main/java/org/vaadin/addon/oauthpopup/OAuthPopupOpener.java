@@ -1,28 +1,63 @@
 package org.vaadin.addon.oauthpopup;
 
+import java.io.Serializable;
 import java.net.URI;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 import org.scribe.builder.api.Api;
+import org.scribe.model.OAuthRequest;
+import org.vaadin.addon.oauthpopup.store.TokenStore;
+import org.vaadin.addon.oauthpopup.transport.OAuthTransport;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
 
 import com.vaadin.server.BrowserWindowOpener;
+import com.vaadin.server.ExternalResource;
 import com.vaadin.server.Page;
+import com.vaadin.server.Resource;
+import com.vaadin.shared.ui.BrowserWindowOpenerState;
 
 @SuppressWarnings("serial")
 public class OAuthPopupOpener extends BrowserWindowOpener {
 	
-	private LinkedList<OAuthListener> listeners = new LinkedList<OAuthListener>();
+	// Copy-on-write: listeners may be added and removed while a notification
+	// from another thread is being delivered.
+	private final List<OAuthListener> listeners = new CopyOnWriteArrayList<OAuthListener>();
 	
 	private final OAuthData data;
-
-	private OAuthListener dataListener;
+	
+	private final OAuthListener delivery = new Delivery();
+	
+	private final Resource popupUIResource;
 	
 	public OAuthPopupOpener(Class<? extends Api> apiClass, String key, String secret) {
 		super(OAuthPopupUI.class);
 		this.data = new OAuthData(apiClass, key, secret);
+		this.popupUIResource = getResource(BrowserWindowOpenerState.locationResource);
 		setCallbackToDefault();
 	}
 	
+	/**
+	 * If enabled, the popup window is opened directly to a small request handler
+	 * that answers with a HTTP redirect to the authorization url.
+	 * <p>
+	 * Saves bootstrapping a {@link OAuthPopupUI} in the popup only to redirect:
+	 * the bootstrap page, the widgetset download, the UIDL round trip and
+	 * the UI state in the session.
+	 * <p>
+	 * Default: false, the popup opens a {@link OAuthPopupUI}.
+	 */
+	public void setRedirectEndpointEnabled(boolean enabled) {
+		setResource(BrowserWindowOpenerState.locationResource, enabled
+				? new ExternalResource(OAuthCallbackDispatcher.REDIRECT_URL)
+				: popupUIResource);
+	}
+	
+	public boolean isRedirectEndpointEnabled() {
+		return getResource(BrowserWindowOpenerState.locationResource)!=popupUIResource;
+	}
+	
 	public void addOAuthListener(OAuthListener listener) {
 		listeners.add(listener);
 	}
@@ -35,33 +70,32 @@ public class OAuthPopupOpener extends BrowserWindowOpener {
 	public void attach() {
 		super.attach();
 		
-		// Adding the session attribute.
-		String attr = data.getSessionAttributeName();
-		getSession().setAttribute(attr, data);
-		setParameter("data", attr);
+		// Registering the data for the popup window to find.
+		OAuthCallbackDispatcher.get(getSession()).register(data);
+		setParameter(OAuthPopupUI.DATA_PARAM_NAME, data.getId());
 		
-		dataListener = new OAuthListener() {
-			@Override
-			public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
-				fireAuthSuccessful(accessToken, accessTokenSecret, oauthRawResponse);
-			}
-			
-			@Override
-			public void authDenied(String reason) {
-				fireAuthFailed(reason);
-			}
-		};
-		data.addListener(dataListener);
+		// The results come to the listeners through the event bus of the session,
+		// in one UI access together with the other openers of the UI.
+		OAuthEventBus bus = OAuthEventBus.get(getSession());
+		bus.register(data);
+		bus.addListener(data.getId(), getUI(), delivery);
+		
+		// A returning user may not need the popup at all.
+		if (!data.useStoredToken()) {
+			data.prefetchRequestTokens();
+		}
 	}
 	
 	@Override
 	public void detach() {
 		super.detach();
 		
-		data.removeListener(dataListener);
+		OAuthEventBus bus = OAuthEventBus.get(getSession());
+		bus.removeListener(delivery);
+		bus.unregister(data);
+		data.cancelTokenRefresh();
 		
-		// Deleting the session attribute.
-		getSession().setAttribute(data.getSessionAttributeName(), null);
+		OAuthCallbackDispatcher.get(getSession()).unregister(data);
 	}
 	
 	public void setCallback(String callback) {
@@ -81,34 +115,130 @@ public class OAuthPopupOpener extends BrowserWindowOpener {
 		return u.getScheme()+"://"+u.getAuthority()+u.getPath();
 	}
 	
-	private void fireAuthSuccessful(final String accessToken, final String accessTokenSecret, final String oauthRawResponse) {
-		// Coming from different thread than the usual Vaadin server visit.
-		// That's why we have to call access (TODO: session or UI?, seems like UI is correct.)
-		// Doing this here so our listeners don't need to.
-		getUI().access(new Runnable() {
-			@Override
-			public void run() {
-				for (final OAuthListener li : listeners) {
-					li.authSuccessful(accessToken, accessTokenSecret, oauthRawResponse);
-				}
-			}
-		});
+	public void setCallbackInjecter(OAuthCallbackInjecter injecter) {
+		data.setCallbackInjecter(injecter);
+	}
+	
+	/**
+	 * Sets the store for the access tokens.
+	 * <p>
+	 * When this opener is attached and the store has a token for the user,
+	 * the listeners get {@link OAuthListener#authSuccessful(String, String, String)}
+	 * right away, without the popup. The popup window also checks the store
+	 * before going to the authorization url.
+	 * <p>
+	 * See {@link OAuthData#setTokenStore(TokenStore, String)}.
+	 */
+	public void setTokenStore(TokenStore store, String userKey) {
+		data.setTokenStore(store, userKey);
+	}
+	
+	/**
+	 * Removes the token of the user from the token store, if any.
+	 * Call this if the stored token doesn't work anymore.
+	 */
+	public void removeStoredToken() {
+		data.removeStoredToken();
+	}
+	
+	/**
+	 * See {@link OAuthData#setRequestTokenPrefetchEnabled(boolean)}.
+	 * <p>
+	 * The prefetching starts when this opener is attached.
+	 */
+	public void setRequestTokenPrefetchEnabled(boolean enabled) {
+		data.setRequestTokenPrefetchEnabled(enabled);
+		if (enabled && isAttached()) {
+			data.prefetchRequestTokens();
+		}
+	}
+	
+	/**
+	 * See {@link OAuthData#setTokenRefreshEnabled(boolean)}.
+	 * <p>
+	 * The refreshing stops when this opener is detached.
+	 */
+	public void setTokenRefreshEnabled(boolean enabled) {
+		data.setTokenRefreshEnabled(enabled);
+	}
+	
+	/**
+	 * See {@link OAuthData#setFlowTimeoutMillis(long)}.
+	 */
+	public void setFlowTimeoutMillis(long millis) {
+		data.setFlowTimeoutMillis(millis);
 	}
 	
-	private void fireAuthFailed(final String reason) {
-		getUI().access(new Runnable() {
-			@Override
-			public void run() {
-				for (final OAuthListener li : listeners) {
-					li.authDenied(reason);
+	/**
+	 * See {@link OAuthData#setExchangeExecutor(Executor)}.
+	 */
+	public void setExchangeExecutor(Executor executor) {
+		data.setExchangeExecutor(executor);
+	}
+	
+	/**
+	 * See {@link OAuthData#setTransport(OAuthTransport)}.
+	 */
+	public void setTransport(OAuthTransport transport) {
+		data.setTransport(transport);
+	}
+	
+	/**
+	 * See {@link OAuthData#isProviderAvailable()}.
+	 */
+	public boolean isProviderAvailable() {
+		return data.isProviderAvailable();
+	}
+	
+	/**
+	 * See {@link OAuthData#sendSignedRequest(OAuthRequest)}.
+	 */
+	public TransportResponse sendSignedRequest(OAuthRequest request) {
+		return data.sendSignedRequest(request);
+	}
+	
+	
+	/**
+	 * Forwards the events of the data to the listeners of this opener.
+	 * Called by the event bus with the UI locked.
+	 */
+	// Serializable, so that it's still there when the session has been deserialized.
+	private class Delivery implements OAuthTokenListener, OAuthTimeoutListener, OAuthRefreshListener, Serializable {
+		@Override
+		public void authSuccessful(TokenResponse response) {
+			for (OAuthListener li : listeners) {
+				response.deliverTo(li);
+			}
+		}
+		
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			authSuccessful(new TokenResponse(accessToken, accessTokenSecret, oauthRawResponse));
+		}
+		
+		@Override
+		public void authDenied(String reason) {
+			for (OAuthListener li : listeners) {
+				li.authDenied(reason);
+			}
+		}
+		
+		@Override
+		public void authTimedOut() {
+			for (OAuthListener li : listeners) {
+				if (li instanceof OAuthTimeoutListener) {
+					((OAuthTimeoutListener) li).authTimedOut();
 				}
-
 			}
-		});
-	}
-
-	public void setCallbackInjecter(OAuthCallbackInjecter injecter) {
-		data.setCallbackInjecter(injecter);
+		}
+		
+		@Override
+		public void tokenRefreshed(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			for (OAuthListener li : listeners) {
+				if (li instanceof OAuthRefreshListener) {
+					((OAuthRefreshListener) li).tokenRefreshed(accessToken, accessTokenSecret, oauthRawResponse);
+				}
+			}
+		}
 	}
-
 }
@@ -1,9 +1,11 @@
 package org.vaadin.addon.oauthpopup;
 
 import org.scribe.model.Token;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Phase;
 
 import com.vaadin.server.Page;
 import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.JavaScript;
 import com.vaadin.ui.UI;
 
 /**
@@ -11,8 +13,8 @@ import com.vaadin.ui.UI;
  * <p>
  * Always(?) opened by {@link OAuthPopupButton}.
  * <p>
- * Reads the {@link OAuthData} instance from session.
- * The name of the session variable must be given as
+ * Reads the {@link OAuthData} instance from the {@link OAuthCallbackDispatcher}
+ * of the session. The id of the data must be given as
  * URI parameter named "data".
  */
 @SuppressWarnings("serial")
@@ -25,22 +27,37 @@ public class OAuthPopupUI extends UI {
 	@Override
 	protected void init(VaadinRequest request) {
 		
-		String attr;
+		long start = System.nanoTime();
+		String id;
 		OAuthData data;
-		if ((attr=request.getParameter(DATA_PARAM_NAME))==null) {
+		if ((id=request.getParameter(DATA_PARAM_NAME))==null) {
 			throw new IllegalStateException(
 					String.format("No URI parameter named \"%s\".\n", DATA_PARAM_NAME) +
 					"Please use OAuthPopupButton or some of its subclass to open OAuthPopup.");
 		}
-		else if ((data = (OAuthData) getSession().getAttribute(attr))==null) {
+		else if ((data = OAuthCallbackDispatcher.get(getSession()).getData(id))==null) {
 			throw new IllegalStateException(
-					String.format("No session attribute named \"%s\" found.\n", attr) +
+					String.format("No OAuth data with id \"%s\" found.\n", id) +
 					"Please use OAuthPopupButton or some of its subclass to open OAuthPopup.");
 		}
+		else if (data.useStoredToken()) {
+			// The listeners already got the stored token, nothing to do here.
+			JavaScript.getCurrent().execute("window.close();");
+		}
 		else {
-			Token requestToken = data.createNewRequestToken();
+			Token requestToken;
+			try {
+				requestToken = data.takeRequestToken();
+			}
+			catch (OAuthCircuitBreaker.OpenException e) {
+				// Fail fast instead of sending the user to a provider that's down.
+				data.setFailed(e.getMessage());
+				JavaScript.getCurrent().execute("window.close();");
+				return;
+			}
 			addCallbackHandler(requestToken, data);
 			goToAuthorizationUrl(requestToken, data);
+			data.recordPhase(Phase.AUTHORIZATION_REDIRECT, start);
 		}
 	}
 	
@@ -51,22 +68,27 @@ public class OAuthPopupUI extends UI {
 		// The session may have been already cleaned up by requestHandler,
 		// not always though.
 		// Doing it again doesn't do harm (?).
-		callbackHandler.cleanUpSession(getSession());
+		if (callbackHandler!=null) {
+			callbackHandler.cleanUpSession(getSession());
+		}
 	}
 	
 	private void addCallbackHandler(Token requestToken, OAuthData data) {
 		callbackHandler = new OAuthCallbackRequestHandler(requestToken, data);
-		getSession().addRequestHandler(callbackHandler);
+		OAuthCallbackDispatcher.get(getSession()).addPendingFlow(callbackHandler);
 	}
 	
 	public void removeCallbackHandler() {
 		if (callbackHandler!=null) {
-			getSession().removeRequestHandler(callbackHandler);
+			callbackHandler.cleanUpSession(getSession());
 			callbackHandler = null;
 		}
 	}
 
-	private void goToAuthorizationUrl(Token requestToken, OAuthData data) {
+	/**
+	 * Sends the popup window to the authorization url.
+	 */
+	protected void goToAuthorizationUrl(Token requestToken, OAuthData data) {
 		String authUrl = data.getAuthorizationUrl(requestToken);
 		Page.getCurrent().setLocation(authUrl);
 	}
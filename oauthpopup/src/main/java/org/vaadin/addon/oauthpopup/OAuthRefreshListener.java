@@ -0,0 +1,16 @@
+package org.vaadin.addon.oauthpopup;
+
+/**
+ * An {@link OAuthListener} that also wants to know when the access token
+ * has been refreshed in the background.
+ *
+ * @see OAuthData#setTokenRefreshEnabled(boolean)
+ */
+public interface OAuthRefreshListener extends OAuthListener {
+	
+	/**
+	 * Called when the access token has been replaced with a refreshed one.
+	 * The parameters are as in {@link #authSuccessful(String, String, String)}.
+	 */
+	public void tokenRefreshed(String accessToken, String accessTokenSecret, String oauthRawResponse);
+}
@@ -0,0 +1,251 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.builder.api.Api;
+import org.scribe.exceptions.OAuthException;
+import org.scribe.model.OAuthConfig;
+import org.scribe.oauth.OAuthService;
+
+/**
+ * Process-wide cache of Scribe {@link Api} instances and {@link OAuthService}s.
+ * <p>
+ * The Api instances are cached per class, created once with reflection.
+ * They're treated as stateless service factories, as all the Scribe Apis
+ * and {@link org.vaadin.addon.oauthpopup.buttons.GitHubApi} are.
+ * <p>
+ * The services are cached by Api class, key, secret, scope and callback,
+ * i.e. everything that goes into the service. {@link OAuthData} gives the callback
+ * as set, before the id of the data is injected into it, and passes the callback
+ * of each flow to the token requests itself: all the data with the same settings
+ * share one service. The cache is bounded by size (least recently used services
+ * are evicted first) and by idle time.
+ * <p>
+ * Thread-safe. The lock of the service cache is held only for the map operations,
+ * never while creating a service.
+ */
+public class OAuthServiceCache {
+	
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	
+	private static final OAuthServiceCache INSTANCE =
+			new OAuthServiceCache(DEFAULT_MAX_SIZE, DEFAULT_MAX_IDLE_MILLIS);
+	
+	/**
+	 * Returns the cache used by {@link OAuthData}.
+	 */
+	public static OAuthServiceCache getInstance() {
+		return INSTANCE;
+	}
+	
+	private final ConcurrentMap<Class<? extends Api>, Api> apis =
+			new ConcurrentHashMap<Class<? extends Api>, Api>();
+	
+	private final LinkedHashMap<Key, Entry> services = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	
+	private volatile int maxSize;
+	private volatile long maxIdleMillis;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	
+	/**
+	 * @param maxSize max number of cached services
+	 * @param maxIdleMillis services not used for this long are evicted, 0 for no limit
+	 */
+	public OAuthServiceCache(int maxSize, long maxIdleMillis) {
+		this.maxSize = maxSize;
+		this.maxIdleMillis = maxIdleMillis;
+	}
+	
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public void setMaxIdleMillis(long maxIdleMillis) {
+		this.maxIdleMillis = maxIdleMillis;
+	}
+	
+	public long getMaxIdleMillis() {
+		return maxIdleMillis;
+	}
+	
+	/**
+	 * Returns the shared instance of the Api class.
+	 */
+	public Api getApi(Class<? extends Api> apiClass) {
+		Api api = apis.get(apiClass);
+		if (api==null) {
+			Api created = createApi(apiClass);
+			api = apis.putIfAbsent(apiClass, created);
+			if (api==null) {
+				api = created;
+			}
+		}
+		return api;
+	}
+	
+	/**
+	 * Returns a service for the config, cached or newly created.
+	 */
+	public OAuthService getService(Class<? extends Api> apiClass, OAuthConfig config) {
+		Key key = new Key(apiClass, config);
+		long now = System.currentTimeMillis();
+		synchronized (services) {
+			Entry entry = services.get(key);
+			if (entry!=null && !entry.isIdle(now, maxIdleMillis)) {
+				entry.lastAccess = now;
+				hits.incrementAndGet();
+				return entry.service;
+			}
+		}
+		misses.incrementAndGet();
+		OAuthService service = getApi(apiClass).createService(config);
+		synchronized (services) {
+			services.put(key, new Entry(service, now));
+			evict(now);
+		}
+		return service;
+	}
+	
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+	
+	public int size() {
+		synchronized (services) {
+			return services.size();
+		}
+	}
+	
+	/**
+	 * Removes all the cached services and resets the statistics.
+	 * The Api instances are kept.
+	 */
+	public void clear() {
+		synchronized (services) {
+			services.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+	
+	@Override
+	public String toString() {
+		return "OAuthServiceCache[size=" + size() + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+	
+	// Must hold the services lock.
+	private void evict(long now) {
+		// The map is in access order, so the least recently used come first
+		// and we can stop at the first one that stays.
+		Iterator<Entry> it = services.values().iterator();
+		int size = services.size();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (size > maxSize || e.isIdle(now, maxIdleMillis)) {
+				it.remove();
+				--size;
+				evictions.incrementAndGet();
+			}
+			else {
+				break;
+			}
+		}
+	}
+	
+	private static Api createApi(Class<? extends Api> apiClass) {
+		try {
+			return apiClass.newInstance();
+		} catch (InstantiationException e) {
+			throw new OAuthException("Error while creating the Api object", e);
+		} catch (IllegalAccessException e) {
+			throw new OAuthException("Error while creating the Api object", e);
+		}
+	}
+	
+	private static final class Entry {
+		private final OAuthService service;
+		private long lastAccess;
+		
+		private Entry(OAuthService service, long lastAccess) {
+			this.service = service;
+			this.lastAccess = lastAccess;
+		}
+		
+		private boolean isIdle(long now, long maxIdleMillis) {
+			return maxIdleMillis > 0 && now - lastAccess > maxIdleMillis;
+		}
+	}
+	
+	private static final class Key {
+		private final Class<? extends Api> apiClass;
+		private final String apiKey;
+		private final String apiSecret;
+		private final String scope;
+		private final String callback;
+		private final int hash;
+		
+		private Key(Class<? extends Api> apiClass, OAuthConfig config) {
+			this.apiClass = apiClass;
+			this.apiKey = config.getApiKey();
+			this.apiSecret = config.getApiSecret();
+			this.scope = config.getScope();
+			this.callback = config.getCallback();
+			int h = apiClass.hashCode();
+			h = 31 * h + hashCode(apiKey);
+			h = 31 * h + hashCode(apiSecret);
+			h = 31 * h + hashCode(scope);
+			h = 31 * h + hashCode(callback);
+			this.hash = h;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this==obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key o = (Key) obj;
+			return hash==o.hash && apiClass==o.apiClass
+					&& equals(apiKey, o.apiKey) && equals(apiSecret, o.apiSecret)
+					&& equals(scope, o.scope) && equals(callback, o.callback);
+		}
+		
+		private static int hashCode(String s) {
+			return s==null ? 0 : s.hashCode();
+		}
+		
+		private static boolean equals(String a, String b) {
+			return a==null ? b==null : a.equals(b);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package org.vaadin.addon.oauthpopup;
+
+/**
+ * An {@link OAuthListener} that also wants to know when the user
+ * didn't come back from the authorization url in time.
+ *
+ * @see OAuthData#setFlowTimeoutMillis(long)
+ */
+public interface OAuthTimeoutListener extends OAuthListener {
+	
+	/**
+	 * Called when the OAuth flow timed out,
+	 * instead of {@link #authSuccessful(String, String, String)} or {@link #authDenied(String)}.
+	 */
+	public void authTimedOut();
+}
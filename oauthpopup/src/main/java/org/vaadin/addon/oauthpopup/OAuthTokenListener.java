@@ -0,0 +1,21 @@
+package org.vaadin.addon.oauthpopup;
+
+/**
+ * An {@link OAuthListener} that gets the token response as a {@link TokenResponse}
+ * instead of a raw string to parse.
+ * <p>
+ * For these listeners {@link #authSuccessful(TokenResponse)} is called
+ * instead of {@link #authSuccessful(String, String, String)}, which may be left empty.
+ * <p>
+ * The refreshed tokens are given to {@link OAuthRefreshListener#tokenRefreshed(String, String, String)}
+ * as strings, which can be wrapped in a {@link TokenResponse} as needed.
+ */
+public interface OAuthTokenListener extends OAuthListener {
+	
+	/**
+	 * Called on successful OAuth.
+	 * 
+	 * @param response the access token and the fields of the token response
+	 */
+	public void authSuccessful(TokenResponse response);
+}
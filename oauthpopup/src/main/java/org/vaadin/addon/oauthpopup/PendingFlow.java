@@ -0,0 +1,134 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.scribe.model.Token;
+
+/**
+ * What's stored of a flow waiting for its callback when the session is serialized,
+ * or in a {@link org.vaadin.addon.oauthpopup.store.PendingFlowStore}:
+ * the id of the {@link OAuthData}, the Api class, the request token, when the flow started
+ * and the cluster node it started on.
+ * <p>
+ * Everything else is found again through the id, so a replicated or persisted
+ * session carries a few dozen bytes per pending flow instead of the handler,
+ * the data and whatever its listeners refer to.
+ */
+@SuppressWarnings("serial")
+public final class PendingFlow implements Externalizable {
+	
+	private static final int VERSION = 2;
+	
+	private String id;
+	private String apiClassName;
+	private String token;
+	private String tokenSecret;
+	private long createdMillis;
+	private String origin;
+	
+	/**
+	 * For deserialization only.
+	 */
+	public PendingFlow() {
+	}
+	
+	/**
+	 * @param requestToken may be null (in case of OAuth2)
+	 */
+	public PendingFlow(String id, String apiClassName, Token requestToken, long createdMillis) {
+		this(id, apiClassName, requestToken, createdMillis, null);
+	}
+	
+	/**
+	 * @param requestToken may be null (in case of OAuth2)
+	 * @param origin the node the flow started on, may be null
+	 */
+	public PendingFlow(String id, String apiClassName, Token requestToken, long createdMillis, String origin) {
+		this.id = id;
+		this.apiClassName = apiClassName;
+		if (requestToken!=null) {
+			this.token = requestToken.getToken();
+			this.tokenSecret = requestToken.getSecret();
+		}
+		this.createdMillis = createdMillis;
+		this.origin = origin;
+	}
+	
+	/**
+	 * The id of the {@link OAuthData} of the flow.
+	 */
+	public String getId() {
+		return id;
+	}
+	
+	public String getApiClassName() {
+		return apiClassName;
+	}
+	
+	/**
+	 * The request token of the flow, or null in case of OAuth2.
+	 * Has no raw response.
+	 */
+	public Token getRequestToken() {
+		return token==null ? null : new Token(token, tokenSecret);
+	}
+	
+	/**
+	 * When the user was sent to the authorization url, from {@link System#currentTimeMillis()}.
+	 */
+	public long getCreatedMillis() {
+		return createdMillis;
+	}
+	
+	/**
+	 * The cluster node the flow started on, see {@link DefaultFlowIdGenerator#NODE_PROPERTY}.
+	 * Null if unknown.
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+	
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeUTF(id);
+		out.writeUTF(apiClassName);
+		out.writeBoolean(token!=null);
+		if (token!=null) {
+			out.writeUTF(token);
+			out.writeUTF(tokenSecret==null ? "" : tokenSecret);
+		}
+		out.writeLong(createdMillis);
+		out.writeBoolean(origin!=null);
+		if (origin!=null) {
+			out.writeUTF(origin);
+		}
+	}
+	
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		int version = in.readByte();
+		if (version < 1 || version > VERSION) {
+			throw new InvalidObjectException("Unknown pending flow version " + version);
+		}
+		id = in.readUTF();
+		apiClassName = in.readUTF();
+		if (in.readBoolean()) {
+			token = in.readUTF();
+			tokenSecret = in.readUTF();
+		}
+		createdMillis = in.readLong();
+		if (version >= 2 && in.readBoolean()) {
+			origin = in.readUTF();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "PendingFlow[" + id + ", " + apiClassName + "]";
+	}
+}
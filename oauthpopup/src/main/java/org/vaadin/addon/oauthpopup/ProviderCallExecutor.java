@@ -0,0 +1,40 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the executors for the blocking calls to the OAuth providers,
+ * see {@link OAuthExecutors}.
+ * <p>
+ * This is the baseline version: small bounded pools of daemon threads
+ * that die when idle, rejecting new tasks when their queue is full.
+ * <p>
+ * The multi-release jar built on Java 21 replaces this class with
+ * the one in <code>src/main/java21</code>, which runs each call on its own virtual thread.
+ */
+final class ProviderCallExecutor {
+	
+	/**
+	 * Whether the calls run on virtual threads.
+	 */
+	static final boolean VIRTUAL_THREADS = false;
+	
+	private ProviderCallExecutor() {
+	}
+	
+	/**
+	 * @param name the name prefix of the threads
+	 * @param threads max number of threads
+	 * @param queueSize max number of tasks waiting for a thread
+	 */
+	static ExecutorService create(String name, int threads, int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+				new OAuthExecutors.DaemonThreadFactory(name));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
@@ -0,0 +1,94 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vaadin.addon.oauthpopup.store.PendingFlowStore;
+
+/**
+ * Picks up the callbacks of the local pending flows that came to other nodes,
+ * see {@link OAuthCallbackDispatcher#setPendingFlowStore(PendingFlowStore)}.
+ * <p>
+ * One task on the scheduler of {@link OAuthExecutors} asks the store for
+ * the callback of each local pending flow every {@value #POLL_MILLIS} milliseconds.
+ * It's scheduled only while there are pending flows. The exchange of a picked up callback
+ * is done by the background executor, like any other I/O of the add-on.
+ */
+final class RemoteCallbackPoller implements Runnable {
+	
+	static final long POLL_MILLIS = 250;
+	
+	private static final Set<OAuthCallbackRequestHandler> handlers =
+			Collections.newSetFromMap(new ConcurrentHashMap<OAuthCallbackRequestHandler, Boolean>());
+	
+	// Guarded by RemoteCallbackPoller.class
+	private static ScheduledFuture<?> task;
+	
+	private RemoteCallbackPoller() {
+	}
+	
+	static void add(OAuthCallbackRequestHandler handler) {
+		handlers.add(handler);
+		synchronized (RemoteCallbackPoller.class) {
+			if (task==null) {
+				task = OAuthExecutors.scheduler().scheduleWithFixedDelay(new RemoteCallbackPoller(),
+						POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	static void remove(OAuthCallbackRequestHandler handler) {
+		handlers.remove(handler);
+	}
+	
+	@Override
+	public void run() {
+		PendingFlowStore store = OAuthCallbackDispatcher.getPendingFlowStore();
+		if (store==null || handlers.isEmpty()) {
+			synchronized (RemoteCallbackPoller.class) {
+				if (store==null || handlers.isEmpty()) {
+					task.cancel(false);
+					task = null;
+					return;
+				}
+			}
+		}
+		for (final OAuthCallbackRequestHandler handler : handlers) {
+			final Map<String, String> callback;
+			try {
+				callback = store.takeCallback(handler.getData().getId());
+			}
+			catch (RuntimeException e) {
+				getLogger().log(Level.WARNING, "Polling the pending flow store failed", e);
+				return;
+			}
+			if (callback==null || !handlers.remove(handler)) {
+				continue;
+			}
+			Runnable complete = new Runnable() {
+				@Override
+				public void run() {
+					handler.handleRemoteCallback(callback);
+				}
+			};
+			try {
+				OAuthExecutors.background().execute(complete);
+			}
+			catch (RejectedExecutionException e) {
+				// Better late than never, the user has already closed the popup.
+				complete.run();
+			}
+		}
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(RemoteCallbackPoller.class.getName());
+	}
+}
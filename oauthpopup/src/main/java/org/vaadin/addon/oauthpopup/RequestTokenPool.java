@@ -0,0 +1,97 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.scribe.model.Token;
+
+/**
+ * A small pool of prefetched OAuth 1.0a request tokens of one {@link OAuthData}.
+ * Not shared per provider, as the tokens are bound to the callback of the data.
+ * <p>
+ * Bounded by {@link #getMaxSize()}, counting also the fetches in flight.
+ * The tokens expire after {@link #getMaxAgeMillis()} since the OAuth services
+ * don't accept old request tokens. Each token is tagged with the
+ * {@link OAuthData.Settings} it was fetched with (the callback is bound
+ * to the request token), and only given out with the same settings.
+ * <p>
+ * Thread-safe.
+ */
+final class RequestTokenPool {
+	
+	private static final class Entry {
+		private final Token token;
+		private final Object tag;
+		private final long fetched;
+		
+		private Entry(Token token, Object tag, long fetched) {
+			this.token = token;
+			this.tag = tag;
+			this.fetched = fetched;
+		}
+	}
+	
+	private final int maxSize;
+	private final long maxAgeMillis;
+	
+	private final ArrayDeque<Entry> tokens = new ArrayDeque<Entry>();
+	private int inFlight;
+	
+	RequestTokenPool(int maxSize, long maxAgeMillis) {
+		this.maxSize = maxSize;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+	
+	int getMaxSize() {
+		return maxSize;
+	}
+	
+	long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+	
+	/**
+	 * Reserves room for a fetch, returns false if the pool is full.
+	 * Must be followed by {@link #add(Token, Object)} or {@link #release()}.
+	 */
+	synchronized boolean reserve(Object tag) {
+		purge(tag, System.currentTimeMillis());
+		if (tokens.size() + inFlight >= maxSize) {
+			return false;
+		}
+		++inFlight;
+		return true;
+	}
+	
+	synchronized void add(Token token, Object tag) {
+		--inFlight;
+		tokens.addLast(new Entry(token, tag, System.currentTimeMillis()));
+	}
+	
+	synchronized void release() {
+		--inFlight;
+	}
+	
+	/**
+	 * Returns a fresh token fetched with the tag, or null.
+	 */
+	synchronized Token take(Object tag) {
+		purge(tag, System.currentTimeMillis());
+		Entry e = tokens.pollFirst();
+		return e==null ? null : e.token;
+	}
+	
+	synchronized int size() {
+		return tokens.size();
+	}
+	
+	private void purge(Object tag, long now) {
+		Iterator<Entry> it = tokens.iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (e.tag!=tag || now - e.fetched > maxAgeMillis) {
+				it.remove();
+			}
+		}
+	}
+}
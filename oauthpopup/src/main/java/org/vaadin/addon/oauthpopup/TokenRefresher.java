@@ -0,0 +1,169 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Refreshes the OAuth2 access token of an {@link OAuthData} before it expires.
+ * <p>
+ * The refresh is scheduled at 80% of the token lifetime minus a random jitter
+ * of up to 10%, so that the tokens obtained during a login peak don't all
+ * get refreshed at the same moment. The refreshes run on the small
+ * {@link OAuthExecutors#scheduler()}.
+ * <p>
+ * Tokens of unknown age, such as ones read from a token store,
+ * are refreshed soon after {@link #MIN_DELAY_MILLIS} instead.
+ * <p>
+ * A failed refresh is retried at half of the remaining lifetime, and again
+ * after each failure, as long as that's at least {@link #MIN_DELAY_MILLIS}.
+ * <p>
+ * The scheduler thread only triggers the refresh, the request itself
+ * is made with {@link OAuthExecutors#background()}. If that is full,
+ * the refresh is tried again after {@link #BUSY_RETRY_MILLIS}, never on the
+ * scheduler thread: that would hold up the flow timeouts and the other timed tasks.
+ */
+final class TokenRefresher implements Runnable {
+	
+	static final long MIN_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	
+	static final long BUSY_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+	
+	/**
+	 * The time source of the refreshers.
+	 */
+	interface Clock {
+		long currentTimeMillis();
+	}
+	
+	static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+	
+	// Package level, for the tests to run in milliseconds instead of minutes.
+	static volatile long minDelayMillis = MIN_DELAY_MILLIS;
+	static volatile Clock clock = SYSTEM_CLOCK;
+	
+	private static final Random jitter = new Random();
+	
+	// Cleared on cancel, so a cancelled task waiting in the scheduler doesn't retain the data.
+	private volatile OAuthData data;
+	private final String refreshToken;
+	private final long expiresAt;
+	// The delay of the latest scheduling, for the tests.
+	private volatile long delayMillis;
+	
+	private TokenRefresher(OAuthData data, String refreshToken, long expiresAt) {
+		this.data = data;
+		this.refreshToken = refreshToken;
+		this.expiresAt = expiresAt;
+	}
+	
+	/**
+	 * Schedules the refresh of a token with the given lifetime.
+	 * 
+	 * @param fresh true if the token was just issued, false if its age is unknown
+	 * @return the refresher, or null if the token expires too soon to be refreshed
+	 */
+	static TokenRefresher schedule(OAuthData data, String refreshToken, long expiresInSeconds, boolean fresh) {
+		long lifetime = TimeUnit.SECONDS.toMillis(expiresInSeconds);
+		long delay;
+		if (fresh) {
+			delay = (long) (lifetime * (0.8 - 0.1 * nextJitter()));
+		}
+		else {
+			delay = (long) (minDelayMillis * (1 + nextJitter()));
+			lifetime = delay;
+		}
+		if (delay < minDelayMillis) {
+			return null;
+		}
+		TokenRefresher refresher = new TokenRefresher(data, refreshToken, clock.currentTimeMillis() + lifetime);
+		return refresher.scheduleIn(delay) ? refresher : null;
+	}
+	
+	void cancel() {
+		data = null;
+	}
+	
+	String getRefreshToken() {
+		return refreshToken;
+	}
+	
+	long getExpiresAt() {
+		return expiresAt;
+	}
+	
+	long getDelayMillis() {
+		return delayMillis;
+	}
+	
+	@Override
+	public void run() {
+		if (data==null) {
+			return;
+		}
+		try {
+			OAuthExecutors.background().execute(new Runnable() {
+				@Override
+				public void run() {
+					refresh();
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			if (clock.currentTimeMillis() + BUSY_RETRY_MILLIS < expiresAt) {
+				scheduleIn(BUSY_RETRY_MILLIS);
+			}
+			else {
+				getLogger().log(Level.WARNING, "Background executor full, access token not refreshed", e);
+			}
+		}
+	}
+	
+	private void refresh() {
+		OAuthData d = data;
+		if (d==null) {
+			return;
+		}
+		try {
+			d.refreshAccessToken(this);
+		}
+		catch (OAuthException e) {
+			long left = expiresAt - clock.currentTimeMillis();
+			boolean retry = left / 2 >= minDelayMillis;
+			getLogger().log(Level.WARNING, "Refreshing access token failed, "
+					+ (retry ? "retrying" : "giving up"), e);
+			if (retry) {
+				scheduleIn(left / 2);
+			}
+		}
+	}
+	
+	private boolean scheduleIn(long delay) {
+		delayMillis = delay;
+		try {
+			OAuthExecutors.scheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+			return true;
+		}
+		catch (RejectedExecutionException e) {
+			getLogger().log(Level.WARNING, "Cannot schedule access token refresh", e);
+			return false;
+		}
+	}
+	
+	private static synchronized double nextJitter() {
+		return jitter.nextDouble();
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(TokenRefresher.class.getName());
+	}
+}
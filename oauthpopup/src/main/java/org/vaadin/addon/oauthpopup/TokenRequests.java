@@ -0,0 +1,86 @@
+package org.vaadin.addon.oauthpopup;
+
+import org.scribe.builder.api.DefaultApi10a;
+import org.scribe.builder.api.DefaultApi20;
+import org.scribe.exceptions.OAuthException;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.OAuthConstants;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verb;
+import org.scribe.model.Verifier;
+import org.scribe.oauth.OAuthService;
+import org.vaadin.addon.oauthpopup.transport.OAuthTransport;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
+
+/**
+ * The token requests of Scribe's OAuth10aServiceImpl and OAuth20ServiceImpl,
+ * sent with an {@link OAuthTransport} instead of {@link OAuthRequest#send()}.
+ * <p>
+ * The requests are built and parsed exactly as Scribe does, the OAuth 1.0a
+ * signing is still done by the Scribe service.
+ */
+final class TokenRequests {
+	
+	private TokenRequests() {
+	}
+	
+	static Token getRequestToken(DefaultApi10a api, OAuthService service, OAuthConfig config,
+			OAuthTransport transport) {
+		OAuthRequest request = new OAuthRequest(api.getRequestTokenVerb(), api.getRequestTokenEndpoint());
+		request.addOAuthParameter(OAuthConstants.CALLBACK, config.getCallback());
+		service.signRequest(OAuthConstants.EMPTY_TOKEN, request);
+		return api.getRequestTokenExtractor().extract(send(transport, request));
+	}
+	
+	static Token getAccessToken(DefaultApi10a api, OAuthService service, Token requestToken,
+			Verifier verifier, OAuthTransport transport) {
+		OAuthRequest request = new OAuthRequest(api.getAccessTokenVerb(), api.getAccessTokenEndpoint());
+		request.addOAuthParameter(OAuthConstants.VERIFIER, verifier.getValue());
+		// Adds the oauth_token too.
+		service.signRequest(requestToken, request);
+		return api.getAccessTokenExtractor().extract(send(transport, request));
+	}
+	
+	static Token getAccessToken(DefaultApi20 api, OAuthConfig config, Verifier verifier,
+			OAuthTransport transport) {
+		OAuthRequest request = new OAuthRequest(api.getAccessTokenVerb(), api.getAccessTokenEndpoint());
+		request.addQuerystringParameter(OAuthConstants.CLIENT_ID, config.getApiKey());
+		request.addQuerystringParameter(OAuthConstants.CLIENT_SECRET, config.getApiSecret());
+		request.addQuerystringParameter(OAuthConstants.CODE, verifier.getValue());
+		request.addQuerystringParameter(OAuthConstants.REDIRECT_URI, config.getCallback());
+		if (config.hasScope()) {
+			request.addQuerystringParameter(OAuthConstants.SCOPE, config.getScope());
+		}
+		return api.getAccessTokenExtractor().extract(send(transport, request));
+	}
+	
+	static Token refreshAccessToken(DefaultApi20 api, OAuthConfig config, String refreshToken,
+			OAuthTransport transport) {
+		OAuthRequest request = new OAuthRequest(api.getAccessTokenVerb(), api.getAccessTokenEndpoint());
+		boolean body = api.getAccessTokenVerb()==Verb.POST || api.getAccessTokenVerb()==Verb.PUT;
+		addParameter(request, body, "grant_type", "refresh_token");
+		addParameter(request, body, "refresh_token", refreshToken);
+		addParameter(request, body, OAuthConstants.CLIENT_ID, config.getApiKey());
+		addParameter(request, body, OAuthConstants.CLIENT_SECRET, config.getApiSecret());
+		return api.getAccessTokenExtractor().extract(send(transport, request));
+	}
+	
+	private static void addParameter(OAuthRequest request, boolean body, String name, String value) {
+		if (body) {
+			request.addBodyParameter(name, value);
+		}
+		else {
+			request.addQuerystringParameter(name, value);
+		}
+	}
+	
+	private static String send(OAuthTransport transport, OAuthRequest request) {
+		TransportResponse response = transport.send(request);
+		if (!response.isSuccessful()) {
+			throw new OAuthException("HTTP status " + response.getCode() + " from "
+					+ request.getSanitizedUrl() + ": " + response.getBody());
+		}
+		return response.getBody();
+	}
+}
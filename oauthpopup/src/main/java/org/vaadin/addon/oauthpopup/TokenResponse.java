@@ -0,0 +1,181 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.scribe.model.Token;
+
+/**
+ * The access token and the fields of the token response it came in,
+ * such as the lifetime, the scope, or the user id and e-mail some providers add.
+ * <p>
+ * The raw response is either a JSON object or form-encoded depending on the provider,
+ * see {@link #getRawResponse()}. It is parsed on the first field asked for, once,
+ * and the values are read from the raw response as asked. Only the top level
+ * fields of JSON objects are parsed; a nested object or array is returned as JSON.
+ * <p>
+ * Shared by all the listeners of an event, and safe to use from any thread.
+ *
+ * @see OAuthTokenListener
+ */
+@SuppressWarnings("serial")
+public class TokenResponse implements Serializable {
+	
+	private final String accessToken;
+	private final String accessTokenSecret;
+	private final String rawResponse;
+	
+	// Parsed lazily, not serialized.
+	private transient volatile Map<String, int[]> fields;
+	
+	/**
+	 * @param rawResponse the raw token response, may be null
+	 */
+	public TokenResponse(String accessToken, String accessTokenSecret, String rawResponse) {
+		this.accessToken = accessToken;
+		this.accessTokenSecret = accessTokenSecret;
+		this.rawResponse = rawResponse;
+	}
+	
+	static TokenResponse of(Token token) {
+		String raw;
+		try {
+			raw = token.getRawResponse();
+		} catch (IllegalStateException e) {
+			// Not from Scribe, such as read from a token store without one.
+			raw = null;
+		}
+		return new TokenResponse(token.getToken(), token.getSecret(), raw);
+	}
+	
+	public String getAccessToken() {
+		return accessToken;
+	}
+	
+	/**
+	 * The OAuth 1.0a token secret, the empty string with OAuth 2.
+	 */
+	public String getAccessTokenSecret() {
+		return accessTokenSecret;
+	}
+	
+	public String getRawResponse() {
+		return rawResponse;
+	}
+	
+	/**
+	 * The "token_type" field, such as "bearer", or null.
+	 */
+	public String getTokenType() {
+		return getString("token_type");
+	}
+	
+	/**
+	 * The lifetime of the token in seconds from the "expires_in" field,
+	 * or "expires" as Facebook names it, or -1 if not given.
+	 */
+	public long getExpiresIn() {
+		long expiresIn = getLong("expires_in");
+		return expiresIn >= 0 ? expiresIn : getLong("expires");
+	}
+	
+	/**
+	 * The "refresh_token" field, or null.
+	 */
+	public String getRefreshToken() {
+		return getString("refresh_token");
+	}
+	
+	/**
+	 * The "scope" field, the scopes actually granted, or null.
+	 */
+	public String getScope() {
+		return getString("scope");
+	}
+	
+	/**
+	 * The OpenID Connect "id_token" field, or null.
+	 */
+	public String getIdToken() {
+		return getString("id_token");
+	}
+	
+	/**
+	 * Returns true if the response has the field, even if its value is null.
+	 */
+	public boolean has(String name) {
+		return getFields().containsKey(name);
+	}
+	
+	/**
+	 * The names of the fields of the response, in order.
+	 */
+	public Set<String> getFieldNames() {
+		return Collections.unmodifiableSet(getFields().keySet());
+	}
+	
+	/**
+	 * Returns the value of the field as a string, or null if not found.
+	 * A nested JSON object or array is returned as JSON.
+	 */
+	public String getString(String name) {
+		int[] span = getFields().get(name);
+		return span==null ? null : TokenResponses.getValue(rawResponse, span);
+	}
+	
+	/**
+	 * Returns the value of the field as a long, or -1 if not found or not a number.
+	 */
+	public long getLong(String name) {
+		String value = getString(name);
+		if (value==null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns true if the value of the field is "true", as a JSON literal or a string.
+	 */
+	public boolean getBoolean(String name) {
+		return "true".equalsIgnoreCase(getString(name));
+	}
+	
+	private Map<String, int[]> getFields() {
+		Map<String, int[]> f = fields;
+		if (f==null) {
+			synchronized (this) {
+				f = fields;
+				if (f==null) {
+					f = TokenResponses.indexFields(rawResponse);
+					fields = f;
+				}
+			}
+		}
+		return f;
+	}
+	
+	/**
+	 * Gives this to the listener, as a TokenResponse or as strings.
+	 */
+	void deliverTo(OAuthListener li) {
+		if (li instanceof OAuthTokenListener) {
+			((OAuthTokenListener) li).authSuccessful(this);
+		}
+		else {
+			li.authSuccessful(accessToken, accessTokenSecret, rawResponse);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		// Not the tokens.
+		return "TokenResponse" + getFieldNames();
+	}
+}
@@ -0,0 +1,213 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Indexes the fields of raw token responses for {@link TokenResponse}.
+ * The responses are either JSON objects or form-encoded (a=1&amp;b=2)
+ * depending on the OAuth service.
+ * <p>
+ * Only the top level of JSON objects is indexed. Good enough for the
+ * standard fields such as "expires_in" and "refresh_token".
+ */
+final class TokenResponses {
+	
+	private TokenResponses() {
+	}
+	
+	/*
+	 * All the fields are indexed in one pass.
+	 * A span is {start, end, kind} of the value in the raw response,
+	 * decoded only when asked for.
+	 */
+	
+	static final int FORM = 0;
+	static final int JSON_STRING = 1;
+	static final int JSON_LITERAL = 2;
+	static final int JSON_NESTED = 3;
+	
+	/**
+	 * Returns the spans of the values of the top level fields by name, in order.
+	 * Of repeated fields, the first one.
+	 */
+	static Map<String, int[]> indexFields(String raw) {
+		Map<String, int[]> spans = new LinkedHashMap<String, int[]>();
+		if (raw==null) {
+			return spans;
+		}
+		int start = skipWhitespace(raw, 0);
+		if (start < raw.length() && raw.charAt(start)=='{') {
+			indexJson(raw, start + 1, spans);
+		}
+		else {
+			indexForm(raw, spans);
+		}
+		return spans;
+	}
+	
+	/**
+	 * Returns the value of the span: strings unescaped or decoded,
+	 * nested objects and arrays as JSON.
+	 */
+	static String getValue(String raw, int[] span) {
+		switch (span[2]) {
+		case FORM: return decode(raw.substring(span[0], span[1]));
+		case JSON_STRING: return unescape(raw, span[0], span[1]);
+		default:
+			String value = raw.substring(span[0], span[1]);
+			return "null".equals(value) ? null : value;
+		}
+	}
+	
+	private static void indexForm(String raw, Map<String, int[]> spans) {
+		int pos = 0;
+		int len = raw.length();
+		while (pos < len) {
+			int amp = raw.indexOf('&', pos);
+			int end = amp < 0 ? len : amp;
+			int eq = raw.indexOf('=', pos);
+			if (eq > pos && eq < end) {
+				String name = decode(raw.substring(pos, eq));
+				if (!spans.containsKey(name)) {
+					spans.put(name, new int[] { eq + 1, end, FORM });
+				}
+			}
+			pos = end + 1;
+		}
+	}
+	
+	private static void indexJson(String raw, int i, Map<String, int[]> spans) {
+		int len = raw.length();
+		while (true) {
+			i = skipWhitespace(raw, i);
+			if (i >= len || raw.charAt(i)!='"') {
+				return;
+			}
+			int nameEnd = endOfString(raw, i);
+			String name = unescape(raw, i + 1, nameEnd);
+			int colon = skipWhitespace(raw, nameEnd + 1);
+			if (colon >= len || raw.charAt(colon)!=':') {
+				return;
+			}
+			int start = skipWhitespace(raw, colon + 1);
+			if (start >= len) {
+				return;
+			}
+			int[] span;
+			char c = raw.charAt(start);
+			if (c=='"') {
+				span = new int[] { start + 1, endOfString(raw, start), JSON_STRING };
+				i = span[1] + 1;
+			}
+			else if (c=='{' || c=='[') {
+				span = new int[] { start, endOfNested(raw, start), JSON_NESTED };
+				i = span[1];
+			}
+			else {
+				int end = start;
+				while (end < len && ",}] \t\r\n".indexOf(raw.charAt(end)) < 0) {
+					++end;
+				}
+				span = new int[] { start, end, JSON_LITERAL };
+				i = end;
+			}
+			if (!spans.containsKey(name)) {
+				spans.put(name, span);
+			}
+			i = skipWhitespace(raw, i);
+			if (i >= len || raw.charAt(i)!=',') {
+				return;
+			}
+			++i;
+		}
+	}
+	
+	// Index after the object or array starting at start.
+	private static int endOfNested(String raw, int start) {
+		int depth = 0;
+		int i = start;
+		while (i < raw.length()) {
+			char c = raw.charAt(i);
+			if (c=='"') {
+				i = endOfString(raw, i) + 1;
+				continue;
+			}
+			if (c=='{' || c=='[') {
+				++depth;
+			}
+			else if ((c=='}' || c==']') && --depth==0) {
+				return i + 1;
+			}
+			++i;
+		}
+		return raw.length();
+	}
+	
+	// Index of the closing quote of the string starting at the quote at start.
+	private static int endOfString(String raw, int start) {
+		int i = start + 1;
+		while (i < raw.length()) {
+			char c = raw.charAt(i);
+			if (c=='\\') {
+				i += 2;
+			}
+			else if (c=='"') {
+				return i;
+			}
+			else {
+				++i;
+			}
+		}
+		return raw.length();
+	}
+	
+	private static String unescape(String raw, int start, int end) {
+		if (raw.indexOf('\\', start) < 0 || raw.indexOf('\\', start) >= end) {
+			return raw.substring(start, end);
+		}
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i=start; i<end; ++i) {
+			char c = raw.charAt(i);
+			if (c!='\\' || i + 1 >= end) {
+				sb.append(c);
+				continue;
+			}
+			char e = raw.charAt(++i);
+			switch (e) {
+			case 'n': sb.append('\n'); break;
+			case 't': sb.append('\t'); break;
+			case 'r': sb.append('\r'); break;
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'u':
+				if (i + 4 < end) {
+					sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+					i += 4;
+				}
+				break;
+			default: sb.append(e);
+			}
+		}
+		return sb.toString();
+	}
+	
+	private static int skipWhitespace(String raw, int i) {
+		while (i < raw.length() && Character.isWhitespace(raw.charAt(i))) {
+			++i;
+		}
+		return i;
+	}
+	
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return s;
+		} catch (IllegalArgumentException e) {
+			return s;
+		}
+	}
+}
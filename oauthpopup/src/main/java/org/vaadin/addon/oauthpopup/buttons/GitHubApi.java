@@ -12,8 +12,8 @@ public class GitHubApi extends DefaultApi20 {
 
 	private static final String ACCESS_TOKEN_URL =
 			"https://github.com/login/oauth/access_token";
-	private static final String AUTHORIZE_URL_FORMAT =
-			"https://github.com/login/oauth/authorize?client_id=%s";
+	private static final String AUTHORIZE_URL =
+			"https://github.com/login/oauth/authorize?client_id=";
 	
 	@Override
 	public String getAccessTokenEndpoint() {
@@ -22,16 +22,16 @@ public class GitHubApi extends DefaultApi20 {
 
 	@Override
 	public String getAuthorizationUrl(OAuthConfig config) {
-		String url = String.format(AUTHORIZE_URL_FORMAT, config.getApiKey());
+		StringBuilder url = new StringBuilder(128).append(AUTHORIZE_URL).append(config.getApiKey());
 		String callback = config.getCallback();
 		if (callback!=null) {
-			url += "&redirect_uri="+callback;
+			url.append("&redirect_uri=").append(callback);
 		}
 		String scope = config.getScope();
 		if (scope!=null) {
-			url += "&scope="+scope;
+			url.append("&scope=").append(scope);
 		}
-		return url;
+		return url.toString();
 	}
 
 }
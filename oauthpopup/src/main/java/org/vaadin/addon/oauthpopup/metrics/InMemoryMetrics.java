@@ -0,0 +1,128 @@
+package org.vaadin.addon.oauthpopup.metrics;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.builder.api.Api;
+
+/**
+ * {@link OAuthMetrics} that keeps counters and {@link LatencyHistogram}s
+ * in memory, per Api class.
+ * <p>
+ * This is the default metrics of {@link org.vaadin.addon.oauthpopup.OAuthData}.
+ * The data can be read with the getters, or through JMX with {@link JmxMetrics}.
+ */
+public class InMemoryMetrics implements OAuthMetrics {
+	
+	private final ConcurrentMap<Class<? extends Api>, ApiMetrics> apis =
+			new ConcurrentHashMap<Class<? extends Api>, ApiMetrics>();
+	
+	@Override
+	public void recordPhase(Class<? extends Api> apiClass, Phase phase, long nanos) {
+		getApiMetrics(apiClass).phases.get(phase).record(nanos);
+	}
+	
+	@Override
+	public void recordOutcome(Class<? extends Api> apiClass, Outcome outcome) {
+		getApiMetrics(apiClass).outcomes.get(outcome).incrementAndGet();
+	}
+	
+	@Override
+	public void recordPhaseError(Class<? extends Api> apiClass, Phase phase) {
+		getApiMetrics(apiClass).phaseErrors.get(phase).incrementAndGet();
+	}
+	
+	/**
+	 * Returns the Api classes that have something recorded.
+	 */
+	public List<Class<? extends Api>> getApiClasses() {
+		return new ArrayList<Class<? extends Api>>(apis.keySet());
+	}
+	
+	/**
+	 * Returns the histogram of the phase, never null.
+	 */
+	public LatencyHistogram getHistogram(Class<? extends Api> apiClass, Phase phase) {
+		return getApiMetrics(apiClass).phases.get(phase);
+	}
+	
+	public long getCount(Class<? extends Api> apiClass, Outcome outcome) {
+		ApiMetrics m = apis.get(apiClass);
+		return m==null ? 0 : m.outcomes.get(outcome).get();
+	}
+	
+	/**
+	 * Returns the number of failed requests of the phase, in flows or in the background.
+	 */
+	public long getErrorCount(Class<? extends Api> apiClass, Phase phase) {
+		ApiMetrics m = apis.get(apiClass);
+		return m==null ? 0 : m.phaseErrors.get(phase).get();
+	}
+	
+	/**
+	 * Zeroes all the counters and histograms.
+	 */
+	public void reset() {
+		for (ApiMetrics m : apis.values()) {
+			for (LatencyHistogram h : m.phases.values()) {
+				h.reset();
+			}
+			for (AtomicLong c : m.outcomes.values()) {
+				c.set(0);
+			}
+			for (AtomicLong c : m.phaseErrors.values()) {
+				c.set(0);
+			}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Class<? extends Api>, ApiMetrics> e : apis.entrySet()) {
+			sb.append(e.getKey().getSimpleName()).append(": ").append(e.getValue().outcomes).append('\n');
+			for (Map.Entry<Phase, LatencyHistogram> p : e.getValue().phases.entrySet()) {
+				long errors = e.getValue().phaseErrors.get(p.getKey()).get();
+				if (p.getValue().getCount() > 0 || errors > 0) {
+					sb.append("  ").append(p.getKey()).append(": ").append(p.getValue())
+							.append(", errors=").append(errors).append('\n');
+				}
+			}
+		}
+		return sb.toString();
+	}
+	
+	private ApiMetrics getApiMetrics(Class<? extends Api> apiClass) {
+		ApiMetrics m = apis.get(apiClass);
+		if (m==null) {
+			ApiMetrics created = new ApiMetrics();
+			m = apis.putIfAbsent(apiClass, created);
+			if (m==null) {
+				m = created;
+			}
+		}
+		return m;
+	}
+	
+	// The maps are filled in the constructor and only read after that.
+	private static final class ApiMetrics {
+		private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+		private final Map<Outcome, AtomicLong> outcomes = new EnumMap<Outcome, AtomicLong>(Outcome.class);
+		private final Map<Phase, AtomicLong> phaseErrors = new EnumMap<Phase, AtomicLong>(Phase.class);
+		
+		private ApiMetrics() {
+			for (Phase p : Phase.values()) {
+				phases.put(p, new LatencyHistogram());
+				phaseErrors.put(p, new AtomicLong());
+			}
+			for (Outcome o : Outcome.values()) {
+				outcomes.put(o, new AtomicLong());
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.vaadin.addon.oauthpopup.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.scribe.builder.api.Api;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Outcome;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Phase;
+
+/**
+ * Exposes an {@link InMemoryMetrics} as a read-only MBean.
+ * <p>
+ * The attributes are generated from the Api classes seen so far:
+ * <code>TwitterApi.SUCCESS</code>, <code>TwitterApi.ACCESS_TOKEN.p99Millis</code>,
+ * <code>TwitterApi.ACCESS_TOKEN.errors</code> and so on.
+ * There's also a <code>reset</code> operation.
+ * <p>
+ * Usage: <code>JmxMetrics.register((InMemoryMetrics) OAuthData.getMetrics())</code>
+ */
+public class JmxMetrics implements DynamicMBean {
+	
+	public static final String DEFAULT_OBJECT_NAME = "org.vaadin.addon.oauthpopup:type=OAuthMetrics";
+	
+	private static final String[] HISTOGRAM_STATS = {"count", "meanMillis", "p50Millis", "p99Millis", "maxMillis"};
+	
+	private final InMemoryMetrics metrics;
+	
+	public JmxMetrics(InMemoryMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Registers the metrics to the platform MBean server with {@link #DEFAULT_OBJECT_NAME}.
+	 */
+	public static ObjectName register(InMemoryMetrics metrics) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(DEFAULT_OBJECT_NAME);
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(new JmxMetrics(metrics), name);
+		return name;
+	}
+	
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		int dot = attribute.indexOf('.');
+		if (dot > 0) {
+			Class<? extends Api> apiClass = findApiClass(attribute.substring(0, dot));
+			if (apiClass!=null) {
+				Object value = getValue(apiClass, attribute.substring(dot + 1));
+				if (value!=null) {
+					return value;
+				}
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+	
+	private Object getValue(Class<? extends Api> apiClass, String name) {
+		for (Outcome o : Outcome.values()) {
+			if (o.name().equals(name)) {
+				return metrics.getCount(apiClass, o);
+			}
+		}
+		int dot = name.indexOf('.');
+		if (dot < 0) {
+			return null;
+		}
+		Phase phase;
+		try {
+			phase = Phase.valueOf(name.substring(0, dot));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		LatencyHistogram h = metrics.getHistogram(apiClass, phase);
+		String stat = name.substring(dot + 1);
+		if (stat.equals("errors")) {
+			return metrics.getErrorCount(apiClass, phase);
+		}
+		if (stat.equals("count")) {
+			return h.getCount();
+		}
+		if (stat.equals("meanMillis")) {
+			return h.getMeanMillis();
+		}
+		if (stat.equals("p50Millis")) {
+			return h.getPercentileMillis(0.5);
+		}
+		if (stat.equals("p99Millis")) {
+			return h.getPercentileMillis(0.99);
+		}
+		if (stat.equals("maxMillis")) {
+			return h.getMaxMillis();
+		}
+		return null;
+	}
+	
+	private Class<? extends Api> findApiClass(String simpleName) {
+		for (Class<? extends Api> c : metrics.getApiClasses()) {
+			if (c.getSimpleName().equals(simpleName)) {
+				return c;
+			}
+		}
+		return null;
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String a : attributes) {
+			try {
+				list.add(new Attribute(a, getAttribute(a)));
+			} catch (AttributeNotFoundException e) {
+				// Left out, as the spec says.
+			}
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Read-only: " + attribute.getName());
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if ("reset".equals(actionName)) {
+			metrics.reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Class<? extends Api> c : metrics.getApiClasses()) {
+			String api = c.getSimpleName();
+			for (Outcome o : Outcome.values()) {
+				attributes.add(new MBeanAttributeInfo(api + "." + o.name(), "long",
+						"Number of flows ended with " + o, true, false, false));
+			}
+			for (Phase p : Phase.values()) {
+				for (String stat : HISTOGRAM_STATS) {
+					attributes.add(new MBeanAttributeInfo(api + "." + p.name() + "." + stat,
+							stat.equals("count") ? "long" : "double",
+							p + " " + stat, true, false, false));
+				}
+				attributes.add(new MBeanAttributeInfo(api + "." + p.name() + ".errors", "long",
+						"Number of failed " + p + " requests", true, false, false));
+			}
+		}
+		MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Zeroes the metrics",
+				null, "void", MBeanOperationInfo.ACTION);
+		return new MBeanInfo(getClass().getName(), "OAuth Popup flow metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[] {reset}, null);
+	}
+}
@@ -0,0 +1,110 @@
+package org.vaadin.addon.oauthpopup.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed buckets from 1 ms to 10 minutes,
+ * roughly 1-2-5 per decade.
+ * <p>
+ * The percentiles are estimated as the upper bound of the bucket they fall in,
+ * which is accurate enough to tell a slow OAuth service from a fast one.
+ */
+public class LatencyHistogram {
+	
+	private static final long[] BOUNDS_MILLIS = {
+		1, 2, 5, 10, 20, 50, 100, 200, 500,
+		1000, 2000, 5000, 10000, 20000, 30000, 60000, 120000, 300000, 600000
+	};
+	
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS_MILLIS.length];
+	static {
+		for (int i=0; i<BOUNDS_MILLIS.length; ++i) {
+			BOUNDS_NANOS[i] = TimeUnit.MILLISECONDS.toNanos(BOUNDS_MILLIS[i]);
+		}
+	}
+	
+	// The last one is for the values above the last bound.
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public double getMeanMillis() {
+		long c = count.get();
+		return c==0 ? 0 : totalNanos.get() / (c * 1e6);
+	}
+	
+	public double getMaxMillis() {
+		return maxNanos.get() / 1e6;
+	}
+	
+	/**
+	 * Returns the estimated percentile in milliseconds.
+	 * 
+	 * @param quantile 0.5 for median, 0.99 for the 99th percentile etc.
+	 */
+	public double getPercentileMillis(double quantile) {
+		long[] counts = new long[buckets.length()];
+		long total = 0;
+		for (int i=0; i<counts.length; ++i) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total==0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i=0; i<BOUNDS_MILLIS.length; ++i) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(BOUNDS_MILLIS[i], getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+	
+	public void reset() {
+		for (int i=0; i<buckets.length(); ++i) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("count=%d, mean=%.1fms, p50=%.0fms, p99=%.0fms, max=%.1fms",
+				getCount(), getMeanMillis(), getPercentileMillis(0.5),
+				getPercentileMillis(0.99), getMaxMillis());
+	}
+	
+	private static int bucketOf(long nanos) {
+		for (int i=0; i<BOUNDS_NANOS.length; ++i) {
+			if (nanos <= BOUNDS_NANOS[i]) {
+				return i;
+			}
+		}
+		return BOUNDS_NANOS.length;
+	}
+}
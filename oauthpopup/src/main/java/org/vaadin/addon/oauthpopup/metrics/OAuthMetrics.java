@@ -0,0 +1,93 @@
+package org.vaadin.addon.oauthpopup.metrics;
+
+import org.scribe.builder.api.Api;
+
+/**
+ * Receives the timings and the outcomes of the OAuth flows.
+ * <p>
+ * Called from the request threads and the background threads of the add-on,
+ * so implementations must be thread-safe, fast, and must not throw.
+ *
+ * @see org.vaadin.addon.oauthpopup.OAuthData#setMetrics(OAuthMetrics)
+ */
+public interface OAuthMetrics {
+	
+	/**
+	 * The timed phases of a flow.
+	 */
+	public enum Phase {
+		/**
+		 * Fetching the OAuth 1.0a request token from the OAuth service.
+		 */
+		REQUEST_TOKEN,
+		/**
+		 * From the popup window opening to redirecting it to the authorization url,
+		 * including the request token if not prefetched.
+		 */
+		AUTHORIZATION_REDIRECT,
+		/**
+		 * From the redirect to the authorization url to the callback,
+		 * i.e. the time the user spends with the OAuth service.
+		 */
+		USER_AUTHORIZATION,
+		/**
+		 * Exchanging the verifier for the access token.
+		 */
+		ACCESS_TOKEN,
+		/**
+		 * Refreshing an OAuth2 access token.
+		 */
+		TOKEN_REFRESH
+	}
+	
+	/**
+	 * The ways a flow can end.
+	 */
+	public enum Outcome {
+		SUCCESS,
+		/**
+		 * The user or the OAuth service denied the authorization.
+		 */
+		DENIED,
+		/**
+		 * The user didn't come back before the flow timeout.
+		 */
+		ABANDONED,
+		/**
+		 * A request of the flow to the OAuth service failed.
+		 */
+		ERROR
+	}
+	
+	public void recordPhase(Class<? extends Api> apiClass, Phase phase, long nanos);
+	
+	/**
+	 * Called once per flow, when it ends.
+	 */
+	public void recordOutcome(Class<? extends Api> apiClass, Outcome outcome);
+	
+	/**
+	 * Called when a request of the phase fails, also for the requests made
+	 * in the background, such as prefetched request tokens and token refreshes,
+	 * which aren't part of a flow and so have no {@link Outcome}.
+	 */
+	public void recordPhaseError(Class<? extends Api> apiClass, Phase phase);
+	
+	/**
+	 * Metrics that are thrown away.
+	 */
+	public static final OAuthMetrics NONE = new OAuthMetrics() {
+		@Override
+		public void recordPhase(Class<? extends Api> apiClass, Phase phase, long nanos) {
+		}
+		
+		@Override
+		public void recordOutcome(Class<? extends Api> apiClass, Outcome outcome) {
+		}
+		
+		@Override
+		public void recordPhaseError(Class<? extends Api> apiClass, Phase phase) {
+		}
+	};
+
+}
@@ -0,0 +1,170 @@
+package org.vaadin.addon.oauthpopup.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.scribe.exceptions.OAuthException;
+import org.scribe.model.Token;
+
+/**
+ * {@link TokenStore} that keeps the tokens in files of a local directory,
+ * one file per key, so that they survive restarts.
+ * <p>
+ * The file names are SHA-256 hashes of the keys. The files are written
+ * to a temporary file first and then renamed, and made readable
+ * by the owner only. Still, the access tokens are secrets,
+ * so keep the directory private.
+ * <p>
+ * The tokens expire when the provider said, and optionally after a given time since storing.
+ */
+public class FileTokenStore implements TokenStore {
+	
+	private static final String TOKEN = "token";
+	private static final String SECRET = "secret";
+	private static final String RAW_RESPONSE = "rawResponse";
+	private static final String STORED = "stored";
+	private static final String EXPIRES_AT = "expiresAt";
+	
+	private final File directory;
+	private final long maxAgeMillis;
+	
+	/**
+	 * @param directory where to keep the token files, created if needed
+	 * @param maxAgeMillis tokens older than this are not returned, 0 for no limit
+	 */
+	public FileTokenStore(File directory, long maxAgeMillis) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create token directory " + directory);
+		}
+		this.directory = directory;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+	
+	@Override
+	public synchronized Token get(String key) {
+		File file = fileFor(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties props = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				props.load(in);
+			}
+			finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			getLogger().log(Level.WARNING, "Reading token file " + file + " failed", e);
+			return null;
+		}
+		String token = props.getProperty(TOKEN);
+		if (token==null || isExpired(props.getProperty(STORED), props.getProperty(EXPIRES_AT, "0"))) {
+			file.delete();
+			return null;
+		}
+		// Scribe's Token doesn't take a null secret.
+		return new Token(token, props.getProperty(SECRET, ""), props.getProperty(RAW_RESPONSE));
+	}
+	
+	@Override
+	public synchronized void put(String key, Token token, long expiresAt) {
+		Properties props = new Properties();
+		props.setProperty(TOKEN, token.getToken());
+		if (token.getSecret()!=null) {
+			props.setProperty(SECRET, token.getSecret());
+		}
+		String raw = getRawResponse(token);
+		if (raw!=null) {
+			props.setProperty(RAW_RESPONSE, raw);
+		}
+		props.setProperty(STORED, Long.toString(System.currentTimeMillis()));
+		props.setProperty(EXPIRES_AT, Long.toString(expiresAt));
+		
+		File file = fileFor(key);
+		File tmp = new File(directory, file.getName() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				tmp.setReadable(false, false);
+				tmp.setReadable(true, true);
+				props.store(out, null);
+			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				// Windows doesn't rename over an existing file.
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("Cannot rename " + tmp + " to " + file);
+				}
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			getLogger().log(Level.WARNING, "Writing token file " + file + " failed", e);
+		}
+	}
+	
+	@Override
+	public synchronized void remove(String key) {
+		fileFor(key).delete();
+	}
+	
+	private boolean isExpired(String stored, String expiresAt) {
+		long now = System.currentTimeMillis();
+		try {
+			long expires = Long.parseLong(expiresAt);
+			if (expires > 0 && now >= expires) {
+				return true;
+			}
+			return maxAgeMillis > 0 && now - Long.parseLong(stored) > maxAgeMillis;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+	
+	// Scribe's Token throws instead of returning null.
+	private static String getRawResponse(Token token) {
+		try {
+			return token.getRawResponse();
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+	
+	private File fileFor(String key) {
+		return new File(directory, sha256Hex(key) + ".properties");
+	}
+	
+	private static String sha256Hex(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new OAuthException("SHA-256 not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new OAuthException("UTF-8 not available", e);
+		}
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(FileTokenStore.class.getName());
+	}
+}
@@ -0,0 +1,102 @@
+package org.vaadin.addon.oauthpopup.store;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.vaadin.addon.oauthpopup.PendingFlow;
+
+/**
+ * {@link PendingFlowStore} that keeps the flows in memory.
+ * <p>
+ * Shared only within the JVM, so this is for a single node with several
+ * sessions, such as a non-sticky load balancer in front of one server, and for testing.
+ */
+public class InMemoryPendingFlowStore implements PendingFlowStore {
+	
+	private static final class Stored {
+		private final PendingFlow flow;
+		private Map<String, String> callback;
+		
+		private Stored(PendingFlow flow) {
+			this.flow = flow;
+		}
+	}
+	
+	private static final long SWEEP_INTERVAL_MILLIS = 1000;
+	
+	private final long maxAgeMillis;
+	private final Map<String, Stored> flows = new HashMap<String, Stored>();
+	private long nextSweep;
+	
+	/**
+	 * @param maxAgeMillis flows older than this are dropped, 0 for no limit
+	 */
+	public InMemoryPendingFlowStore(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+	
+	@Override
+	public synchronized void put(PendingFlow flow) {
+		removeExpired();
+		flows.put(flow.getId(), new Stored(flow));
+	}
+	
+	@Override
+	public synchronized PendingFlow get(String id) {
+		Stored s = getStored(id);
+		return s==null ? null : s.flow;
+	}
+	
+	@Override
+	public synchronized boolean complete(String id, Map<String, String> callbackParameters) {
+		Stored s = getStored(id);
+		if (s==null || s.callback!=null) {
+			return false;
+		}
+		s.callback = Collections.unmodifiableMap(new HashMap<String, String>(callbackParameters));
+		return true;
+	}
+	
+	@Override
+	public synchronized Map<String, String> takeCallback(String id) {
+		Stored s = getStored(id);
+		if (s==null || s.callback==null) {
+			return null;
+		}
+		flows.remove(id);
+		return s.callback;
+	}
+	
+	@Override
+	public synchronized void remove(String id) {
+		flows.remove(id);
+	}
+	
+	private Stored getStored(String id) {
+		Stored s = flows.get(id);
+		if (s!=null && isExpired(s.flow)) {
+			flows.remove(id);
+			return null;
+		}
+		return s;
+	}
+	
+	private void removeExpired() {
+		long now = System.currentTimeMillis();
+		if (maxAgeMillis <= 0 || now < nextSweep) {
+			return;
+		}
+		nextSweep = now + SWEEP_INTERVAL_MILLIS;
+		for (Iterator<Stored> it = flows.values().iterator(); it.hasNext(); ) {
+			if (isExpired(it.next().flow)) {
+				it.remove();
+			}
+		}
+	}
+	
+	private boolean isExpired(PendingFlow flow) {
+		return maxAgeMillis > 0 && System.currentTimeMillis() - flow.getCreatedMillis() > maxAgeMillis;
+	}
+}
@@ -0,0 +1,74 @@
+package org.vaadin.addon.oauthpopup.store;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.scribe.model.Token;
+
+/**
+ * {@link TokenStore} that keeps the tokens in memory,
+ * evicting the least recently used ones when full.
+ * <p>
+ * The tokens expire when the provider said, and optionally after a given time since storing.
+ */
+public class InMemoryTokenStore implements TokenStore {
+	
+	private static final class Stored {
+		private final Token token;
+		private final long stored;
+		private final long expiresAt;
+		
+		private Stored(Token token, long stored, long expiresAt) {
+			this.token = token;
+			this.stored = stored;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	private final long maxAgeMillis;
+	private final Map<String, Stored> tokens;
+	
+	/**
+	 * @param maxSize max number of tokens kept
+	 * @param maxAgeMillis tokens older than this are not returned, 0 for no limit
+	 */
+	public InMemoryTokenStore(final int maxSize, long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+		this.tokens = new LinkedHashMap<String, Stored>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Stored> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+	
+	@Override
+	public synchronized Token get(String key) {
+		Stored e = tokens.get(key);
+		if (e==null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if ((maxAgeMillis > 0 && now - e.stored > maxAgeMillis) || (e.expiresAt > 0 && now >= e.expiresAt)) {
+			tokens.remove(key);
+			return null;
+		}
+		return e.token;
+	}
+	
+	@Override
+	public synchronized void put(String key, Token token, long expiresAt) {
+		tokens.put(key, new Stored(token, System.currentTimeMillis(), expiresAt));
+	}
+	
+	@Override
+	public synchronized void remove(String key) {
+		tokens.remove(key);
+	}
+	
+	public synchronized int size() {
+		return tokens.size();
+	}
+}
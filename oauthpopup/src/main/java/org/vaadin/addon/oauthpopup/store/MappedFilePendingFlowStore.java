@@ -0,0 +1,396 @@
+package org.vaadin.addon.oauthpopup.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.scribe.model.Token;
+import org.vaadin.addon.oauthpopup.PendingFlow;
+
+/**
+ * {@link PendingFlowStore} that keeps the flows in a memory-mapped file,
+ * shared by all the processes that map the same file.
+ * <p>
+ * Meant for the nodes running on one host, or on hosts sharing a file system
+ * that supports memory mapping and file locks. For a cluster spread over hosts,
+ * implement {@link PendingFlowStore} on top of a shared cache or database instead.
+ * <p>
+ * The file is a fixed-size open addressing hash table of {@value #SLOT_SIZE}-byte slots,
+ * probed linearly by the hash of the flow id. Each operation holds a lock of the whole file,
+ * so use one instance per file in a JVM. Flows older than the max age are overwritten
+ * when their slot is needed. A removed slot is marked empty again once no probe has to pass it,
+ * so that a drained file is as quick to search as a new one. A flow that doesn't fit in a slot, or doesn't find a free slot,
+ * is not stored and can only be completed on its own node; that is logged.
+ */
+public class MappedFilePendingFlowStore implements PendingFlowStore, Closeable {
+	
+	/**
+	 * The size of a slot in bytes, the max size of a flow and its callback parameters.
+	 */
+	public static final int SLOT_SIZE = 1024;
+	
+	private static final byte EMPTY = 0;
+	private static final byte PENDING = 1;
+	private static final byte COMPLETED = 2;
+	private static final byte REMOVED = 3;
+	
+	// state, hash of the id, created millis, payload length
+	private static final int STATE = 0;
+	private static final int HASH = 1;
+	private static final int CREATED = 5;
+	private static final int LENGTH = 13;
+	private static final int HEADER_SIZE = 15;
+	
+	private final File file;
+	private final long maxAgeMillis;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slots;
+	
+	/**
+	 * Maps the file, creating it if needed.
+	 * If the file already exists and is bigger, its size decides the number of slots.
+	 *
+	 * @param slots max number of flows stored at a time
+	 * @param maxAgeMillis flows older than this are dropped, 0 for no limit
+	 */
+	public MappedFilePendingFlowStore(File file, int slots, long maxAgeMillis) {
+		if (slots <= 0) {
+			throw new IllegalArgumentException("slots must be positive");
+		}
+		this.file = file;
+		this.maxAgeMillis = maxAgeMillis;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			FileLock lock = channel.lock();
+			try {
+				long size = Math.max(raf.length() / SLOT_SIZE * SLOT_SIZE, (long) slots * SLOT_SIZE);
+				if (raf.length() < size) {
+					raf.setLength(size);
+				}
+				this.slots = (int) (size / SLOT_SIZE);
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+			finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot map pending flow file " + file, e);
+		}
+	}
+	
+	public int getSlots() {
+		return slots;
+	}
+	
+	@Override
+	public synchronized void put(PendingFlow flow) {
+		byte[] payload = encode(flow, null);
+		if (payload==null) {
+			return;
+		}
+		FileLock lock = lock();
+		if (lock==null) {
+			return;
+		}
+		try {
+			int slot = find(flow.getId());
+			if (slot < 0) {
+				slot = findFree(flow.getId());
+			}
+			if (slot < 0) {
+				getLogger().warning("Pending flow file " + file + " is full, " + flow + " not stored");
+				return;
+			}
+			write(slot, PENDING, flow, payload);
+		}
+		finally {
+			release(lock);
+		}
+	}
+	
+	@Override
+	public synchronized PendingFlow get(String id) {
+		FileLock lock = lock();
+		if (lock==null) {
+			return null;
+		}
+		try {
+			int slot = find(id);
+			return slot < 0 ? null : read(slot, null);
+		}
+		finally {
+			release(lock);
+		}
+	}
+	
+	@Override
+	public synchronized boolean complete(String id, Map<String, String> callbackParameters) {
+		FileLock lock = lock();
+		if (lock==null) {
+			return false;
+		}
+		try {
+			int slot = find(id);
+			if (slot < 0 || buffer.get(offset(slot) + STATE)!=PENDING) {
+				return false;
+			}
+			PendingFlow flow = read(slot, null);
+			byte[] payload = flow==null ? null : encode(flow, callbackParameters);
+			if (payload==null) {
+				return false;
+			}
+			write(slot, COMPLETED, flow, payload);
+			return true;
+		}
+		finally {
+			release(lock);
+		}
+	}
+	
+	@Override
+	public synchronized Map<String, String> takeCallback(String id) {
+		FileLock lock = lock();
+		if (lock==null) {
+			return null;
+		}
+		try {
+			int slot = find(id);
+			if (slot < 0 || buffer.get(offset(slot) + STATE)!=COMPLETED) {
+				return null;
+			}
+			Map<String, String> callback = new HashMap<String, String>();
+			read(slot, callback);
+			markRemoved(slot);
+			return Collections.unmodifiableMap(callback);
+		}
+		finally {
+			release(lock);
+		}
+	}
+	
+	@Override
+	public synchronized void remove(String id) {
+		FileLock lock = lock();
+		if (lock==null) {
+			return;
+		}
+		try {
+			int slot = find(id);
+			if (slot >= 0) {
+				markRemoved(slot);
+			}
+		}
+		finally {
+			release(lock);
+		}
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		raf.close();
+	}
+	
+	/**
+	 * Returns the slot of the live flow with the id, or -1.
+	 * An expired flow found on the way is removed.
+	 */
+	private int find(String id) {
+		int hash = id.hashCode();
+		int start = (hash & Integer.MAX_VALUE) % slots;
+		for (int i=0; i<slots; ++i) {
+			int slot = (start + i) % slots;
+			int off = offset(slot);
+			byte state = buffer.get(off + STATE);
+			if (state==EMPTY) {
+				return -1;
+			}
+			if (state==REMOVED || buffer.getInt(off + HASH)!=hash || !id.equals(readId(slot))) {
+				continue;
+			}
+			if (isExpired(off)) {
+				markRemoved(slot);
+				return -1;
+			}
+			return slot;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the first slot on the probe sequence of the id that's free,
+	 * removed or holds an expired flow, or -1 if the file is full.
+	 */
+	private int findFree(String id) {
+		int start = (id.hashCode() & Integer.MAX_VALUE) % slots;
+		for (int i=0; i<slots; ++i) {
+			int slot = (start + i) % slots;
+			int off = offset(slot);
+			byte state = buffer.get(off + STATE);
+			if (state==EMPTY || state==REMOVED || isExpired(off)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Removes the flow of the slot. A probe stops at the first empty slot, so a run of removed
+	 * slots right before an empty one is never passed on the way to a live flow, and is emptied;
+	 * so is the whole file when every slot has been removed.
+	 */
+	private void markRemoved(int slot) {
+		buffer.put(offset(slot) + STATE, REMOVED);
+		int next = (slot + 1) % slots;
+		while (next!=slot && buffer.get(offset(next) + STATE)==REMOVED) {
+			next = (next + 1) % slots;
+		}
+		if (next!=slot && buffer.get(offset(next) + STATE)!=EMPTY) {
+			return;
+		}
+		int prev = next;
+		for (int i=0; i<slots; ++i) {
+			prev = (prev + slots - 1) % slots;
+			if (buffer.get(offset(prev) + STATE)!=REMOVED) {
+				break;
+			}
+			buffer.put(offset(prev) + STATE, EMPTY);
+		}
+	}
+	
+	private boolean isExpired(int off) {
+		return maxAgeMillis > 0 && System.currentTimeMillis() - buffer.getLong(off + CREATED) > maxAgeMillis;
+	}
+	
+	private void write(int slot, byte state, PendingFlow flow, byte[] payload) {
+		int off = offset(slot);
+		buffer.putInt(off + HASH, flow.getId().hashCode());
+		buffer.putLong(off + CREATED, flow.getCreatedMillis());
+		buffer.putShort(off + LENGTH, (short) payload.length);
+		buffer.position(off + HEADER_SIZE);
+		buffer.put(payload);
+		// The state last, so that a half-written slot is never live within the process.
+		buffer.put(off + STATE, state);
+	}
+	
+	private String readId(int slot) {
+		try {
+			return payloadInput(slot).readUTF();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads the flow of the slot, and the callback parameters into the map if given.
+	 */
+	private PendingFlow read(int slot, Map<String, String> callback) {
+		try {
+			DataInputStream in = payloadInput(slot);
+			String id = in.readUTF();
+			String apiClassName = in.readUTF();
+			String origin = in.readUTF();
+			Token token = null;
+			if (in.readBoolean()) {
+				token = new Token(in.readUTF(), in.readUTF());
+			}
+			if (callback!=null) {
+				for (int i=in.readUnsignedShort(); i>0; --i) {
+					callback.put(in.readUTF(), in.readUTF());
+				}
+			}
+			long created = buffer.getLong(offset(slot) + CREATED);
+			return new PendingFlow(id, apiClassName, token, created, origin.isEmpty() ? null : origin);
+		} catch (IOException e) {
+			// Only if the file has been corrupted.
+			getLogger().log(Level.WARNING, "Reading pending flow file " + file + " failed", e);
+			markRemoved(slot);
+			return null;
+		}
+	}
+	
+	private DataInputStream payloadInput(int slot) {
+		int off = offset(slot);
+		int length = buffer.getShort(off + LENGTH) & 0xffff;
+		byte[] payload = new byte[Math.min(length, SLOT_SIZE - HEADER_SIZE)];
+		buffer.position(off + HEADER_SIZE);
+		buffer.get(payload);
+		return new DataInputStream(new ByteArrayInputStream(payload));
+	}
+	
+	/**
+	 * Returns the payload of the flow and the callback parameters, or null if it doesn't fit in a slot.
+	 */
+	private byte[] encode(PendingFlow flow, Map<String, String> callback) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(flow.getId());
+			out.writeUTF(flow.getApiClassName());
+			out.writeUTF(flow.getOrigin()==null ? "" : flow.getOrigin());
+			Token token = flow.getRequestToken();
+			out.writeBoolean(token!=null);
+			if (token!=null) {
+				out.writeUTF(token.getToken());
+				out.writeUTF(token.getSecret()==null ? "" : token.getSecret());
+			}
+			if (callback!=null) {
+				out.writeShort(callback.size());
+				for (Map.Entry<String, String> e : callback.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeUTF(e.getValue()==null ? "" : e.getValue());
+				}
+			}
+			out.close();
+		} catch (IOException e) {
+			// Writing to memory, or a string over 64k.
+			getLogger().log(Level.WARNING, flow + " cannot be stored", e);
+			return null;
+		}
+		if (bytes.size() > SLOT_SIZE - HEADER_SIZE) {
+			getLogger().warning(flow + " does not fit in a slot of " + file + ", not stored");
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static int offset(int slot) {
+		return slot * SLOT_SIZE;
+	}
+	
+	private FileLock lock() {
+		try {
+			return channel.lock();
+		} catch (IOException e) {
+			getLogger().log(Level.WARNING, "Locking pending flow file " + file + " failed", e);
+			return null;
+		}
+	}
+	
+	private void release(FileLock lock) {
+		try {
+			lock.release();
+		} catch (IOException e) {
+			getLogger().log(Level.WARNING, "Unlocking pending flow file " + file + " failed", e);
+		}
+	}
+	
+	private static Logger getLogger() {
+		return Logger.getLogger(MappedFilePendingFlowStore.class.getName());
+	}
+}
@@ -0,0 +1,49 @@
+package org.vaadin.addon.oauthpopup.store;
+
+import java.util.Map;
+
+import org.vaadin.addon.oauthpopup.PendingFlow;
+
+/**
+ * Shares the flows waiting for their callback between the nodes of a cluster,
+ * so that the callback doesn't need to come to the node (and session) that started the flow.
+ * <p>
+ * The node that starts a flow {@link #put(PendingFlow) puts} it here.
+ * When the callback comes to another node, that node {@link #complete(String, Map) completes}
+ * the flow with the parameters of the callback request and closes the popup.
+ * The node that started the flow {@link #takeCallback(String) takes} the parameters,
+ * exchanges them for the access token and notifies its listeners as usual.
+ * <p>
+ * See {@link org.vaadin.addon.oauthpopup.OAuthCallbackDispatcher#setPendingFlowStore(PendingFlowStore)}.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+public interface PendingFlowStore {
+	
+	/**
+	 * Stores the flow, replacing any earlier flow with the same id.
+	 */
+	public void put(PendingFlow flow);
+	
+	/**
+	 * Returns the flow with the id, or null if there's none or it's too old.
+	 */
+	public PendingFlow get(String id);
+	
+	/**
+	 * Records the callback parameters of the flow for the node that started it.
+	 * 
+	 * @return false if there's no such flow or it already has its callback
+	 */
+	public boolean complete(String id, Map<String, String> callbackParameters);
+	
+	/**
+	 * If the flow has been completed, removes it and returns the callback parameters.
+	 * 
+	 * @return null if there's no such flow or it hasn't been completed yet
+	 */
+	public Map<String, String> takeCallback(String id);
+	
+	public void remove(String id);
+
+}
@@ -0,0 +1,32 @@
+package org.vaadin.addon.oauthpopup.store;
+
+import org.scribe.model.Token;
+
+/**
+ * Stores access tokens so that returning users don't need to go through
+ * the OAuth popup again.
+ * <p>
+ * The keys are built by {@link org.vaadin.addon.oauthpopup.OAuthData}
+ * from the Api class, the API key, the scope and a key identifying the user,
+ * see {@link org.vaadin.addon.oauthpopup.OAuthPopupOpener#setTokenStore(TokenStore, String)}.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+public interface TokenStore {
+	
+	/**
+	 * Returns the token stored with the key,
+	 * or null if there's none or it's no longer valid.
+	 * An expired token is removed.
+	 */
+	public Token get(String key);
+	
+	/**
+	 * @param expiresAt when the token expires, in milliseconds since the epoch,
+	 * 0 if not known
+	 */
+	public void put(String key, Token token, long expiresAt);
+	
+	public void remove(String key);
+
+}
@@ -0,0 +1,177 @@
+package org.vaadin.addon.oauthpopup.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.scribe.exceptions.OAuthConnectionException;
+import org.scribe.model.Request;
+import org.scribe.model.Verb;
+
+/**
+ * {@link OAuthTransport} on {@link HttpURLConnection}, with persistent connections.
+ * <p>
+ * The JDK keeps idle connections in a cache keyed by host and port, and reuses
+ * them for the next request to the same host. A connection only goes back to
+ * the cache after its response has been read to the end and closed, which
+ * this transport always does, also for error responses.
+ * The number of idle connections kept per host is set with the
+ * <code>http.maxConnections</code> system property (default 5).
+ * <p>
+ * All the HTTPS connections use the same {@link SSLSocketFactory}, so the TLS sessions
+ * are resumed from its session cache instead of doing a full handshake.
+ * <p>
+ * Note that Scribe's own {@link Request#send()} sets the JVM-wide
+ * <code>http.keepAlive</code> system property to false,
+ * which turns the connection reuse off for everyone if it happens before
+ * the first connection of the JVM. Send the requests with a transport instead.
+ */
+public class HttpURLConnectionTransport implements OAuthTransport {
+	
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 15000;
+	
+	private static final String DEFAULT_CONTENT_TYPE = "application/x-www-form-urlencoded";
+	
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	private final SSLSocketFactory sslSocketFactory;
+	
+	public HttpURLConnectionTransport() {
+		this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+	}
+	
+	public HttpURLConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+		this(connectTimeoutMillis, readTimeoutMillis, HttpsURLConnection.getDefaultSSLSocketFactory());
+	}
+	
+	/**
+	 * @param sslSocketFactory the factory for all the HTTPS connections of this transport
+	 */
+	public HttpURLConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis,
+			SSLSocketFactory sslSocketFactory) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.sslSocketFactory = sslSocketFactory;
+	}
+	
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+	
+	public int getReadTimeoutMillis() {
+		return readTimeoutMillis;
+	}
+	
+	@Override
+	public TransportResponse send(Request request) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(request.getCompleteUrl()).openConnection();
+			if (connection instanceof HttpsURLConnection) {
+				((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+			}
+			connection.setConnectTimeout(connectTimeoutMillis);
+			connection.setReadTimeout(readTimeoutMillis);
+			connection.setUseCaches(false);
+			connection.setRequestMethod(request.getVerb().name());
+			for (Map.Entry<String, String> e : request.getHeaders().entrySet()) {
+				connection.setRequestProperty(e.getKey(), e.getValue());
+			}
+			if (hasBody(request.getVerb())) {
+				writeBody(connection, request);
+			}
+			int code = connection.getResponseCode();
+			String body = readBody(connection, code);
+			return new TransportResponse(code, getHeaders(connection), body);
+		}
+		catch (IOException e) {
+			throw new OAuthConnectionException(e);
+		}
+	}
+	
+	private static boolean hasBody(Verb verb) {
+		return verb==Verb.POST || verb==Verb.PUT;
+	}
+	
+	private static void writeBody(HttpURLConnection connection, Request request) throws IOException {
+		byte[] bytes = request.getBodyContents().getBytes(request.getCharset());
+		if (!request.getHeaders().containsKey("Content-Type")) {
+			connection.setRequestProperty("Content-Type", DEFAULT_CONTENT_TYPE);
+		}
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(bytes.length);
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(bytes);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	// Reads the stream to the end so that the connection can be reused.
+	private static String readBody(HttpURLConnection connection, int code) throws IOException {
+		InputStream in;
+		if (code >= 400) {
+			in = connection.getErrorStream();
+		}
+		else {
+			in = connection.getInputStream();
+		}
+		if (in==null) {
+			return "";
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				bytes.write(buf, 0, n);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return decode(bytes, connection.getContentType());
+	}
+	
+	private static String decode(ByteArrayOutputStream bytes, String contentType) {
+		String charset = "UTF-8";
+		if (contentType!=null) {
+			int i = contentType.toLowerCase().indexOf("charset=");
+			if (i >= 0) {
+				charset = contentType.substring(i + "charset=".length()).replace("\"", "").trim();
+				int end = charset.indexOf(';');
+				if (end >= 0) {
+					charset = charset.substring(0, end).trim();
+				}
+			}
+		}
+		try {
+			return bytes.toString(charset);
+		} catch (UnsupportedEncodingException e) {
+			return new String(bytes.toByteArray());
+		}
+	}
+	
+	private static Map<String, String> getHeaders(HttpURLConnection connection) {
+		Map<String, String> headers = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> e : connection.getHeaderFields().entrySet()) {
+			// The status line has a null key.
+			if (e.getKey()!=null && !e.getValue().isEmpty()) {
+				headers.put(e.getKey(), e.getValue().get(0));
+			}
+		}
+		return headers;
+	}
+}
@@ -0,0 +1,31 @@
+package org.vaadin.addon.oauthpopup.transport;
+
+import org.scribe.model.Request;
+
+/**
+ * Sends the HTTP requests to the OAuth services:
+ * the token requests of {@link org.vaadin.addon.oauthpopup.OAuthData}
+ * and the signed API requests made with
+ * {@link org.vaadin.addon.oauthpopup.OAuthData#sendSignedRequest(org.scribe.model.OAuthRequest)}.
+ * <p>
+ * Replaces {@link Request#send()} of Scribe, which opens a new connection
+ * for every request.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+public interface OAuthTransport {
+	
+	/**
+	 * Sends the request and reads the whole response.
+	 * 
+	 * @throws org.scribe.exceptions.OAuthConnectionException if the request could not be sent
+	 * or the response could not be read
+	 */
+	public TransportResponse send(Request request);
+	
+	/**
+	 * The transport used by default, a {@link HttpURLConnectionTransport} with the default timeouts.
+	 */
+	public static final OAuthTransport DEFAULT = new HttpURLConnectionTransport();
+
+}
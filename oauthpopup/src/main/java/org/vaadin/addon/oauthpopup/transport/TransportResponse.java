@@ -0,0 +1,60 @@
+package org.vaadin.addon.oauthpopup.transport;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A fully read HTTP response of an {@link OAuthTransport}.
+ */
+public class TransportResponse {
+	
+	private final int code;
+	private final Map<String, String> headers;
+	private final String body;
+	
+	/**
+	 * @param headers the header values by name, the names are matched case-insensitively
+	 */
+	public TransportResponse(int code, Map<String, String> headers, String body) {
+		this.code = code;
+		TreeMap<String, String> h = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		h.putAll(headers);
+		this.headers = Collections.unmodifiableMap(h);
+		this.body = body;
+	}
+	
+	public int getCode() {
+		return code;
+	}
+	
+	/**
+	 * Returns true for the 2xx and 3xx status codes, like Scribe's Response.
+	 */
+	public boolean isSuccessful() {
+		return code >= 200 && code < 400;
+	}
+	
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+	
+	/**
+	 * Returns the value of the header, or null. The name is case-insensitive.
+	 */
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+	
+	/**
+	 * Returns the body, the empty string if there was none.
+	 */
+	public String getBody() {
+		return body;
+	}
+	
+	@Override
+	public String toString() {
+		return "TransportResponse[" + code + "]";
+	}
+}
@@ -0,0 +1,33 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors for the blocking calls to the OAuth providers,
+ * see {@link OAuthExecutors}.
+ * <p>
+ * The Java 21 version of the multi-release jar: each call runs on its own virtual thread,
+ * so thousands of token requests can wait for the providers without tying up
+ * platform threads. There's no queue to fill up; use an {@link OAuthBulkhead}
+ * to limit the requests a provider gets.
+ */
+final class ProviderCallExecutor {
+	
+	/**
+	 * Whether the calls run on virtual threads.
+	 */
+	static final boolean VIRTUAL_THREADS = true;
+	
+	private ProviderCallExecutor() {
+	}
+	
+	/**
+	 * @param name the name prefix of the threads
+	 * @param threads ignored, there's a virtual thread per task
+	 * @param queueSize ignored, the tasks don't wait for a thread
+	 */
+	static ExecutorService create(String name, int threads, int queueSize) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + " ", 1).factory());
+	}
+}
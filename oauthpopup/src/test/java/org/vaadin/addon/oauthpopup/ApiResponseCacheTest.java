@@ -0,0 +1,140 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Request;
+import org.scribe.model.Token;
+import org.scribe.model.Verb;
+import org.vaadin.addon.oauthpopup.transport.OAuthTransport;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
+
+public class ApiResponseCacheTest {
+
+	/**
+	 * Answers with a body, an ETag and the Cache-Control set by the test,
+	 * or with a 304 when the ETag is sent back.
+	 */
+	private static class EtagTransport implements OAuthTransport {
+		volatile String cacheControl = "max-age=0";
+		volatile String body = "body";
+		volatile int requests;
+		volatile int notModified;
+
+		@Override
+		public TransportResponse send(Request request) {
+			requests++;
+			Map<String, String> headers = new HashMap<String, String>();
+			String etag = "\"" + body.hashCode() + "\"";
+			headers.put("ETag", etag);
+			headers.put("Cache-Control", cacheControl);
+			if (etag.equals(request.getHeaders().get("If-None-Match"))) {
+				notModified++;
+				return new TransportResponse(304, headers, "");
+			}
+			return new TransportResponse(200, headers, body);
+		}
+	}
+
+	private EtagTransport transport;
+	private ApiResponseCache cache;
+	private OAuthApiClient client;
+
+	@Before
+	public void setUp() {
+		transport = new EtagTransport();
+		cache = new ApiResponseCache(100, 1024 * 1024);
+		client = new OAuthApiClient(OAuthStressTest.InstantApi.class, "key", "secret", new Token("access", "secret"));
+		client.getData().setTransport(transport);
+		client.setResponseCache(cache);
+	}
+
+	private TransportResponse get(String url) {
+		return client.send(new OAuthRequest(Verb.GET, url));
+	}
+
+	@Test
+	public void freshResponseIsNotRequestedAgain() {
+		transport.cacheControl = "private, max-age=60";
+		TransportResponse first = get("http://example.com/me");
+		assertSame(first, get("http://example.com/me"));
+		assertEquals(1, transport.requests);
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void staleResponseIsRevalidated() {
+		TransportResponse first = get("http://example.com/me");
+		TransportResponse second = get("http://example.com/me");
+		assertEquals(200, second.getCode());
+		assertSame(first, second);
+		assertEquals(2, transport.requests);
+		assertEquals(1, transport.notModified);
+		assertEquals(1, cache.getRevalidationCount());
+
+		transport.body = "changed";
+		assertEquals("changed", get("http://example.com/me").getBody());
+		assertEquals("changed", get("http://example.com/me").getBody());
+		assertEquals(2, transport.notModified);
+	}
+
+	@Test
+	public void noStoreAndOtherVerbsAreNotCached() {
+		transport.cacheControl = "no-store";
+		get("http://example.com/me");
+		get("http://example.com/me");
+		transport.cacheControl = "max-age=60";
+		client.send(new OAuthRequest(Verb.POST, "http://example.com/me"));
+		client.send(new OAuthRequest(Verb.POST, "http://example.com/me"));
+		assertEquals(4, transport.requests);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void responsesArePerToken() {
+		transport.cacheControl = "max-age=60";
+		get("http://example.com/me");
+		client.getData().setAccessToken(new Token("other", "secret"));
+		get("http://example.com/me");
+		assertEquals(2, transport.requests);
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() {
+		cache = new ApiResponseCache(2, 1024 * 1024);
+		client.setResponseCache(cache);
+		transport.cacheControl = "max-age=60";
+		get("http://example.com/a");
+		get("http://example.com/b");
+		get("http://example.com/a");
+		get("http://example.com/c");
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		get("http://example.com/a");
+		assertEquals(3, transport.requests);
+		get("http://example.com/b");
+		assertEquals(4, transport.requests);
+	}
+
+	@Test
+	public void sizeIsBounded() {
+		cache = new ApiResponseCache(100, 4096);
+		client.setResponseCache(cache);
+		transport.cacheControl = "max-age=60";
+		transport.body = new String(new char[1500]);
+		get("http://example.com/a");
+		get("http://example.com/b");
+		assertEquals(1, cache.size());
+		assertEquals(true, cache.getBytes() <= 4096);
+		transport.body = new String(new char[5000]);
+		get("http://example.com/c");
+		assertEquals(1, cache.size());
+	}
+}
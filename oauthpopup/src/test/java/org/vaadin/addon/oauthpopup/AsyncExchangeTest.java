@@ -0,0 +1,105 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+
+public class AsyncExchangeTest {
+
+	/**
+	 * Records the outcome, and the thread it came in.
+	 */
+	private static class RecordingListener implements OAuthListener {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Thread thread;
+
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			record("success " + accessToken);
+		}
+
+		@Override
+		public void authDenied(String reason) {
+			record("denied " + reason);
+		}
+
+		private void record(String event) {
+			thread = Thread.currentThread();
+			events.add(event);
+			done.countDown();
+		}
+	}
+
+	private ExecutorService executor;
+	private OAuthData data;
+	private RecordingListener listener;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newSingleThreadExecutor();
+		data = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		data.setExchangeExecutor(executor);
+		listener = new RecordingListener();
+		data.addListener(listener);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private void exchange(String verifier) throws InterruptedException {
+		data.setVerifierAsync(new Token("request", "secret"), new Verifier(verifier));
+		assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void exchangesOnTheExecutor() throws Exception {
+		exchange("verifier");
+		assertEquals(Collections.singletonList("success access"), listener.events);
+		assertTrue(listener.thread!=Thread.currentThread());
+		assertEquals("access", data.getAccessToken().getToken());
+	}
+
+	@Test
+	public void failedExchangeIsReported() throws Exception {
+		exchange("fail");
+		assertEquals(1, listener.events.size());
+		assertTrue(listener.events.get(0).startsWith("denied "));
+	}
+
+	@Test
+	public void crashedExchangeIsReported() throws Exception {
+		exchange("crash");
+		assertEquals(Collections.singletonList("denied OAuth failed: access token exchange failed."), listener.events);
+	}
+
+	@Test
+	public void rejectedExchangeIsReported() throws Exception {
+		data.setExchangeExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("full");
+			}
+		});
+		exchange("verifier");
+		assertEquals(Collections.singletonList("denied OAuth failed: access token exchange rejected."), listener.events);
+	}
+}
@@ -0,0 +1,69 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.scribe.builder.api.DefaultApi10a;
+import org.scribe.builder.api.TwitterApi;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.SignatureType;
+import org.scribe.model.Token;
+import org.scribe.utils.OAuthEncoder;
+import org.vaadin.addon.oauthpopup.buttons.GitHubApi;
+
+public class AuthorizationUrlTemplateTest {
+
+	private static final OAuthConfig CONFIG = new OAuthConfig("key", "secret",
+			"https://example.com/app/?oauthpopupcallback=1", SignatureType.Header, "user", null);
+
+	/**
+	 * Encodes the token, so the url can't be built by just inserting it.
+	 */
+	public static class EncodingApi extends TwitterApi {
+		@Override
+		public String getAuthorizationUrl(Token requestToken) {
+			return "https://example.com/authorize?oauth_token=" + OAuthEncoder.encode(requestToken.getToken());
+		}
+	}
+
+	@Test
+	public void oauth10aTokenIsInserted() {
+		DefaultApi10a api = new TwitterApi();
+		AuthorizationUrlTemplate template = AuthorizationUrlTemplate.compile(api, CONFIG);
+		assertTrue(template.isSupported());
+		Token token = new Token("abc-123", "secret");
+		assertEquals(api.getAuthorizationUrl(token), template.expand(token));
+		assertNull(template.expand(null));
+	}
+
+	@Test
+	public void oauth20UrlIsConstant() {
+		GitHubApi api = new GitHubApi();
+		AuthorizationUrlTemplate template = AuthorizationUrlTemplate.compile(api, CONFIG);
+		assertEquals(api.getAuthorizationUrl(CONFIG), template.expand(null));
+		assertEquals("https://github.com/login/oauth/authorize?client_id=key"
+				+ "&redirect_uri=https://example.com/app/?oauthpopupcallback=1&scope=user", template.expand(null));
+	}
+
+	@Test
+	public void encodingApiIsUnsupported() {
+		AuthorizationUrlTemplate template = AuthorizationUrlTemplate.compile(new EncodingApi(), CONFIG);
+		assertFalse(template.isSupported());
+		assertNull(template.expand(new Token("abc", "secret")));
+	}
+
+	@Test
+	public void dataUsesTheTemplate() {
+		OAuthData data = new OAuthData(TwitterApi.class, "key", "secret");
+		data.setCallback("https://example.com/app/");
+		Token token = new Token("abc-123", "secret");
+		assertEquals(new TwitterApi().getAuthorizationUrl(token), data.getAuthorizationUrl(token));
+		assertSame(data.asConfig(), data.asConfig());
+		data.setScope("email");
+		assertEquals("email", data.asConfig().getScope());
+	}
+}
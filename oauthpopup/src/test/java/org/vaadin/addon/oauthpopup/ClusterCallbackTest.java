@@ -0,0 +1,81 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.Token;
+import org.vaadin.addon.oauthpopup.store.InMemoryPendingFlowStore;
+import org.vaadin.addon.oauthpopup.store.PendingFlowStore;
+
+/**
+ * A callback coming to a session that didn't start the flow, as without sticky sessions.
+ */
+public class ClusterCallbackTest {
+
+	private PendingFlowStore store;
+
+	@Before
+	public void setUp() {
+		store = new InMemoryPendingFlowStore(60000);
+		OAuthCallbackDispatcher.setPendingFlowStore(store);
+	}
+
+	@After
+	public void tearDown() {
+		OAuthCallbackDispatcher.setPendingFlowStore(null);
+	}
+
+	@Test
+	public void callbackOnAnotherNodeCompletesTheFlowOnItsOrigin() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<String> accessToken = new AtomicReference<String>();
+		OAuthData data = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		data.addListener(new OAuthListener() {
+			@Override
+			public void authSuccessful(String token, String secret, String oauthRawResponse) {
+				accessToken.set(token);
+				done.countDown();
+			}
+
+			@Override
+			public void authDenied(String reason) {
+				done.countDown();
+			}
+		});
+		OAuthCallbackDispatcher origin = new OAuthCallbackDispatcher();
+		origin.register(data);
+		origin.addPendingFlow(new OAuthCallbackRequestHandler(new Token("request", "secret"), data));
+		assertEquals(DefaultFlowIdGenerator.localNode(), store.get(data.getId()).getOrigin());
+
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(OAuthCallbackInjecter.CALLBACK_ID_NAME, data.getId());
+		params.put(data.getVerifierParameterName(), "verifier");
+		OAuthCallbackDispatcher other = new OAuthCallbackDispatcher();
+		assertTrue(other.handleRequest(null, FakeVaadinRequests.request(null, params), FakeVaadinRequests.response()));
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("access", accessToken.get());
+		assertEquals(0, origin.getPendingFlowCount());
+		// Taken by the origin, a repeated callback is not for anyone.
+		assertFalse(other.handleRequest(null, FakeVaadinRequests.request(null, params), FakeVaadinRequests.response()));
+	}
+
+	@Test
+	public void unknownCallbackIsNotHandled() throws Exception {
+		OAuthCallbackDispatcher other = new OAuthCallbackDispatcher();
+		Map<String, String> params = Collections.singletonMap(OAuthCallbackInjecter.CALLBACK_ID_NAME, "unknown");
+		assertFalse(other.handleRequest(null, FakeVaadinRequests.request(null, params), FakeVaadinRequests.response()));
+	}
+}
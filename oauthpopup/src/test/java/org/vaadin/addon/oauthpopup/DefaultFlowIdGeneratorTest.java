@@ -0,0 +1,62 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class DefaultFlowIdGeneratorTest {
+
+	@Test
+	public void idsAreUniqueAcrossThreads() throws Exception {
+		final DefaultFlowIdGenerator generator = new DefaultFlowIdGenerator("node1");
+		final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final int threads = 8;
+		final int perThread = 10000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t=0; t<threads; ++t) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i=0; i<perThread; ++i) {
+							ids.add(generator.nextId());
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertEquals(threads * perThread, ids.size());
+	}
+
+	@Test
+	public void idsAreUriSafeAndCarryTheNode() {
+		String id = new DefaultFlowIdGenerator("node-1.example").nextId();
+		assertTrue(id, id.matches("node1example-[0-9a-z]+-[0-9a-z]+"));
+	}
+
+	@Test
+	public void nodesGetDifferentIds() {
+		String a = new DefaultFlowIdGenerator().nextId();
+		String b = new DefaultFlowIdGenerator().nextId();
+		assertTrue(!a.equals(b));
+	}
+}
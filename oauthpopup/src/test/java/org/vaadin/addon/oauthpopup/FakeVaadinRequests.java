@@ -0,0 +1,106 @@
+package org.vaadin.addon.oauthpopup;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+
+/**
+ * Fake {@link VaadinRequest}s and {@link VaadinResponse}s for the request handler tests,
+ * answering null to anything not listed.
+ */
+final class FakeVaadinRequests {
+
+	private FakeVaadinRequests() {
+	}
+
+	/**
+	 * What was sent with a response.
+	 */
+	static final class Recorded {
+		final StringWriter body = new StringWriter();
+		final Map<String, String> headers = new HashMap<String, String>();
+		int status = 200;
+		long cacheTime = -1;
+	}
+
+	/**
+	 * A request with the path info and the parameters, which are read from the map on every call.
+	 */
+	static VaadinRequest request(final String pathInfo, final Map<String, String> params) {
+		return (VaadinRequest) Proxy.newProxyInstance(FakeVaadinRequests.class.getClassLoader(),
+				new Class<?>[] { VaadinRequest.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getPathInfo")) {
+					return pathInfo;
+				}
+				if (method.getName().equals("getParameter")) {
+					return params.get(args[0]);
+				}
+				if (method.getName().equals("getParameterMap")) {
+					Map<String, String[]> map = new HashMap<String, String[]>();
+					for (Map.Entry<String, String> e : params.entrySet()) {
+						map.put(e.getKey(), new String[] { e.getValue() });
+					}
+					return map;
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * A request with the path info and the parameters given as name, value, name, value...
+	 * Parameters with a null name are left out.
+	 */
+	static VaadinRequest request(String pathInfo, String... namesAndValues) {
+		Map<String, String> params = new HashMap<String, String>();
+		for (int i=0; i + 1 < namesAndValues.length; i += 2) {
+			if (namesAndValues[i]!=null) {
+				params.put(namesAndValues[i], namesAndValues[i + 1]);
+			}
+		}
+		return request(pathInfo, params);
+	}
+
+	/**
+	 * A response that is thrown away.
+	 */
+	static VaadinResponse response() {
+		return response(new Recorded());
+	}
+
+	/**
+	 * A response whose body, status, headers and cache time are recorded.
+	 */
+	static VaadinResponse response(final Recorded recorded) {
+		final PrintWriter writer = new PrintWriter(recorded.body, true);
+		return (VaadinResponse) Proxy.newProxyInstance(FakeVaadinRequests.class.getClassLoader(),
+				new Class<?>[] { VaadinResponse.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("getWriter")) {
+					return writer;
+				}
+				if (name.equals("setStatus") || name.equals("sendError")) {
+					recorded.status = (Integer) args[0];
+				}
+				else if (name.equals("setHeader")) {
+					recorded.headers.put((String) args[0], (String) args[1]);
+				}
+				else if (name.equals("setCacheTime")) {
+					recorded.cacheTime = (Long) args[0];
+				}
+				return null;
+			}
+		});
+	}
+}
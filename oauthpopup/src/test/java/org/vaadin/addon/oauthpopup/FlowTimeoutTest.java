@@ -0,0 +1,61 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.scribe.model.Token;
+
+public class FlowTimeoutTest {
+
+	private static class Listener implements OAuthTimeoutListener {
+		final CountDownLatch timedOut = new CountDownLatch(1);
+
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+		}
+
+		@Override
+		public void authDenied(String reason) {
+		}
+
+		@Override
+		public void authTimedOut() {
+			timedOut.countDown();
+		}
+	}
+
+	@Test
+	public void abandonedFlowTimesOut() throws Exception {
+		OAuthData data = new OAuthData(OAuthDataConcurrencyTest.BlockingApi.class, "key", "secret");
+		data.setFlowTimeoutMillis(50);
+		Listener listener = new Listener();
+		data.addListener(listener);
+
+		OAuthCallbackDispatcher dispatcher = new OAuthCallbackDispatcher();
+		dispatcher.addPendingFlow(new OAuthCallbackRequestHandler(new Token("request", "secret"), data));
+		assertEquals(1, dispatcher.getPendingFlowCount());
+
+		assertTrue(listener.timedOut.await(5, TimeUnit.SECONDS));
+		assertEquals(0, dispatcher.getPendingFlowCount());
+	}
+
+	@Test
+	public void removedFlowDoesNotTimeOut() throws Exception {
+		OAuthData data = new OAuthData(OAuthDataConcurrencyTest.BlockingApi.class, "key", "secret");
+		data.setFlowTimeoutMillis(50);
+		Listener listener = new Listener();
+		data.addListener(listener);
+
+		OAuthCallbackDispatcher dispatcher = new OAuthCallbackDispatcher();
+		OAuthCallbackRequestHandler handler = new OAuthCallbackRequestHandler(null, data);
+		dispatcher.addPendingFlow(handler);
+		handler.cleanUpSession(null);
+
+		assertFalse(listener.timedOut.await(300, TimeUnit.MILLISECONDS));
+	}
+}
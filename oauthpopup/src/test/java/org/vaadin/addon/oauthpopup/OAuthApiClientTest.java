@@ -0,0 +1,159 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Request;
+import org.scribe.model.Token;
+import org.scribe.model.Verb;
+import org.vaadin.addon.oauthpopup.transport.OAuthTransport;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+public class OAuthApiClientTest {
+
+	/**
+	 * Answers with the url of the request, after waiting for the test to let it.
+	 */
+	private static class GatedTransport implements OAuthTransport {
+		final CountDownLatch gate = new CountDownLatch(1);
+
+		@Override
+		public TransportResponse send(Request request) {
+			try {
+				gate.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new TransportResponse(200, Collections.<String, String>emptyMap(), request.getUrl());
+		}
+	}
+
+	/**
+	 * Records whether the UI was locked for the callback.
+	 */
+	@SuppressWarnings("serial")
+	private static class LockingUI extends UI {
+		VaadinSession session = new VaadinSession(null);
+		volatile boolean locked;
+
+		@Override
+		protected void init(VaadinRequest request) {
+		}
+
+		@Override
+		public VaadinSession getSession() {
+			return session;
+		}
+
+		@Override
+		public Future<Void> access(Runnable runnable) {
+			synchronized (this) {
+				locked = true;
+				try {
+					runnable.run();
+				}
+				finally {
+					locked = false;
+				}
+			}
+			return null;
+		}
+	}
+
+	private GatedTransport transport;
+	private OAuthApiClient client;
+
+	@Before
+	public void setUp() {
+		transport = new GatedTransport();
+		client = new OAuthApiClient(OAuthStressTest.InstantApi.class, "key", "secret", new Token("access", "secret"));
+		client.getData().setTransport(transport);
+	}
+
+	@Test
+	public void responseIsDeliveredInTheUIWithoutHoldingItDuringTheRequest() throws Exception {
+		final LockingUI ui = new LockingUI();
+		final CountDownLatch delivered = new CountDownLatch(1);
+		final AtomicReference<String> body = new AtomicReference<String>();
+		Future<TransportResponse> f = client.sendAsync(new OAuthRequest(Verb.GET, "http://example.com/api"), ui,
+				new OAuthApiClient.ResponseCallback() {
+			@Override
+			public void onResponse(TransportResponse response) {
+				body.set(ui.locked ? response.getBody() : "unlocked");
+				delivered.countDown();
+			}
+
+			@Override
+			public void onFailure(Throwable error) {
+				body.set(error.toString());
+				delivered.countDown();
+			}
+		});
+		assertTrue(!f.isDone() && !ui.locked);
+		transport.gate.countDown();
+		assertTrue(delivered.await(5, TimeUnit.SECONDS));
+		assertEquals("http://example.com/api", body.get());
+		assertEquals(200, f.get().getCode());
+	}
+
+	@Test
+	public void detachedUIGetsNothing() throws Exception {
+		LockingUI ui = new LockingUI();
+		ui.session = null;
+		final AtomicReference<Object> outcome = new AtomicReference<Object>();
+		transport.gate.countDown();
+		Future<TransportResponse> f = client.sendAsync(new OAuthRequest(Verb.GET, "http://example.com/api"), ui,
+				new OAuthApiClient.ResponseCallback() {
+			@Override
+			public void onResponse(TransportResponse response) {
+				outcome.set(response);
+			}
+
+			@Override
+			public void onFailure(Throwable error) {
+				outcome.set(error);
+			}
+		});
+		f.get(5, TimeUnit.SECONDS);
+		assertNull(outcome.get());
+	}
+
+	@Test
+	public void rejectionIsAFailure() throws Exception {
+		client.setExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("full");
+			}
+		});
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		client.sendAsync(new OAuthRequest(Verb.GET, "http://example.com/api"), new OAuthApiClient.ResponseCallback() {
+			@Override
+			public void onResponse(TransportResponse response) {
+			}
+
+			@Override
+			public void onFailure(Throwable error) {
+				failure.set(error);
+			}
+		});
+		assertTrue(failure.get() instanceof RejectedExecutionException);
+	}
+}
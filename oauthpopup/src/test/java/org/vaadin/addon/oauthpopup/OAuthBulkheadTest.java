@@ -0,0 +1,173 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.After;
+import org.junit.Test;
+import org.scribe.exceptions.OAuthException;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+
+import com.vaadin.server.VaadinSession;
+
+public class OAuthBulkheadTest {
+
+	@After
+	public void tearDown() {
+		OAuthData.setBulkhead(OAuthStressTest.InstantApi.class, null);
+	}
+
+	@Test
+	public void limitsConcurrency() throws Exception {
+		final OAuthBulkhead bulkhead = new OAuthBulkhead(3, 100, 10000);
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(12);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i=0; i<60; ++i) {
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						bulkhead.acquire();
+						try {
+							int now = active.incrementAndGet();
+							synchronized (maxActive) {
+								maxActive.set(Math.max(maxActive.get(), now));
+							}
+							Thread.sleep(2);
+							active.decrementAndGet();
+						}
+						finally {
+							bulkhead.release();
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<Void> f : executor.invokeAll(tasks, 30, TimeUnit.SECONDS)) {
+				f.get();
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		assertTrue(maxActive.get() <= 3);
+		assertEquals(0, bulkhead.getActive());
+		assertEquals(0, bulkhead.getQueued());
+		assertEquals(0, bulkhead.getRejectedCount());
+	}
+
+	@Test
+	public void rejectsWhenQueueIsFullAndTimesOut() throws Exception {
+		final OAuthBulkhead bulkhead = new OAuthBulkhead(1, 1, 200);
+		bulkhead.acquire();
+
+		final CountDownLatch waiting = new CountDownLatch(1);
+		Thread queued = new Thread() {
+			@Override
+			public void run() {
+				waiting.countDown();
+				try {
+					bulkhead.acquire();
+				}
+				catch (OAuthBulkhead.RejectedException e) {
+					// Timed out, counted below.
+				}
+			}
+		};
+		queued.start();
+		waiting.await();
+		while (bulkhead.getQueued()==0) {
+			Thread.sleep(1);
+		}
+		try {
+			bulkhead.acquire();
+			fail();
+		}
+		catch (OAuthBulkhead.RejectedException e) {
+			assertEquals(1, bulkhead.getRejectedCount());
+		}
+		queued.join(5000);
+		assertEquals(1, bulkhead.getTimedOutCount());
+		assertEquals(1, bulkhead.getActive());
+		bulkhead.release();
+		assertEquals(0, bulkhead.getActive());
+	}
+
+	@Test
+	@SuppressWarnings("serial")
+	public void noQueueingUnderTheSessionLock() {
+		OAuthBulkhead bulkhead = new OAuthBulkhead(1, 10, 5000);
+		OAuthData.setBulkhead(OAuthStressTest.InstantApi.class, bulkhead);
+		OAuthData data = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		final ReentrantLock lock = new ReentrantLock();
+		VaadinSession.setCurrent(new VaadinSession(null) {
+			@Override
+			public Lock getLockInstance() {
+				return lock;
+			}
+		});
+		lock.lock();
+		try {
+			assertEquals("request", data.createNewRequestToken().getToken());
+
+			bulkhead.acquire();
+			long start = System.currentTimeMillis();
+			try {
+				data.createNewRequestToken();
+				fail();
+			}
+			catch (OAuthException e) {
+				assertTrue(e.getCause() instanceof OAuthBulkhead.RejectedException);
+				assertTrue(System.currentTimeMillis() - start < 2000);
+			}
+			bulkhead.release();
+		}
+		finally {
+			lock.unlock();
+			VaadinSession.setCurrent(null);
+		}
+		assertEquals(1, bulkhead.getRejectedCount());
+		assertEquals(0, bulkhead.getTimedOutCount());
+		assertEquals(0, bulkhead.getActive());
+	}
+
+	@Test
+	public void rejectedExchangeFailsTheFlow() {
+		OAuthBulkhead bulkhead = new OAuthBulkhead(1, 0, 0);
+		OAuthData.setBulkhead(OAuthStressTest.InstantApi.class, bulkhead);
+		OAuthData data = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+
+		bulkhead.acquire();
+		try {
+			data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+			fail();
+		}
+		catch (OAuthException e) {
+			assertTrue(e.getCause() instanceof OAuthBulkhead.RejectedException);
+		}
+		bulkhead.release();
+
+		data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+		assertEquals("access", data.getAccessToken().getToken());
+		assertEquals(1, bulkhead.getRejectedCount());
+		assertEquals(0, bulkhead.getActive());
+	}
+}
@@ -0,0 +1,136 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+import org.vaadin.addon.oauthpopup.store.InMemoryTokenStore;
+
+import com.vaadin.server.VaadinRequest;
+
+/**
+ * Which requests of the session the dispatcher looks at, and the popup redirect endpoint.
+ */
+public class OAuthCallbackDispatcherTest {
+
+	private OAuthData data;
+	private OAuthCallbackDispatcher dispatcher;
+	private AtomicInteger parameterReads;
+
+	@Before
+	public void setUp() {
+		data = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		dispatcher = new OAuthCallbackDispatcher();
+		dispatcher.register(data);
+		parameterReads = new AtomicInteger();
+	}
+
+	private void startFlow() {
+		dispatcher.addPendingFlow(new OAuthCallbackRequestHandler(new Token("request", "secret"), data));
+	}
+
+	@Test
+	public void nothingIsLookedAtWithoutPendingFlows() throws Exception {
+		assertFalse(dispatcher.handleRequest(null, request("/", data.getId()), FakeVaadinRequests.response()));
+		assertEquals(0, parameterReads.get());
+	}
+
+	@Test
+	public void frameworkRequestsAreRejectedByPath() throws Exception {
+		startFlow();
+		for (String path : new String[] { "/UIDL/", "/PUSH/", "/HEARTBEAT/" }) {
+			assertFalse(path, dispatcher.handleRequest(null, request(path, data.getId()), FakeVaadinRequests.response()));
+		}
+		assertEquals(0, parameterReads.get());
+		assertEquals(1, dispatcher.getPendingFlowCount());
+	}
+
+	@Test
+	public void callbackIsHandledOnce() throws Exception {
+		startFlow();
+		assertFalse(dispatcher.handleRequest(null, request("/", "unknown"), FakeVaadinRequests.response()));
+		assertTrue(dispatcher.handleRequest(null, request("/", data.getId()), FakeVaadinRequests.response()));
+		assertEquals(0, dispatcher.getPendingFlowCount());
+		assertFalse(dispatcher.handleRequest(null, request("/", data.getId()), FakeVaadinRequests.response()));
+	}
+
+	@Test
+	public void redirectStartsAFlow() throws Exception {
+		FakeVaadinRequests.Recorded response = new FakeVaadinRequests.Recorded();
+		assertTrue(dispatcher.handleRequest(null, redirectRequest(data.getId()), FakeVaadinRequests.response(response)));
+		assertEquals(302, response.status);
+		assertEquals(data.getAuthorizationUrl(new Token("request", "secret")), response.headers.get("Location"));
+		assertEquals(0, response.cacheTime);
+		assertEquals(1, dispatcher.getPendingFlowCount());
+	}
+
+	@Test
+	public void redirectWithoutDataIsNotFound() throws Exception {
+		for (String id : new String[] { "unknown", null }) {
+			FakeVaadinRequests.Recorded response = new FakeVaadinRequests.Recorded();
+			assertTrue(dispatcher.handleRequest(null, redirectRequest(id), FakeVaadinRequests.response(response)));
+			assertEquals(404, response.status);
+			assertNull(response.headers.get("Location"));
+		}
+		assertEquals(0, dispatcher.getPendingFlowCount());
+	}
+
+	@Test
+	public void redirectWithStoredTokenClosesTheWindow() throws Exception {
+		InMemoryTokenStore store = new InMemoryTokenStore(10, 0);
+		data.setTokenStore(store, "user");
+		data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+		OAuthData returning = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		returning.setCallback("http://example.com/app");
+		returning.setTokenStore(store, "user");
+		dispatcher.register(returning);
+
+		FakeVaadinRequests.Recorded response = new FakeVaadinRequests.Recorded();
+		assertTrue(dispatcher.handleRequest(null, redirectRequest(returning.getId()), FakeVaadinRequests.response(response)));
+		assertEquals(200, response.status);
+		assertTrue(response.body.toString().contains("window.close()"));
+		assertEquals(0, dispatcher.getPendingFlowCount());
+		assertEquals("access", returning.getAccessToken().getToken());
+	}
+
+	@Test
+	public void onlyFrameworkPrefixesMatch() {
+		assertTrue(OAuthCallbackDispatcher.isFrameworkRequest(request("/UIDL/", null)));
+		assertTrue(OAuthCallbackDispatcher.isFrameworkRequest(request("/HEARTBEAT/", null)));
+		assertFalse(OAuthCallbackDispatcher.isFrameworkRequest(request(null, null)));
+		assertFalse(OAuthCallbackDispatcher.isFrameworkRequest(request("/UIDLS/", null)));
+		assertFalse(OAuthCallbackDispatcher.isFrameworkRequest(request("/app/UIDL/", null)));
+		assertFalse(OAuthCallbackDispatcher.isFrameworkRequest(request("/oauthpopupcallback/x", null)));
+	}
+
+	private static VaadinRequest redirectRequest(String dataId) {
+		return FakeVaadinRequests.request("/" + OAuthCallbackDispatcher.REDIRECT_PATH, OAuthPopupUI.DATA_PARAM_NAME, dataId);
+	}
+
+	/**
+	 * A request to the path, with the callback id and the verifier as parameters.
+	 */
+	@SuppressWarnings("serial")
+	private VaadinRequest request(String pathInfo, String callbackId) {
+		Map<String, String> params = new HashMap<String, String>() {
+			@Override
+			public String get(Object name) {
+				parameterReads.incrementAndGet();
+				return super.get(name);
+			}
+		};
+		params.put(OAuthCallbackInjecter.CALLBACK_ID_NAME, callbackId);
+		params.put(data.getVerifierParameterName(), "verifier");
+		return FakeVaadinRequests.request(pathInfo, params);
+	}
+}
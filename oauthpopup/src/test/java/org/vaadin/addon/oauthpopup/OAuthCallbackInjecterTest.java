@@ -0,0 +1,49 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class OAuthCallbackInjecterTest {
+
+	private static final String NAME = OAuthCallbackInjecter.CALLBACK_ID_NAME;
+
+	private static final String[] PATHS = {
+		null, "", "/", "//", "///", "x", "/x", "x/", NAME, "/" + NAME, "/" + NAME + "/",
+		"/" + NAME + "//", "/" + NAME + "/id", "/" + NAME + "/id/", "/" + NAME + "/id//",
+		NAME + "/id", "/app/" + NAME + "/id", "/app//" + NAME + "/id", "/x" + NAME + "/id",
+		"/" + NAME + "x/id", "/" + NAME + "//id", "/" + NAME + "/id/more", "//id",
+		"/" + NAME.substring(1) + "/id", "/VAADIN/themes/demo/styles.css", "/UIDL/",
+	};
+
+	@Test
+	public void pathExtractionMatchesSplitting() {
+		OAuthCallbackInjecter injecter = OAuthCallbackInjecter.PATH_INJECTER;
+		for (String path : PATHS) {
+			assertEquals(path, extractBySplitting(path), injecter.extractIdFromCallback(FakeVaadinRequests.request(path)));
+		}
+	}
+
+	@Test
+	public void pathInjectionRoundTrips() {
+		OAuthCallbackInjecter injecter = OAuthCallbackInjecter.PATH_INJECTER;
+		String callback = injecter.injectIdToCallback("https://example.com/myapp/?lang=en", "0-1a-2b");
+		assertEquals("https://example.com/myapp/" + NAME + "/0-1a-2b?lang=en", callback);
+		assertEquals("0-1a-2b", injecter.extractIdFromCallback(FakeVaadinRequests.request("/" + NAME + "/0-1a-2b")));
+		assertNull(injecter.extractIdFromCallback(FakeVaadinRequests.request("/myapp/")));
+	}
+
+	// What the path injecter used to do.
+	private static String extractBySplitting(String path) {
+		if (path==null) {
+			return null;
+		}
+		String[] parts = path.split("/");
+		int len = parts.length;
+		if (len < 2 || !NAME.equals(parts[len-2])) {
+			return null;
+		}
+		return parts[len-1];
+	}
+}
@@ -0,0 +1,250 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.builder.api.Api;
+import org.scribe.exceptions.OAuthException;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+import org.scribe.oauth.OAuthService;
+
+import com.vaadin.server.VaadinSession;
+
+public class OAuthCircuitBreakerTest {
+
+	private static final AtomicInteger failuresLeft = new AtomicInteger();
+	private static final AtomicInteger requests = new AtomicInteger();
+
+	/**
+	 * Api whose request token fetch fails as many times as told.
+	 */
+	public static class FlakyApi implements Api {
+		@Override
+		public OAuthService createService(OAuthConfig config) {
+			return new OAuthService() {
+				@Override
+				public Token getRequestToken() {
+					requests.incrementAndGet();
+					if (failuresLeft.getAndDecrement() > 0) {
+						throw new OAuthException("provider down");
+					}
+					return new Token("request", "secret");
+				}
+
+				@Override
+				public Token getAccessToken(Token requestToken, Verifier verifier) {
+					return new Token("access", "secret", "raw");
+				}
+
+				@Override
+				public void signRequest(Token accessToken, OAuthRequest request) {
+				}
+
+				@Override
+				public String getVersion() {
+					return "1.0";
+				}
+
+				@Override
+				public String getAuthorizationUrl(Token requestToken) {
+					return "http://example.com/authorize";
+				}
+			};
+		}
+	}
+
+	private OAuthData data;
+
+	@Before
+	public void setUp() {
+		failuresLeft.set(0);
+		requests.set(0);
+		data = new OAuthData(FlakyApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+	}
+
+	@After
+	public void tearDown() {
+		OAuthData.setCircuitBreaker(FlakyApi.class, null);
+		OAuthData.setBulkhead(FlakyApi.class, null);
+	}
+
+	@Test
+	public void opensAfterFailuresAndClosesAfterProbe() throws Exception {
+		OAuthCircuitBreaker breaker = new OAuthCircuitBreaker(3, 100);
+		OAuthData.setCircuitBreaker(FlakyApi.class, breaker);
+		failuresLeft.set(3);
+		for (int i=0; i<3; ++i) {
+			try {
+				data.createNewRequestToken();
+				fail();
+			}
+			catch (OAuthCircuitBreaker.OpenException e) {
+				fail();
+			}
+			catch (OAuthException e) {
+				// The provider failure itself.
+			}
+		}
+		assertEquals(OAuthCircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(data.isProviderAvailable());
+		try {
+			data.createNewRequestToken();
+			fail();
+		}
+		catch (OAuthCircuitBreaker.OpenException e) {
+			assertEquals(OAuthCircuitBreaker.PROVIDER_UNAVAILABLE, e.getMessage());
+		}
+		try {
+			data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+			fail();
+		}
+		catch (OAuthCircuitBreaker.OpenException e) {
+			// Fails fast too.
+		}
+		assertEquals(3, requests.get());
+		assertEquals(2, breaker.getRejectedCount());
+
+		Thread.sleep(150);
+		assertEquals("request", data.createNewRequestToken().getToken());
+		assertEquals(OAuthCircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(data.isProviderAvailable());
+		assertEquals(1, breaker.getOpenedCount());
+	}
+
+	@Test
+	public void failedProbeOpensAgain() throws Exception {
+		OAuthCircuitBreaker breaker = new OAuthCircuitBreaker(1, 50);
+		breaker.onFailure();
+		Thread.sleep(80);
+		breaker.acquire();
+		assertEquals(OAuthCircuitBreaker.State.HALF_OPEN, breaker.getState());
+		try {
+			breaker.acquire();
+			fail();
+		}
+		catch (OAuthCircuitBreaker.OpenException e) {
+			// Only one probe at a time.
+		}
+		breaker.onFailure();
+		assertEquals(OAuthCircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpenedCount());
+	}
+
+	@Test
+	public void probeIsNotLostToAFullBulkhead() throws Exception {
+		OAuthCircuitBreaker breaker = new OAuthCircuitBreaker(1, 50);
+		OAuthData.setCircuitBreaker(FlakyApi.class, breaker);
+		OAuthBulkhead bulkhead = new OAuthBulkhead(1, 0, 0);
+		OAuthData.setBulkhead(FlakyApi.class, bulkhead);
+		breaker.onFailure();
+		bulkhead.acquire();
+		Thread.sleep(80);
+		try {
+			data.createNewRequestToken();
+			fail();
+		}
+		catch (OAuthCircuitBreaker.OpenException e) {
+			fail();
+		}
+		catch (OAuthException e) {
+			assertEquals(1, bulkhead.getRejectedCount());
+		}
+		assertEquals(OAuthCircuitBreaker.State.OPEN, breaker.getState());
+
+		bulkhead.release();
+		assertEquals("request", data.createNewRequestToken().getToken());
+		assertEquals(OAuthCircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void requestTokenIsRetriedWithBackoff() {
+		OAuthData.setCircuitBreaker(FlakyApi.class, new OAuthCircuitBreaker(10, 1000, 2, 5));
+		failuresLeft.set(2);
+		assertEquals("request", data.createNewRequestToken().getToken());
+		assertEquals(3, requests.get());
+
+		failuresLeft.set(3);
+		try {
+			data.createNewRequestToken();
+			fail();
+		}
+		catch (OAuthException e) {
+			assertEquals(6, requests.get());
+		}
+	}
+
+	@Test
+	@SuppressWarnings("serial")
+	public void noBackoffWhileHoldingTheSessionLock() {
+		OAuthData.setCircuitBreaker(FlakyApi.class, new OAuthCircuitBreaker(10, 1000, 2, 5000));
+		final ReentrantLock lock = new ReentrantLock();
+		VaadinSession session = new VaadinSession(null) {
+			@Override
+			public Lock getLockInstance() {
+				return lock;
+			}
+		};
+		VaadinSession.setCurrent(session);
+		lock.lock();
+		try {
+			failuresLeft.set(1);
+			long start = System.currentTimeMillis();
+			try {
+				data.createNewRequestToken();
+				fail();
+			}
+			catch (OAuthException e) {
+				assertEquals(1, requests.get());
+				assertTrue(System.currentTimeMillis() - start < 2000);
+			}
+		}
+		finally {
+			lock.unlock();
+			VaadinSession.setCurrent(null);
+		}
+		assertFalse(OAuthData.isSessionLocked());
+	}
+
+	@Test
+	public void popupFailsFastWhileOpen() throws Exception {
+		OAuthCircuitBreaker breaker = new OAuthCircuitBreaker(1, 60000);
+		OAuthData.setCircuitBreaker(FlakyApi.class, breaker);
+		breaker.onFailure();
+		final AtomicReference<String> reason = new AtomicReference<String>();
+		data.addListener(new OAuthListener() {
+			@Override
+			public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+				fail();
+			}
+
+			@Override
+			public void authDenied(String r) {
+				reason.set(r);
+			}
+		});
+		OAuthCallbackDispatcher dispatcher = new OAuthCallbackDispatcher();
+		dispatcher.register(data);
+		FakeVaadinRequests.Recorded html = new FakeVaadinRequests.Recorded();
+		assertTrue(dispatcher.handleRequest(null, FakeVaadinRequests.request("/" + OAuthCallbackDispatcher.REDIRECT_PATH,
+				OAuthPopupUI.DATA_PARAM_NAME, data.getId()), FakeVaadinRequests.response(html)));
+		assertEquals(OAuthCircuitBreaker.PROVIDER_UNAVAILABLE, reason.get());
+		assertTrue(html.body.toString().contains("window.close()"));
+		assertEquals(0, dispatcher.getPendingFlowCount());
+		assertEquals(0, requests.get());
+	}
+}
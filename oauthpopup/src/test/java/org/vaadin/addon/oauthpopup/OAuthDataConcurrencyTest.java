@@ -0,0 +1,118 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.builder.api.Api;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+import org.scribe.oauth.OAuthService;
+
+public class OAuthDataConcurrencyTest {
+
+	static CountDownLatch exchangeStarted;
+	static CountDownLatch releaseExchange;
+
+	/**
+	 * Api whose service blocks in getAccessToken until released,
+	 * simulating a slow OAuth service.
+	 */
+	public static class BlockingApi implements Api {
+		@Override
+		public OAuthService createService(OAuthConfig config) {
+			return new OAuthService() {
+				@Override
+				public Token getRequestToken() {
+					return new Token("request", "secret");
+				}
+
+				@Override
+				public Token getAccessToken(Token requestToken, Verifier verifier) {
+					exchangeStarted.countDown();
+					try {
+						releaseExchange.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return new Token("access", "secret", "raw");
+				}
+
+				@Override
+				public void signRequest(Token accessToken, OAuthRequest request) {
+				}
+
+				@Override
+				public String getVersion() {
+					return "1.0";
+				}
+
+				@Override
+				public String getAuthorizationUrl(Token requestToken) {
+					return "http://example.com/authorize";
+				}
+			};
+		}
+	}
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		exchangeStarted = new CountDownLatch(1);
+		releaseExchange = new CountDownLatch(1);
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		releaseExchange.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void readersAreNotBlockedByInFlightExchange() throws Exception {
+		final OAuthData data = new OAuthData(BlockingApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		data.setScope("email");
+
+		Future<?> exchange = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+			}
+		});
+		assertTrue(exchangeStarted.await(5, TimeUnit.SECONDS));
+
+		Future<String> reader = executor.submit(new Callable<String>() {
+			@Override
+			public String call() {
+				data.getAccessToken();
+				data.getVerifierParameterName();
+				data.getErrorParameterNames();
+				assertNotNull(data.asConfig());
+				data.setScope("email,profile");
+				data.getAuthorizationUrl(null);
+				return data.getScope();
+			}
+		});
+		// Would time out if any of the above waited for the exchange.
+		assertEquals("email,profile", reader.get(2, TimeUnit.SECONDS));
+
+		releaseExchange.countDown();
+		exchange.get(5, TimeUnit.SECONDS);
+		assertEquals("access", data.getAccessToken().getToken());
+	}
+}
@@ -0,0 +1,184 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+public class OAuthEventBusTest {
+
+	/**
+	 * Runs the access tasks at once and counts them.
+	 */
+	@SuppressWarnings("serial")
+	private static class CountingUI extends UI {
+		private VaadinSession session = new VaadinSession(null);
+		int accesses;
+		boolean locked;
+
+		@Override
+		protected void init(VaadinRequest request) {
+		}
+
+		@Override
+		public VaadinSession getSession() {
+			return session;
+		}
+
+		@Override
+		public Future<Void> access(Runnable runnable) {
+			++accesses;
+			locked = true;
+			try {
+				runnable.run();
+			}
+			finally {
+				locked = false;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Records the events, and whether its UI was locked for them.
+	 */
+	private static class RecordingListener implements OAuthTimeoutListener {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		private final CountingUI ui;
+
+		RecordingListener(CountingUI ui) {
+			this.ui = ui;
+		}
+
+		private void record(String event) {
+			events.add(ui==null || ui.locked ? event : "unlocked " + event);
+		}
+
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			record("success " + accessToken);
+		}
+
+		@Override
+		public void authDenied(String reason) {
+			record("denied " + reason);
+		}
+
+		@Override
+		public void authTimedOut() {
+			record("timeout");
+		}
+	}
+
+	private OAuthEventBus bus;
+	private OAuthData data;
+
+	@Before
+	public void setUp() {
+		bus = new OAuthEventBus();
+		data = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		bus.register(data);
+	}
+
+	@Test
+	public void oneAccessPerUI() {
+		CountingUI ui1 = new CountingUI();
+		CountingUI ui2 = new CountingUI();
+		List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+		for (CountingUI ui : new CountingUI[] { ui1, ui1, ui1, ui2 }) {
+			RecordingListener li = new RecordingListener(ui);
+			bus.addListener(data.getId(), ui, li);
+			listeners.add(li);
+		}
+		RecordingListener sessionWide = new RecordingListener(ui2);
+		bus.addListener(ui2, sessionWide);
+		listeners.add(sessionWide);
+
+		data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+		assertEquals(1, ui1.accesses);
+		assertEquals(1, ui2.accesses);
+		for (RecordingListener li : listeners) {
+			assertEquals(Collections.singletonList("success access"), li.events);
+		}
+	}
+
+	@Test
+	public void listenersWithoutUIAreCalledWithoutAccess() {
+		RecordingListener li = new RecordingListener(null);
+		bus.addListener(null, li);
+		OAuthData other = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		bus.register(other);
+
+		data.setFailed("denied by test");
+		other.setFailed("other");
+		assertEquals(2, li.events.size());
+		assertEquals("denied denied by test", li.events.get(0));
+
+		bus.removeListener(li);
+		bus.unregister(other);
+		data.setFailed("again");
+		assertEquals(2, li.events.size());
+	}
+
+	@Test
+	public void detachedUIsAreSkippedAndDropped() {
+		CountingUI attached = new CountingUI();
+		CountingUI detached = new CountingUI();
+		detached.session = null;
+		RecordingListener li = new RecordingListener(attached);
+		RecordingListener gone = new RecordingListener(detached);
+		bus.addListener(data.getId(), attached, li);
+		bus.addListener(data.getId(), detached, gone);
+
+		data.setFailed("first");
+		detached.session = attached.session;
+		data.setFailed("second");
+		assertEquals(2, li.events.size());
+		assertEquals(0, gone.events.size());
+		assertEquals(0, detached.accesses);
+	}
+
+	@Test
+	public void tokenListenersShareOneTokenResponse() {
+		final List<TokenResponse> responses = new ArrayList<TokenResponse>();
+		for (int i=0; i<2; ++i) {
+			bus.addListener(null, new OAuthTokenListener() {
+				@Override
+				public void authSuccessful(TokenResponse response) {
+					responses.add(response);
+				}
+
+				@Override
+				public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+					throw new AssertionError("strings given to a token listener");
+				}
+
+				@Override
+				public void authDenied(String reason) {
+				}
+			});
+		}
+		RecordingListener plain = new RecordingListener(null);
+		bus.addListener(null, plain);
+
+		data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+		assertEquals(2, responses.size());
+		assertSame(responses.get(0), responses.get(1));
+		assertEquals("access", responses.get(0).getAccessToken());
+		assertEquals("raw", responses.get(0).getRawResponse());
+		assertEquals(Collections.singletonList("success access"), plain.events);
+	}
+}
@@ -0,0 +1,73 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.scribe.builder.api.TwitterApi;
+import org.scribe.model.OAuthConfig;
+import org.scribe.oauth.OAuthService;
+import org.vaadin.addon.oauthpopup.buttons.GitHubApi;
+
+public class OAuthServiceCacheTest {
+
+	private static OAuthConfig config(String callback) {
+		return new OAuthConfig("key", "secret", callback, null, null, null);
+	}
+
+	@Test
+	public void dataWithTheSameSettingsShareTheService() {
+		OAuthServiceCache cache = OAuthServiceCache.getInstance();
+		OAuthData a = new OAuthData(TwitterApi.class, "shared-key", "secret");
+		OAuthData b = new OAuthData(TwitterApi.class, "shared-key", "secret");
+		a.setCallback("http://example.com/app");
+		b.setCallback("http://example.com/app");
+		a.asConfig();
+		int size = cache.size();
+		long hits = cache.getHitCount();
+		b.asConfig();
+		assertEquals(size, cache.size());
+		assertEquals(hits + 1, cache.getHitCount());
+
+		// Each flow still gets its own callback.
+		assertFalse(a.asConfig().getCallback().equals(b.asConfig().getCallback()));
+		assertTrue(a.asConfig().getCallback().contains(a.getId()));
+	}
+
+	@Test
+	public void servicesAreCachedByConfig() {
+		OAuthServiceCache cache = new OAuthServiceCache(10, 0);
+		OAuthService s = cache.getService(GitHubApi.class, config("http://example.com/a"));
+		assertSame(s, cache.getService(GitHubApi.class, config("http://example.com/a")));
+		assertNotSame(s, cache.getService(GitHubApi.class, config("http://example.com/b")));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvictedOverSize() {
+		OAuthServiceCache cache = new OAuthServiceCache(2, 0);
+		OAuthService a = cache.getService(GitHubApi.class, config("http://example.com/a"));
+		cache.getService(GitHubApi.class, config("http://example.com/b"));
+		cache.getService(GitHubApi.class, config("http://example.com/a"));
+		cache.getService(GitHubApi.class, config("http://example.com/c"));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertSame(a, cache.getService(GitHubApi.class, config("http://example.com/a")));
+	}
+
+	@Test
+	public void idleServicesAreEvicted() throws Exception {
+		OAuthServiceCache cache = new OAuthServiceCache(10, 50);
+		OAuthService a = cache.getService(GitHubApi.class, config("http://example.com/a"));
+		Thread.sleep(100);
+		cache.getService(GitHubApi.class, config("http://example.com/b"));
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertNotSame(a, cache.getService(GitHubApi.class, config("http://example.com/a")));
+	}
+}
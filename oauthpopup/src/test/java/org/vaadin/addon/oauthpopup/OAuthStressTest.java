@@ -0,0 +1,269 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.builder.api.Api;
+import org.scribe.exceptions.OAuthException;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+import org.scribe.oauth.OAuthService;
+
+import com.vaadin.server.VaadinRequest;
+
+/**
+ * Hammers the flows and the listener delivery from many threads at once.
+ */
+public class OAuthStressTest {
+
+	private static final int THREADS = 16;
+	private static final int FLOWS = 2000;
+
+	/**
+	 * Api whose service answers at once, failing the exchange for the verifier "fail",
+	 * and crashing it for "crash".
+	 */
+	public static class InstantApi implements Api {
+		@Override
+		public OAuthService createService(OAuthConfig config) {
+			return new OAuthService() {
+				@Override
+				public Token getRequestToken() {
+					return new Token("request", "secret");
+				}
+
+				@Override
+				public Token getAccessToken(Token requestToken, Verifier verifier) {
+					if ("fail".equals(verifier.getValue())) {
+						throw new OAuthException("exchange failed");
+					}
+					if ("crash".equals(verifier.getValue())) {
+						throw new IllegalStateException("exchange crashed");
+					}
+					return new Token("access", "secret", "raw");
+				}
+
+				@Override
+				public void signRequest(Token accessToken, OAuthRequest request) {
+				}
+
+				@Override
+				public String getVersion() {
+					return "1.0";
+				}
+
+				@Override
+				public String getAuthorizationUrl(Token requestToken) {
+					return "http://example.com/authorize";
+				}
+			};
+		}
+	}
+
+	/**
+	 * Counts every notification it gets.
+	 */
+	private static class CountingListener implements OAuthTimeoutListener {
+		final AtomicInteger count = new AtomicInteger();
+		private final boolean throwing;
+
+		CountingListener(boolean throwing) {
+			this.throwing = throwing;
+		}
+
+		private void notified() {
+			count.incrementAndGet();
+			if (throwing) {
+				throw new IllegalStateException("listener failure");
+			}
+		}
+
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			notified();
+		}
+
+		@Override
+		public void authDenied(String reason) {
+			notified();
+		}
+
+		@Override
+		public void authTimedOut() {
+			notified();
+		}
+	}
+
+	// The failing listeners and exchanges are logged, thousands of times.
+	private static final Logger LOGGER = Logger.getLogger("org.vaadin.addon.oauthpopup");
+
+	private ExecutorService executor;
+	private Level logLevel;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(THREADS);
+		logLevel = LOGGER.getLevel();
+		LOGGER.setLevel(Level.SEVERE);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		LOGGER.setLevel(logLevel);
+	}
+
+	@Test
+	public void idsAreUniqueAcrossThreads() throws Exception {
+		final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t=0; t<THREADS; ++t) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i=0; i<FLOWS; ++i) {
+						ids.add(new OAuthData(InstantApi.class, "key", "secret").getId());
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+		assertEquals(THREADS * FLOWS, ids.size());
+	}
+
+	@Test
+	public void eachListenerIsNotifiedOncePerFlow() throws Exception {
+		final OAuthCallbackDispatcher dispatcher = new OAuthCallbackDispatcher();
+		List<CountingListener> listeners = new ArrayList<CountingListener>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i=0; i<FLOWS; ++i) {
+			OAuthData data = new OAuthData(InstantApi.class, "key", "secret");
+			data.setCallback("http://example.com/app");
+			// Some flows also race the flow sweeper.
+			data.setFlowTimeoutMillis(i % 4 == 0 ? 1 : 0);
+			for (int l=0; l<3; ++l) {
+				CountingListener li = new CountingListener(l==1 && i % 2 == 0);
+				data.addListener(li);
+				listeners.add(li);
+			}
+			final OAuthCallbackRequestHandler handler = new OAuthCallbackRequestHandler(new Token("request", "secret"), data);
+			dispatcher.addPendingFlow(handler);
+
+			// Success, denial or a failed exchange, delivered twice, racing a timeout.
+			final String verifier = i % 3 == 0 ? "verifier" : i % 3 == 1 ? null : "fail";
+			final VaadinRequest request = FakeVaadinRequests.request(null, data.getVerifierParameterName(), verifier);
+			Callable<Void> callback = new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					handler.handleCallback(null, request, FakeVaadinRequests.response());
+					return null;
+				}
+			};
+			tasks.add(callback);
+			tasks.add(callback);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					handler.timeOut();
+					return null;
+				}
+			});
+		}
+		Collections.shuffle(tasks);
+		runAll(tasks);
+
+		// Let the sweeper catch up, it must not notify anyone anymore.
+		Thread.sleep(50);
+		for (CountingListener li : listeners) {
+			assertEquals(1, li.count.get());
+		}
+		assertEquals(0, dispatcher.getPendingFlowCount());
+	}
+
+	@Test
+	public void listenersMayBeAddedAndRemovedDuringDelivery() throws Exception {
+		final OAuthData data = new OAuthData(InstantApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		final CountingListener permanent = new CountingListener(false);
+		data.addListener(permanent);
+		// Removes itself and adds a fresh one while being notified.
+		data.addListener(new CountingListener(false) {
+			@Override
+			public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+				data.removeListener(this);
+				data.addListener(new CountingListener(false));
+			}
+		});
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final CountDownLatch churnersDone = new CountDownLatch(THREADS / 2);
+		for (int t=0; t<THREADS/2; ++t) {
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						while (!done.get()) {
+							CountingListener li = new CountingListener(false);
+							data.addListener(li);
+							data.removeListener(li);
+						}
+					}
+					finally {
+						churnersDone.countDown();
+					}
+					return null;
+				}
+			});
+		}
+
+		final int perThread = FLOWS / (THREADS / 2);
+		List<Callable<Void>> flows = new ArrayList<Callable<Void>>();
+		for (int t=0; t<THREADS/2; ++t) {
+			flows.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i=0; i<perThread; ++i) {
+						data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			runAll(flows);
+		}
+		finally {
+			done.set(true);
+		}
+		assertTrue(churnersDone.await(5, TimeUnit.SECONDS));
+		assertEquals(perThread * (THREADS / 2), permanent.count.get());
+	}
+
+	private void runAll(List<Callable<Void>> tasks) throws Exception {
+		for (Future<Void> f : executor.invokeAll(tasks, 60, TimeUnit.SECONDS)) {
+			f.get();
+		}
+	}
+}
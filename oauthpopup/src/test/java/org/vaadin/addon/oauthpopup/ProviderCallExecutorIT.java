@@ -0,0 +1,69 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Runs against the multi-release jar on the JDK 21 of the multi-release profile,
+ * so it tests the {@link ProviderCallExecutor} of <code>src/main/java21</code>.
+ * The normal build doesn't run it, its tests see only the baseline classes.
+ */
+public class ProviderCallExecutorIT {
+
+	@Test
+	public void callsRunOnVirtualThreads() throws Exception {
+		// Not ProviderCallExecutor.VIRTUAL_THREADS, the compiler would inline the baseline value.
+		assertTrue(ProviderCallExecutor.class.getDeclaredField("VIRTUAL_THREADS").getBoolean(null));
+		final Method isVirtual = Thread.class.getMethod("isVirtual");
+		ExecutorService executor = ProviderCallExecutor.create("test", 1, 1);
+		try {
+			Future<Boolean> virtual = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return (Boolean) isVirtual.invoke(Thread.currentThread())
+							&& Thread.currentThread().getName().startsWith("test ");
+				}
+			});
+			assertTrue(virtual.get(10, TimeUnit.SECONDS));
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void blockedCallsDontFillAQueue() throws Exception {
+		ExecutorService executor = ProviderCallExecutor.create("test", 1, 1);
+		final CountDownLatch provider = new CountDownLatch(1);
+		List<Future<?>> calls = new ArrayList<Future<?>>();
+		try {
+			// Way over the thread count and queue size of the baseline pool.
+			for (int i=0; i<1000; ++i) {
+				calls.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						provider.await();
+						return null;
+					}
+				}));
+			}
+			provider.countDown();
+			for (Future<?> call : calls) {
+				call.get(10, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.builder.api.Api;
+import org.scribe.exceptions.OAuthException;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+import org.scribe.oauth.OAuthService;
+import org.vaadin.addon.oauthpopup.metrics.InMemoryMetrics;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Outcome;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Phase;
+
+public class RequestTokenPoolTest {
+
+	private static final AtomicInteger fetches = new AtomicInteger();
+	private static volatile boolean failing;
+
+	/**
+	 * Counts the request tokens fetched, or fails while {@link #failing}.
+	 */
+	public static class CountingApi implements Api {
+		@Override
+		public OAuthService createService(OAuthConfig config) {
+			return new OAuthService() {
+				@Override
+				public Token getRequestToken() {
+					if (failing) {
+						fetches.incrementAndGet();
+						throw new OAuthException("down");
+					}
+					return new Token("request" + fetches.incrementAndGet(), "secret");
+				}
+
+				@Override
+				public Token getAccessToken(Token requestToken, Verifier verifier) {
+					return new Token("access", "secret", "raw");
+				}
+
+				@Override
+				public void signRequest(Token accessToken, OAuthRequest request) {
+				}
+
+				@Override
+				public String getVersion() {
+					return "1.0";
+				}
+
+				@Override
+				public String getAuthorizationUrl(Token requestToken) {
+					return "http://example.com/authorize";
+				}
+			};
+		}
+	}
+
+	private OAuthData data;
+	private OAuthMetrics oldMetrics;
+	private InMemoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		fetches.set(0);
+		failing = false;
+		oldMetrics = OAuthData.getMetrics();
+		metrics = new InMemoryMetrics();
+		OAuthData.setMetrics(metrics);
+		data = new OAuthData(CountingApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		data.setRequestTokenPrefetchEnabled(true);
+	}
+
+	@After
+	public void tearDown() {
+		OAuthData.setMetrics(oldMetrics);
+	}
+
+	private void awaitPrefetched() throws InterruptedException {
+		for (int i=0; i<500 && data.getPrefetchedRequestTokenCount()==0; ++i) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, data.getPrefetchedRequestTokenCount());
+	}
+
+	@Test
+	public void oneTokenIsPrefetchedAndNotReplaced() throws Exception {
+		data.prefetchRequestTokens();
+		awaitPrefetched();
+		data.prefetchRequestTokens();
+		assertEquals(1, fetches.get());
+
+		assertEquals("request1", data.takeRequestToken().getToken());
+		Thread.sleep(50);
+		assertEquals(1, fetches.get());
+		assertEquals(0, data.getPrefetchedRequestTokenCount());
+	}
+
+	@Test
+	public void tokenIsFetchedOnDemandWithoutAPrefetchedOne() {
+		assertEquals("request1", data.takeRequestToken().getToken());
+		data.setRequestTokenPrefetchEnabled(false);
+		data.prefetchRequestTokens();
+		assertEquals("request2", data.takeRequestToken().getToken());
+		assertEquals(2, fetches.get());
+	}
+
+	@Test
+	public void tokenOfOtherSettingsIsNotGiven() throws Exception {
+		data.prefetchRequestTokens();
+		awaitPrefetched();
+		data.setCallback("http://example.com/other");
+		assertEquals("request2", data.takeRequestToken().getToken());
+	}
+
+	@Test
+	public void failedPrefetchIsNotAFlowOutcome() throws Exception {
+		failing = true;
+		data.prefetchRequestTokens();
+		for (int i=0; i<500 && metrics.getErrorCount(CountingApi.class, Phase.REQUEST_TOKEN)==0; ++i) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, metrics.getErrorCount(CountingApi.class, Phase.REQUEST_TOKEN));
+		assertEquals(0, metrics.getCount(CountingApi.class, Outcome.ERROR));
+
+		try {
+			data.takeRequestToken();
+		} catch (OAuthException e) {
+			// expected
+		}
+		assertEquals(2, metrics.getErrorCount(CountingApi.class, Phase.REQUEST_TOKEN));
+		assertEquals(1, metrics.getCount(CountingApi.class, Outcome.ERROR));
+	}
+
+	@Test
+	public void poolCountsFetchesInFlight() {
+		RequestTokenPool pool = new RequestTokenPool(1, 60000);
+		Object tag = new Object();
+		assertTrue(pool.reserve(tag));
+		assertFalse(pool.reserve(tag));
+		pool.release();
+		assertTrue(pool.reserve(tag));
+		Token token = new Token("t", "s");
+		pool.add(token, tag);
+		assertFalse(pool.reserve(tag));
+		assertNull(pool.take(new Object()));
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void oldTokensExpire() throws Exception {
+		RequestTokenPool pool = new RequestTokenPool(1, 20);
+		Object tag = new Object();
+		Token token = new Token("t", "s");
+		assertTrue(pool.reserve(tag));
+		pool.add(token, tag);
+		assertSame(token, pool.take(tag));
+
+		assertTrue(pool.reserve(tag));
+		pool.add(token, tag);
+		Thread.sleep(50);
+		assertNull(pool.take(tag));
+		assertTrue(pool.reserve(tag));
+	}
+}
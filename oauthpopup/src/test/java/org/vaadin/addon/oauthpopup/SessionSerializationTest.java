@@ -0,0 +1,129 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.scribe.model.Token;
+
+public class SessionSerializationTest {
+
+	static final AtomicInteger successes = new AtomicInteger();
+
+	@SuppressWarnings("serial")
+	static class SerializableListener implements OAuthListener, Serializable {
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			successes.incrementAndGet();
+		}
+
+		@Override
+		public void authDenied(String reason) {
+		}
+	}
+
+	/**
+	 * Stands for a listener holding on to a UI.
+	 */
+	static class HeavyListener implements OAuthListener {
+		final byte[] state = new byte[100000];
+
+		@Override
+		public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+		}
+
+		@Override
+		public void authDenied(String reason) {
+		}
+	}
+
+	@Test
+	public void pendingFlowIsSmall() throws Exception {
+		PendingFlow flow = new PendingFlow("node1-1a2b-3c4d", "org.scribe.builder.api.TwitterApi",
+				new Token("request-token", "request-secret"), System.currentTimeMillis());
+		byte[] bytes = serialize(flow);
+		assertTrue("PendingFlow was " + bytes.length + " bytes", bytes.length < 200);
+
+		PendingFlow read = (PendingFlow) deserialize(bytes);
+		assertEquals(flow.getId(), read.getId());
+		assertEquals(flow.getApiClassName(), read.getApiClassName());
+		assertEquals("request-secret", read.getRequestToken().getSecret());
+		assertEquals(flow.getCreatedMillis(), read.getCreatedMillis());
+	}
+
+	@Test
+	public void pendingFlowSurvivesSerialization() throws Exception {
+		OAuthData data = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		data.setScope("email");
+		data.addListener(new HeavyListener());
+		data.addListener(new SerializableListener());
+		data.setAccessToken(new Token("old", "secret", new String(new char[10000])));
+		// Builds the service and the config, which must not be written.
+		data.getAuthorizationUrl(new Token("request", "secret"));
+
+		OAuthCallbackDispatcher dispatcher = new OAuthCallbackDispatcher();
+		dispatcher.register(data);
+		dispatcher.addPendingFlow(new OAuthCallbackRequestHandler(new Token("request", "secret"), data));
+
+		byte[] bytes = serialize(dispatcher);
+		assertTrue("Dispatcher was " + bytes.length + " bytes", bytes.length < 1500);
+
+		OAuthCallbackDispatcher read = (OAuthCallbackDispatcher) deserialize(bytes);
+		OAuthData readData = read.getData(data.getId());
+		assertNotNull(readData);
+		assertEquals("email", readData.getScope());
+		assertEquals("old", readData.getAccessToken().getToken());
+		assertEquals(data.asConfig().getCallback(), readData.asConfig().getCallback());
+		assertEquals(1, read.getPendingFlowCount());
+
+		successes.set(0);
+		boolean handled = read.handleRequest(null,
+				FakeVaadinRequests.request(null, OAuthCallbackInjecter.CALLBACK_ID_NAME, data.getId(),
+						readData.getVerifierParameterName(), "verifier"), FakeVaadinRequests.response());
+		assertTrue(handled);
+		assertEquals(1, successes.get());
+		assertEquals("access", readData.getAccessToken().getToken());
+		assertEquals(0, read.getPendingFlowCount());
+	}
+
+	@Test
+	public void backgroundExecutorSurvivesSerialization() throws Exception {
+		OAuthData data = new OAuthData(OAuthStressTest.InstantApi.class, "key", "secret");
+		data.setExchangeExecutor(OAuthData.BACKGROUND_EXECUTOR);
+		OAuthData read = (OAuthData) deserialize(serialize(data));
+		assertSame(OAuthData.BACKGROUND_EXECUTOR, read.getExchangeExecutor());
+
+		final CountDownLatch ran = new CountDownLatch(1);
+		read.getExchangeExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		});
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	private static byte[] serialize(Object o) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(o);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+	}
+}
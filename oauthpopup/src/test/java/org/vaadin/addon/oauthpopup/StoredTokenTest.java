@@ -0,0 +1,126 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.builder.api.Api;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+import org.scribe.oauth.OAuthService;
+import org.vaadin.addon.oauthpopup.store.InMemoryTokenStore;
+
+public class StoredTokenTest {
+
+	/**
+	 * Gives access tokens that expire in an hour.
+	 */
+	public static class ExpiringApi implements Api {
+		@Override
+		public OAuthService createService(OAuthConfig config) {
+			return new OAuthService() {
+				@Override
+				public Token getRequestToken() {
+					return new Token("request", "secret");
+				}
+
+				@Override
+				public Token getAccessToken(Token requestToken, Verifier verifier) {
+					return new Token("access", "secret", "{\"expires_in\":3600}");
+				}
+
+				@Override
+				public void signRequest(Token accessToken, OAuthRequest request) {
+				}
+
+				@Override
+				public String getVersion() {
+					return "1.0";
+				}
+
+				@Override
+				public String getAuthorizationUrl(Token requestToken) {
+					return "http://example.com/authorize";
+				}
+			};
+		}
+	}
+
+	/**
+	 * Records when the tokens expire.
+	 */
+	private static class RecordingStore extends InMemoryTokenStore {
+		final Map<String, Long> expiresAt = new HashMap<String, Long>();
+
+		RecordingStore() {
+			super(10, 0);
+		}
+
+		@Override
+		public synchronized void put(String key, Token token, long expiresAt) {
+			this.expiresAt.put(key, expiresAt);
+			super.put(key, token, expiresAt);
+		}
+	}
+
+	private RecordingStore store;
+	private OAuthData data;
+
+	@Before
+	public void setUp() {
+		store = new RecordingStore();
+		data = new OAuthData(ExpiringApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		data.setTokenStore(store, "user");
+	}
+
+	@Test
+	public void tokenIsStoredWithItsExpiry() {
+		long before = System.currentTimeMillis();
+		data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+		assertEquals(1, store.expiresAt.size());
+		long expiresAt = store.expiresAt.values().iterator().next();
+		assertTrue(expiresAt >= before + 3600000 && expiresAt <= System.currentTimeMillis() + 3600000);
+
+		OAuthData returning = new OAuthData(ExpiringApi.class, "key", "secret");
+		returning.setCallback("http://example.com/app");
+		returning.setTokenStore(store, "user");
+		assertTrue(returning.useStoredToken());
+		assertEquals("access", returning.getAccessToken().getToken());
+	}
+
+	@Test
+	public void expiredTokenIsNotUsed() {
+		data.setVerifier(new Token("request", "secret"), new Verifier("verifier"));
+		String key = store.expiresAt.keySet().iterator().next();
+		store.put(key, new Token("old", "secret", "{\"expires_in\":3600}"), System.currentTimeMillis() - 1);
+
+		OAuthData returning = new OAuthData(ExpiringApi.class, "key", "secret");
+		returning.setCallback("http://example.com/app");
+		returning.setTokenStore(store, "user");
+		assertFalse(returning.useStoredToken());
+		assertNull(returning.getAccessToken());
+		assertEquals(Collections.<String>emptySet(), keys());
+	}
+
+	private Set<String> keys() {
+		Set<String> keys = new HashSet<String>();
+		for (String key : store.expiresAt.keySet()) {
+			if (store.get(key)!=null) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+}
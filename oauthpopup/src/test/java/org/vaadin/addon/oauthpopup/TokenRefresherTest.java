@@ -0,0 +1,297 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.builder.api.DefaultApi20;
+import org.scribe.extractors.AccessTokenExtractor;
+import org.scribe.extractors.JsonTokenExtractor;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.Request;
+import org.scribe.model.Token;
+import org.scribe.model.Verifier;
+import org.vaadin.addon.oauthpopup.store.InMemoryTokenStore;
+import org.vaadin.addon.oauthpopup.transport.OAuthTransport;
+import org.vaadin.addon.oauthpopup.transport.TransportResponse;
+
+public class TokenRefresherTest {
+
+	/**
+	 * OAuth2 Api whose token endpoint is answered by a {@link ProviderTransport}.
+	 */
+	public static class RefreshingApi extends DefaultApi20 {
+		@Override
+		public String getAccessTokenEndpoint() {
+			return "http://example.com/token";
+		}
+
+		@Override
+		public String getAuthorizationUrl(OAuthConfig config) {
+			return "http://example.com/authorize";
+		}
+
+		@Override
+		public AccessTokenExtractor getAccessTokenExtractor() {
+			return new JsonTokenExtractor();
+		}
+	}
+
+	/**
+	 * Gives "a1" with the refresh token "r1" for the authorization code,
+	 * and "a2", "a3"... without a new refresh token for the refreshes,
+	 * or a 500 while {@link #failing}.
+	 */
+	private static class ProviderTransport implements OAuthTransport {
+		final List<String> refreshes = Collections.synchronizedList(new ArrayList<String>());
+		volatile boolean failing;
+
+		@Override
+		public TransportResponse send(Request request) {
+			String url = request.getCompleteUrl();
+			if (!url.contains("grant_type=refresh_token")) {
+				return ok("{\"access_token\":\"a1\",\"expires_in\":3600,\"refresh_token\":\"r1\"}");
+			}
+			refreshes.add(url);
+			if (failing) {
+				return new TransportResponse(500, new HashMap<String, String>(), "down");
+			}
+			return ok("{\"access_token\":\"a" + (refreshes.size() + 1) + "\",\"expires_in\":3600}");
+		}
+
+		private static TransportResponse ok(String body) {
+			return new TransportResponse(200, new HashMap<String, String>(), body);
+		}
+	}
+
+	/**
+	 * Records the tokens written.
+	 */
+	private static class RecordingStore extends InMemoryTokenStore {
+		final List<String> tokens = Collections.synchronizedList(new ArrayList<String>());
+
+		RecordingStore() {
+			super(10, 0);
+		}
+
+		@Override
+		public void put(String key, Token token, long expiresAt) {
+			tokens.add(token.getToken());
+			super.put(key, token, expiresAt);
+		}
+	}
+
+	private final AtomicLong now = new AtomicLong(1000000);
+	private ProviderTransport transport;
+	private RecordingStore store;
+	private OAuthData data;
+	private final List<String> refreshed = Collections.synchronizedList(new ArrayList<String>());
+	private final CountDownLatch refreshedLatch = new CountDownLatch(1);
+
+	@Before
+	public void setUp() {
+		TokenRefresher.clock = new TokenRefresher.Clock() {
+			@Override
+			public long currentTimeMillis() {
+				return now.get();
+			}
+		};
+		transport = new ProviderTransport();
+		store = new RecordingStore();
+		data = new OAuthData(RefreshingApi.class, "key", "secret");
+		data.setCallback("http://example.com/app");
+		data.setTransport(transport);
+		data.setTokenStore(store, "user");
+		data.setTokenRefreshEnabled(true);
+		data.addListener(new OAuthRefreshListener() {
+			@Override
+			public void authSuccessful(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+			}
+
+			@Override
+			public void authDenied(String reason) {
+			}
+
+			@Override
+			public void tokenRefreshed(String accessToken, String accessTokenSecret, String oauthRawResponse) {
+				refreshed.add(accessToken);
+				refreshedLatch.countDown();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		data.cancelTokenRefresh();
+		TokenRefresher.clock = TokenRefresher.SYSTEM_CLOCK;
+		TokenRefresher.minDelayMillis = TokenRefresher.MIN_DELAY_MILLIS;
+	}
+
+	private void logIn() {
+		data.setVerifier(null, new Verifier("code"));
+	}
+
+	@Test
+	public void delaysAreJitteredWithinBounds() {
+		for (int i=0; i<100; ++i) {
+			TokenRefresher fresh = TokenRefresher.schedule(data, "r", 100, true);
+			assertTrue(fresh.getDelayMillis() >= 70000 && fresh.getDelayMillis() <= 80000);
+			assertEquals(now.get() + 100000, fresh.getExpiresAt());
+			fresh.cancel();
+
+			TokenRefresher unknownAge = TokenRefresher.schedule(data, "r", 100, false);
+			long delay = unknownAge.getDelayMillis();
+			assertTrue(delay >= TokenRefresher.MIN_DELAY_MILLIS && delay <= 2 * TokenRefresher.MIN_DELAY_MILLIS);
+			// It may expire as soon as it's refreshed.
+			assertEquals(now.get() + delay, unknownAge.getExpiresAt());
+			unknownAge.cancel();
+		}
+		assertNull(TokenRefresher.schedule(data, "r", 10, true));
+	}
+
+	@Test
+	public void refreshReplacesStoresAndNotifies() throws Exception {
+		logIn();
+		TokenRefresher first = data.getTokenRefresher();
+		assertEquals("r1", first.getRefreshToken());
+		first.run();
+		assertTrue(refreshedLatch.await(10, TimeUnit.SECONDS));
+
+		assertEquals(Collections.singletonList("a2"), refreshed);
+		assertEquals("a2", data.getAccessToken().getToken());
+		assertEquals("a2", store.tokens.get(store.tokens.size() - 1));
+		assertTrue(transport.refreshes.get(0).contains("refresh_token=r1"));
+		// The refresh token is kept when the provider doesn't send a new one.
+		TokenRefresher next = data.getTokenRefresher();
+		assertNotSame(first, next);
+		assertEquals("r1", next.getRefreshToken());
+	}
+
+	@Test
+	public void failedRefreshIsRetriedAtHalfTheRemainingLifetime() throws Exception {
+		logIn();
+		TokenRefresher refresher = data.getTokenRefresher();
+		transport.failing = true;
+		now.addAndGet(1000000);
+		refresher.run();
+		for (int i=0; i<500 && refresher.getDelayMillis()!=1300000; ++i) {
+			Thread.sleep(10);
+		}
+		assertEquals((3600000 - 1000000) / 2, refresher.getDelayMillis());
+		assertEquals("a1", data.getAccessToken().getToken());
+		assertTrue(refreshed.isEmpty());
+		assertEquals(refresher, data.getTokenRefresher());
+
+		// Again after each failure, until too little time is left.
+		now.set(refresher.getExpiresAt() - 2 * TokenRefresher.MIN_DELAY_MILLIS + 2);
+		refresher.run();
+		for (int i=0; i<500 && transport.refreshes.size() < 2; ++i) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertEquals(2, transport.refreshes.size());
+		assertEquals(1300000, refresher.getDelayMillis());
+	}
+
+	@Test
+	public void busyExecutorRetriesLaterOffTheSchedulerThread() throws Exception {
+		logIn();
+		TokenRefresher refresher = data.getTokenRefresher();
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			for (int i=0; i<10000; ++i) {
+				OAuthExecutors.background().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							release.await();
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+		}
+		catch (RejectedExecutionException e) {
+			// Full now.
+		}
+		try {
+			refresher.run();
+			assertEquals(TokenRefresher.BUSY_RETRY_MILLIS, refresher.getDelayMillis());
+			assertTrue(transport.refreshes.isEmpty());
+		}
+		finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void storedTokenOfUnknownAgeIsRefreshedSoon() throws Exception {
+		TokenRefresher.minDelayMillis = 20;
+		TokenRefresher.clock = TokenRefresher.SYSTEM_CLOCK;
+		logIn();
+		data.cancelTokenRefresh();
+
+		OAuthData returning = new OAuthData(RefreshingApi.class, "key", "secret");
+		returning.setCallback("http://example.com/app");
+		returning.setTransport(transport);
+		returning.setTokenStore(store, "user");
+		returning.setTokenRefreshEnabled(true);
+		try {
+			assertTrue(returning.useStoredToken());
+			TokenRefresher refresher = returning.getTokenRefresher();
+			assertNotNull(refresher);
+			assertTrue(refresher.getDelayMillis() >= 20 && refresher.getDelayMillis() <= 40);
+			for (int i=0; i<500 && !"a2".equals(returning.getAccessToken().getToken()); ++i) {
+				Thread.sleep(10);
+			}
+			assertEquals("a2", returning.getAccessToken().getToken());
+		}
+		finally {
+			returning.cancelTokenRefresh();
+		}
+	}
+
+	@Test
+	public void newLoginReplacesAndCancelStopsTheRefresher() throws Exception {
+		logIn();
+		TokenRefresher first = data.getTokenRefresher();
+		logIn();
+		TokenRefresher second = data.getTokenRefresher();
+		assertNotSame(first, second);
+		// The replaced one does nothing when its time comes.
+		first.run();
+		Thread.sleep(100);
+		assertTrue(transport.refreshes.isEmpty());
+
+		// As done by OAuthPopupOpener.detach().
+		data.cancelTokenRefresh();
+		assertNull(data.getTokenRefresher());
+		second.run();
+		Thread.sleep(100);
+		assertTrue(transport.refreshes.isEmpty());
+
+		logIn();
+		assertNotNull(data.getTokenRefresher());
+		data.setTokenRefreshEnabled(false);
+		assertNull(data.getTokenRefresher());
+		logIn();
+		assertNull(data.getTokenRefresher());
+		assertTrue(refreshed.isEmpty());
+	}
+}
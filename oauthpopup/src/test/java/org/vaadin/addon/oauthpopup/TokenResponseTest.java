@@ -0,0 +1,67 @@
+package org.vaadin.addon.oauthpopup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TokenResponseTest {
+
+	@Test
+	public void jsonFields() {
+		TokenResponse r = new TokenResponse("a", "", "{\"access_token\":\"a\", \"token_type\":\"bearer\","
+				+ " \"expires_in\": 3600, \"user\":{\"id\":\"u1\", \"emails\":[\"x@example.com\"]},"
+				+ " \"email\":\"x\\u0040example.com\", \"verified\":true, \"scope\":null, \"refresh_token\" : \"r1\"}");
+		assertEquals("bearer", r.getTokenType());
+		assertEquals(3600, r.getExpiresIn());
+		assertEquals("r1", r.getRefreshToken());
+		assertEquals("x@example.com", r.getString("email"));
+		assertEquals("{\"id\":\"u1\", \"emails\":[\"x@example.com\"]}", r.getString("user"));
+		assertTrue(r.getBoolean("verified"));
+		assertTrue(r.has("scope"));
+		assertNull(r.getScope());
+		assertFalse(r.has("id"));
+		assertEquals(Arrays.asList("access_token", "token_type", "expires_in", "user", "email", "verified",
+				"scope", "refresh_token"), new ArrayList<String>(r.getFieldNames()));
+	}
+
+	@Test
+	public void formFields() {
+		TokenResponse r = new TokenResponse("a/b", "", "access_token=a%2Fb&expires=5183999&user%5Fid=42");
+		assertEquals(5183999, r.getExpiresIn());
+		assertEquals(42, r.getLong("user_id"));
+		assertEquals("a/b", r.getString("access_token"));
+		assertNull(r.getRefreshToken());
+		assertEquals(-1, r.getLong("access_token"));
+	}
+
+	@Test
+	public void jsonEscapesAndNestedFields() {
+		TokenResponse r = new TokenResponse("a", "", "{\"access_token\":\"a\\\"b\", \"expires_in\": 3600,"
+				+ " \"user\":{\"refresh_token\":\"nested\"}, \"refresh_token\" : \"r1\"}");
+		assertEquals("a\"b", r.getString("access_token"));
+		assertEquals(3600, r.getLong("expires_in"));
+		assertEquals("r1", r.getRefreshToken());
+		assertNull(r.getString("scope"));
+	}
+
+	@Test
+	public void formFieldsByWholeName() {
+		TokenResponse r = new TokenResponse("a/b", "", "access_token=a%2Fb&expires=5183999&refresh_token=r1");
+		assertEquals("r1", r.getRefreshToken());
+		assertNull(r.getString("refresh"));
+		assertEquals(-1, r.getLong("expires_in"));
+	}
+
+	@Test
+	public void noRawResponse() {
+		TokenResponse r = new TokenResponse("a", "s", null);
+		assertEquals(-1, r.getExpiresIn());
+		assertTrue(r.getFieldNames().isEmpty());
+	}
+}
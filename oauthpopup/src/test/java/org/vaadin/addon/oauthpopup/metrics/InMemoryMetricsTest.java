@@ -0,0 +1,54 @@
+package org.vaadin.addon.oauthpopup.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.scribe.builder.api.TwitterApi;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Outcome;
+import org.vaadin.addon.oauthpopup.metrics.OAuthMetrics.Phase;
+
+public class InMemoryMetricsTest {
+	
+	@Test
+	public void histogramPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i=0; i<98; ++i) {
+			h.record(TimeUnit.MILLISECONDS.toNanos(30));
+		}
+		h.record(TimeUnit.MILLISECONDS.toNanos(700));
+		h.record(TimeUnit.MILLISECONDS.toNanos(4000));
+		assertEquals(100, h.getCount());
+		assertEquals(50, h.getPercentileMillis(0.5), 0);
+		assertEquals(1000, h.getPercentileMillis(0.99), 0);
+		assertEquals(4000, h.getPercentileMillis(1), 0);
+		assertEquals(4000, h.getMaxMillis(), 0);
+		assertTrue(h.getMeanMillis() > 30);
+	}
+	
+	@Test
+	public void countsPerApi() {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		metrics.recordOutcome(TwitterApi.class, Outcome.SUCCESS);
+		metrics.recordOutcome(TwitterApi.class, Outcome.SUCCESS);
+		metrics.recordOutcome(TwitterApi.class, Outcome.DENIED);
+		metrics.recordPhase(TwitterApi.class, Phase.ACCESS_TOKEN, TimeUnit.MILLISECONDS.toNanos(100));
+		assertEquals(2, metrics.getCount(TwitterApi.class, Outcome.SUCCESS));
+		assertEquals(1, metrics.getCount(TwitterApi.class, Outcome.DENIED));
+		assertEquals(0, metrics.getCount(TwitterApi.class, Outcome.ERROR));
+		assertEquals(1, metrics.getHistogram(TwitterApi.class, Phase.ACCESS_TOKEN).getCount());
+		assertEquals(1, metrics.getApiClasses().size());
+		
+		metrics.recordPhaseError(TwitterApi.class, Phase.TOKEN_REFRESH);
+		assertEquals(1, metrics.getErrorCount(TwitterApi.class, Phase.TOKEN_REFRESH));
+		assertEquals(0, metrics.getErrorCount(TwitterApi.class, Phase.ACCESS_TOKEN));
+		assertEquals(0, metrics.getCount(TwitterApi.class, Outcome.ERROR));
+		
+		metrics.reset();
+		assertEquals(0, metrics.getCount(TwitterApi.class, Outcome.SUCCESS));
+		assertEquals(0, metrics.getErrorCount(TwitterApi.class, Phase.TOKEN_REFRESH));
+		assertEquals(0, metrics.getHistogram(TwitterApi.class, Phase.ACCESS_TOKEN).getCount());
+	}
+}
@@ -0,0 +1,172 @@
+package org.vaadin.addon.oauthpopup.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.Token;
+import org.vaadin.addon.oauthpopup.PendingFlow;
+
+public class PendingFlowStoreTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("pendingflows", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void inMemoryStoreCompletesOnce() {
+		assertCompletesOnce(new InMemoryPendingFlowStore(60000));
+	}
+
+	@Test
+	public void mappedFileStoreCompletesOnce() throws Exception {
+		MappedFilePendingFlowStore store = new MappedFilePendingFlowStore(file, 16, 60000);
+		try {
+			assertCompletesOnce(store);
+		}
+		finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void inMemoryStoreDropsOldFlows() {
+		assertDropsOldFlows(new InMemoryPendingFlowStore(1000));
+	}
+
+	@Test
+	public void mappedFileStoreDropsOldFlows() throws Exception {
+		MappedFilePendingFlowStore store = new MappedFilePendingFlowStore(file, 16, 1000);
+		try {
+			assertDropsOldFlows(store);
+		}
+		finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void mappedFileIsSharedBetweenInstances() throws Exception {
+		MappedFilePendingFlowStore origin = new MappedFilePendingFlowStore(file, 4, 60000);
+		MappedFilePendingFlowStore other = new MappedFilePendingFlowStore(file, 4, 60000);
+		try {
+			for (int i=0; i<4; ++i) {
+				origin.put(flow("flow" + i));
+			}
+			// Full, and the probing wraps around.
+			origin.put(flow("flow4"));
+			assertNull(other.get("flow4"));
+
+			PendingFlow read = other.get("flow2");
+			assertEquals("node-a", read.getOrigin());
+			assertEquals("request", read.getRequestToken().getToken());
+			assertTrue(other.complete("flow2", Collections.singletonMap("oauth_verifier", "v")));
+			assertEquals("v", origin.takeCallback("flow2").get("oauth_verifier"));
+
+			other.remove("flow3");
+			assertNull(origin.get("flow3"));
+			origin.put(flow("flow4"));
+			assertEquals("flow4", other.get("flow4").getId());
+		}
+		finally {
+			origin.close();
+			other.close();
+		}
+	}
+
+	@Test
+	public void drainedMappedFileIsEmptyAgain() throws Exception {
+		MappedFilePendingFlowStore store = new MappedFilePendingFlowStore(file, 8, 60000);
+		try {
+			for (int round=0; round<2; ++round) {
+				for (int i=0; i<8; ++i) {
+					store.put(flow(round + "-flow" + i));
+				}
+				for (int i=0; i<8; ++i) {
+					assertEquals(round + "-flow" + i, store.get(round + "-flow" + i).getId());
+				}
+				// Drained out of order, both ways a flow goes.
+				for (int i : new int[] { 3, 0, 7, 5, 1, 6, 2, 4 }) {
+					String id = round + "-flow" + i;
+					if (i % 2==0) {
+						assertTrue(store.complete(id, Collections.singletonMap("oauth_verifier", "v")));
+						assertEquals("v", store.takeCallback(id).get("oauth_verifier"));
+					}
+					else {
+						store.remove(id);
+					}
+					assertNull(store.get(id));
+				}
+				// A miss stops at the first slot it probes.
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					for (int slot=0; slot<8; ++slot) {
+						raf.seek((long) slot * MappedFilePendingFlowStore.SLOT_SIZE);
+						assertEquals("slot " + slot, 0, raf.read());
+					}
+				}
+				finally {
+					raf.close();
+				}
+			}
+			store.put(flow("again"));
+			assertEquals("again", store.get("again").getId());
+			assertNull(store.get("0-flow1"));
+		}
+		finally {
+			store.close();
+		}
+	}
+
+	private static void assertCompletesOnce(PendingFlowStore store) {
+		store.put(flow("a"));
+		store.put(new PendingFlow("b", "Api", null, System.currentTimeMillis(), null));
+		assertNull(store.takeCallback("a"));
+		assertNull(store.get("c"));
+
+		PendingFlow b = store.get("b");
+		assertNull(b.getRequestToken());
+		assertNull(b.getOrigin());
+
+		assertTrue(store.complete("a", Collections.singletonMap("oauth_verifier", "v")));
+		assertFalse(store.complete("a", Collections.singletonMap("oauth_verifier", "other")));
+		assertFalse(store.complete("c", Collections.<String, String>emptyMap()));
+		Map<String, String> callback = store.takeCallback("a");
+		assertEquals(Collections.singletonMap("oauth_verifier", "v"), callback);
+		assertNull(store.takeCallback("a"));
+		assertNull(store.get("a"));
+
+		store.remove("b");
+		assertNull(store.get("b"));
+		assertFalse(store.complete("b", Collections.<String, String>emptyMap()));
+	}
+
+	private static void assertDropsOldFlows(PendingFlowStore store) {
+		store.put(new PendingFlow("old", "Api", null, System.currentTimeMillis() - 2000, "node-a"));
+		store.put(flow("new"));
+		assertNull(store.get("old"));
+		assertFalse(store.complete("old", Collections.<String, String>emptyMap()));
+		assertEquals("new", store.get("new").getId());
+	}
+
+	private static PendingFlow flow(String id) {
+		return new PendingFlow(id, "Api", new Token("request", "secret"), System.currentTimeMillis(), "node-a");
+	}
+}
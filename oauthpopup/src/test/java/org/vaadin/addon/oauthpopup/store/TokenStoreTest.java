@@ -0,0 +1,109 @@
+package org.vaadin.addon.oauthpopup.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.Token;
+
+public class TokenStoreTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("tokens", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files!=null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void inMemoryPutAndGet() {
+		InMemoryTokenStore store = new InMemoryTokenStore(10, 0);
+		Token token = new Token("t", "s", "raw");
+		store.put("a", token, 0);
+		assertSame(token, store.get("a"));
+		assertNull(store.get("b"));
+		store.remove("a");
+		assertNull(store.get("a"));
+	}
+
+	@Test
+	public void inMemoryEvictsLeastRecentlyUsed() {
+		InMemoryTokenStore store = new InMemoryTokenStore(2, 0);
+		store.put("a", new Token("a", "s"), 0);
+		store.put("b", new Token("b", "s"), 0);
+		store.get("a");
+		store.put("c", new Token("c", "s"), 0);
+		assertEquals(2, store.size());
+		assertNull(store.get("b"));
+		assertEquals("a", store.get("a").getToken());
+	}
+
+	@Test
+	public void inMemoryDropsExpiredTokens() throws Exception {
+		InMemoryTokenStore store = new InMemoryTokenStore(10, 0);
+		store.put("expired", new Token("t", "s"), System.currentTimeMillis() - 1);
+		store.put("valid", new Token("t", "s"), System.currentTimeMillis() + 60000);
+		assertNull(store.get("expired"));
+		assertEquals(1, store.size());
+		assertEquals("t", store.get("valid").getToken());
+
+		InMemoryTokenStore aging = new InMemoryTokenStore(10, 20);
+		aging.put("a", new Token("t", "s"), 0);
+		Thread.sleep(50);
+		assertNull(aging.get("a"));
+	}
+
+	@Test
+	public void fileRoundTrip() {
+		FileTokenStore store = new FileTokenStore(directory, 0);
+		store.put("user 1", new Token("t", "s", "{\"expires_in\":3600}"), 0);
+		// Not a Scribe token, without a secret or a raw response.
+		store.put("user 2", new Token("u", "") {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public String getSecret() {
+				return null;
+			}
+		}, 0);
+
+		FileTokenStore reopened = new FileTokenStore(directory, 0);
+		Token t = reopened.get("user 1");
+		assertEquals("t", t.getToken());
+		assertEquals("s", t.getSecret());
+		assertEquals("{\"expires_in\":3600}", t.getRawResponse());
+		Token u = reopened.get("user 2");
+		assertEquals("u", u.getToken());
+		assertEquals("", u.getSecret());
+		assertNull(reopened.get("user 3"));
+
+		reopened.remove("user 1");
+		assertNull(store.get("user 1"));
+	}
+
+	@Test
+	public void fileDropsExpiredTokens() {
+		FileTokenStore store = new FileTokenStore(directory, 0);
+		store.put("a", new Token("t", "s"), System.currentTimeMillis() - 1);
+		assertEquals(1, directory.listFiles().length);
+		assertNull(store.get("a"));
+		assertEquals(0, directory.listFiles().length);
+	}
+}
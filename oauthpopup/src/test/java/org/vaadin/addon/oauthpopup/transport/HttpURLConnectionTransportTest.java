@@ -0,0 +1,98 @@
+package org.vaadin.addon.oauthpopup.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@SuppressWarnings("restriction")
+public class HttpURLConnectionTransportTest {
+	
+	private HttpServer server;
+	private String url;
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				String body = exchange.getRequestMethod() + " " + exchange.getRequestURI().getQuery()
+						+ " " + read(exchange.getRequestBody());
+				int code = exchange.getRequestURI().getPath().equals("/error") ? 400 : 200;
+				byte[] bytes = body.getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+				exchange.sendResponseHeaders(code, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+	
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+	
+	@Test
+	public void sendsQueryAndBody() {
+		OAuthRequest request = new OAuthRequest(Verb.POST, url + "/token");
+		request.addQuerystringParameter("a", "1");
+		request.addBodyParameter("b", "ä");
+		TransportResponse response = new HttpURLConnectionTransport().send(request);
+		assertTrue(response.isSuccessful());
+		assertEquals("POST a=1 b=%C3%A4", response.getBody());
+		assertEquals("text/plain; charset=UTF-8", response.getHeader("content-type"));
+	}
+	
+	@Test
+	public void readsErrorResponses() {
+		TransportResponse response = new HttpURLConnectionTransport().send(new OAuthRequest(Verb.GET, url + "/error"));
+		assertFalse(response.isSuccessful());
+		assertEquals(400, response.getCode());
+		assertEquals("GET null ", response.getBody());
+	}
+	
+	@Test
+	public void reusesConnection() {
+		HttpURLConnectionTransport transport = new HttpURLConnectionTransport();
+		for (int i=0; i<5; ++i) {
+			transport.send(new OAuthRequest(Verb.GET, url + "/error"));
+			transport.send(new OAuthRequest(Verb.GET, url + "/ok"));
+		}
+		assertEquals(1, clientPorts.size());
+	}
+	
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			bytes.write(buf, 0, n);
+		}
+		return bytes.toString("UTF-8");
+	}
+}